@@ -21,5 +21,5 @@ package hu.blackbelt.configuration.mapper;
  */
 
 public enum  ConfigState {
-    UNCHANGED, NEW, FOREIGN, CHECKSUMCHANGE
+    UNCHANGED, NEW, FOREIGN, CHECKSUMCHANGE, DELETED, FAILED
 }
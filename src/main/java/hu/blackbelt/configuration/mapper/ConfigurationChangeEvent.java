@@ -0,0 +1,99 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.util.Map;
+
+/**
+ * Changes of a single reconciliation pass of a config set. Maps are keyed by configuration PID (by templated
+ * configuration name if no configuration exists, ie. failed entries).
+ */
+@Builder
+@Getter
+@SuppressWarnings("checkstyle:missingctor")
+public class ConfigurationChangeEvent {
+    String configSetId;
+    long pass;
+
+    /**
+     * Duration of the pass in milliseconds.
+     */
+    long duration;
+
+    Map<String, ConfigState> created;
+    Map<String, ConfigState> updated;
+    Map<String, ConfigState> deleted;
+    Map<String, ConfigState> failed;
+
+    /**
+     * Error messages of failed configurations keyed by templated configuration name. Failed configurations keep their
+     * previous values and are retried with exponential backoff.
+     */
+    Map<String, String> errors;
+
+    /**
+     * Number of configurations processed (including unchanged ones).
+     */
+    int processed;
+
+    /**
+     * Maximal number of configuration updates queued by write stage.
+     */
+    int writeQueueDepth;
+
+    /**
+     * Number of configuration updates coalesced by write stage (same PID updated multiple times).
+     */
+    int coalesced;
+
+    /**
+     * Time spent waiting for write rate limiter in milliseconds.
+     */
+    long throttled;
+
+    /**
+     * Number of configurations not rendered because no consumer exists (lazy mode).
+     */
+    int deferred;
+
+    /**
+     * Number of configurations skipped because the rendered output is the same as the one written before (not hashed,
+     * looked up and updated).
+     */
+    int unchangedOutputs;
+
+    /**
+     * Pass is superseded by a newer one before it was finished (configurations of missing entries are not deleted).
+     */
+    boolean cancelled;
+
+    public boolean isEmpty() {
+        return created.isEmpty() && updated.isEmpty() && deleted.isEmpty() && failed.isEmpty();
+    }
+
+    public String toString() {
+        return String.format("ConfigurationChangeEvent(configSetId=%s, pass=%d, duration=%d, processed=%d, created=%s, updated=%s, deleted=%s, failed=%s, writeQueueDepth=%d, coalesced=%d, throttled=%d, deferred=%d, unchangedOutputs=%d, cancelled=%s)",
+                configSetId, pass, duration, processed, created.keySet(), updated.keySet(), deleted.keySet(), failed.keySet(), writeQueueDepth, coalesced, throttled, deferred, unchangedOutputs, cancelled);
+    }
+}
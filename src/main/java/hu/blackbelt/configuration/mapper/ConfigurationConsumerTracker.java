@@ -0,0 +1,295 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Sets;
+import lombok.extern.slf4j.Slf4j;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.cm.ManagedService;
+import org.osgi.service.cm.ManagedServiceFactory;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
+import org.osgi.service.component.runtime.ServiceComponentRuntime;
+import org.osgi.service.component.runtime.dto.ComponentDescriptionDTO;
+import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.util.tracker.ServiceTrackerCustomizer;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Tracking consumers of configurations (shared by all config sets running in lazy mode).
+ *
+ * PIDs of registered {@link ManagedService} and {@link ManagedServiceFactory} services and configuration PIDs of
+ * enabled DS components (based on the {@link ServiceComponentRuntime} descriptions, so components waiting for a required
+ * configuration are also tracked) are collected. Consumers are tracked only while any subscriber (lazy config set)
+ * exists. Component descriptions are refreshed by the shared scheduler when bundles are started or stopped, bundle
+ * events are merged until the refresh is started.
+ */
+@Component(service = ConfigurationConsumerTracker.class, immediate = true)
+@Slf4j
+public class ConfigurationConsumerTracker {
+    private static final String CONFIGURATION_POLICY_IGNORE = "ignore";
+    private static final String QUEUE_ID = "configuration-consumer-tracker";
+    private static final long REFRESH_DELAY = 100;
+
+    private final Multiset<String> managedServicePids = ConcurrentHashMultiset.create();
+    private final Map<ServiceReference<?>, Collection<String>> managedServices = new ConcurrentHashMap<>();
+    private final List<Consumer<Set<String>>> listeners = new CopyOnWriteArrayList<>();
+    private final BundleListener bundleListener = this::bundleChanged;
+    private final AtomicBoolean refreshPending = new AtomicBoolean();
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY, policy = ReferencePolicy.STATIC, policyOption = ReferencePolicyOption.GREEDY)
+    ConfigurationMapperScheduler scheduler;
+
+    private volatile ServiceComponentRuntime serviceComponentRuntime;
+    private volatile Set<String> componentPids = Collections.emptySet();
+    private BundleContext context;
+    private ServiceTracker<Object, ServiceReference<?>> managedServiceTracker;
+
+    @Activate
+    protected synchronized void activate(BundleContext context) {
+        this.context = context;
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        synchronized (this) {
+            listeners.clear();
+            stopTracking();
+            context = null;
+        }
+        scheduler.closeQueue(QUEUE_ID);
+    }
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    void bindServiceComponentRuntime(ServiceComponentRuntime runtime) {
+        serviceComponentRuntime = runtime;
+        if (!listeners.isEmpty()) {
+            scheduleRefresh();
+        }
+    }
+
+    void unbindServiceComponentRuntime(ServiceComponentRuntime runtime) {
+        if (serviceComponentRuntime == runtime) {
+            serviceComponentRuntime = null;
+            componentPids = Collections.emptySet();
+        }
+    }
+
+    /**
+     * Check if configuration of the given PID is consumed by any service or component.
+     *
+     * @param pid PID (factory PID of factory configurations)
+     * @return <code>true</code> if consumer exists
+     */
+    public boolean hasConsumer(String pid) {
+        return managedServicePids.contains(pid) || componentPids.contains(pid);
+    }
+
+    /**
+     * Subscribe to new consumers. Consumers are tracked while any subscription exists. Listener is called with PIDs of
+     * appearing consumers (from the thread registering the service or from the scheduler), so it should not block.
+     *
+     * @param listener callback invoked with new PIDs
+     * @return subscription that have to be closed if changes are no longer needed
+     */
+    public synchronized TemplateDiscoveryService.Subscription subscribe(Consumer<Set<String>> listener) {
+        listeners.add(listener);
+        if (managedServiceTracker == null) {
+            startTracking();
+        }
+        return () -> unsubscribe(listener);
+    }
+
+    private synchronized void unsubscribe(Consumer<Set<String>> listener) {
+        if (listeners.remove(listener) && listeners.isEmpty()) {
+            stopTracking();
+        }
+    }
+
+    private void startTracking() {
+        LOGGER.debug("Start tracking configuration consumers");
+        // service objects are not needed, only PIDs of references are collected
+        managedServiceTracker = new ServiceTracker<>(context, createManagedServiceFilter(), new ServiceTrackerCustomizer<Object, ServiceReference<?>>() {
+            @Override
+            public ServiceReference<?> addingService(ServiceReference<Object> reference) {
+                addManagedService(reference);
+                return reference;
+            }
+
+            @Override
+            public void modifiedService(ServiceReference<Object> reference, ServiceReference<?> tracked) {
+                removeManagedService(reference);
+                addManagedService(reference);
+            }
+
+            @Override
+            public void removedService(ServiceReference<Object> reference, ServiceReference<?> tracked) {
+                removeManagedService(reference);
+            }
+        });
+        managedServiceTracker.open();
+        context.addBundleListener(bundleListener);
+        scheduleRefresh();
+    }
+
+    private void stopTracking() {
+        if (managedServiceTracker == null) {
+            return;
+        }
+        LOGGER.debug("Stop tracking configuration consumers");
+        try {
+            context.removeBundleListener(bundleListener);
+        } catch (IllegalStateException ex) {
+            // bundle context is no longer valid, listener is removed by framework
+        }
+        managedServiceTracker.close();
+        managedServiceTracker = null;
+        managedServices.clear();
+        managedServicePids.clear();
+        componentPids = Collections.emptySet();
+    }
+
+    private static Filter createManagedServiceFilter() {
+        try {
+            return FrameworkUtil.createFilter("(|(" + Constants.OBJECTCLASS + "=" + ManagedService.class.getName() + ")("
+                    + Constants.OBJECTCLASS + "=" + ManagedServiceFactory.class.getName() + "))");
+        } catch (InvalidSyntaxException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private void addManagedService(ServiceReference<?> reference) {
+        final Collection<String> pids = getPids(reference.getProperty(Constants.SERVICE_PID));
+        managedServices.put(reference, pids);
+        final ImmutableSet.Builder<String> added = ImmutableSet.builder();
+        for (String pid : pids) {
+            if (managedServicePids.add(pid, 1) == 0 && !componentPids.contains(pid)) {
+                added.add(pid);
+            }
+        }
+        fireConsumersAdded(added.build());
+    }
+
+    private void removeManagedService(ServiceReference<?> reference) {
+        final Collection<String> pids = managedServices.remove(reference);
+        if (pids != null) {
+            pids.forEach(managedServicePids::remove);
+        }
+    }
+
+    private void bundleChanged(BundleEvent event) {
+        if (event.getType() == BundleEvent.STARTED || event.getType() == BundleEvent.STOPPED) {
+            scheduleRefresh();
+        }
+    }
+
+    private void scheduleRefresh() {
+        // bundle events (ie. of starting many bundles) are merged until the refresh is started
+        if (!refreshPending.getAndSet(true)) {
+            try {
+                scheduler.schedule(QUEUE_ID, () -> {
+                    refreshPending.set(false);
+                    refreshComponents();
+                }, REFRESH_DELAY);
+            } catch (IllegalStateException ex) {
+                refreshPending.set(false);
+                LOGGER.debug("Component descriptions are not refreshed, scheduler is stopped");
+            }
+        }
+    }
+
+    @SuppressWarnings("checkstyle:illegalcatch")
+    private synchronized void refreshComponents() {
+        final ServiceComponentRuntime runtime = serviceComponentRuntime;
+        if (runtime == null || managedServiceTracker == null) {
+            return;
+        }
+        final ImmutableSet.Builder<String> pids = ImmutableSet.builder();
+        try {
+            for (ComponentDescriptionDTO description : runtime.getComponentDescriptionDTOs()) {
+                if (!CONFIGURATION_POLICY_IGNORE.equals(description.configurationPolicy) && description.configurationPid != null
+                        && runtime.isComponentEnabled(description)) {
+                    pids.add(description.configurationPid);
+                }
+            }
+        } catch (RuntimeException ex) {
+            // runtime could be stopped concurrently, components are refreshed when it is bound again
+            LOGGER.warn("Unable to get component descriptions: {}", ex.getMessage());
+            return;
+        }
+        final Set<String> previous = componentPids;
+        componentPids = pids.build();
+        fireConsumersAdded(ImmutableSet.copyOf(Sets.filter(Sets.difference(componentPids, previous), p -> !managedServicePids.contains(p))));
+    }
+
+    @SuppressWarnings("checkstyle:illegalcatch")
+    private void fireConsumersAdded(Set<String> pids) {
+        if (pids.isEmpty()) {
+            return;
+        }
+        LOGGER.debug("Configuration consumers added: {}", pids);
+        for (Consumer<Set<String>> listener : listeners) {
+            try {
+                listener.accept(pids);
+            } catch (RuntimeException ex) {
+                LOGGER.error("Configuration consumer listener failed", ex);
+            }
+        }
+    }
+
+    private static Collection<String> getPids(Object value) {
+        if (value instanceof String) {
+            return Collections.singletonList((String) value);
+        } else if (value instanceof String[]) {
+            return Arrays.asList((String[]) value);
+        } else if (value instanceof Collection) {
+            final ImmutableSet.Builder<String> pids = ImmutableSet.builder();
+            ((Collection<?>) value).forEach(v -> pids.add(String.valueOf(v)));
+            return pids.build();
+        }
+        return Collections.emptyList();
+    }
+}
@@ -20,6 +20,9 @@ package hu.blackbelt.configuration.mapper;
  * #L%
  */
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.SneakyThrows;
@@ -29,19 +32,51 @@ import java.io.Serializable;
 import java.math.BigInteger;
 import java.net.URL;
 import java.nio.file.Paths;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  * Contains an generatable entry definition.
+ *
+ * Identity of entries is based on bundle ID, template path, spec path and instance name so entries of different scans
+ * could be compared. Content digest is not part of the identity, use {@link ConfigurationEntryDelta} to detect changed
+ * entries.
  */
 @Builder
 @Getter
 @SuppressWarnings("checkstyle:missingctor")
 public class ConfigurationEntry implements Serializable {
+    private static final Interner<BigInteger> DIGESTS = Interners.newWeakInterner();
+
+    long bundleId;
     URL template;
     Optional<URL> spec;
     Optional<String> instance;
 
+    /**
+     * Content digest, precomputed (ie. read from template index) or calculated from content on first use.
+     */
+    BigInteger digest;
+
+    /**
+     * Libraries included or imported by template (recursively), collected with digest or on first use.
+     */
+    transient Set<URL> libraries;
+
+    /**
+     * Paths of libraries which are not found next to template (resolved from other bundles or missing).
+     */
+    transient Set<String> externalLibraries;
+
+    /**
+     * Names of libraries used by FreeMarker (URLs relative to including templates).
+     */
+    transient Set<String> libraryNames;
+
     public String getPidBaseName() {
         String fileName = Paths.get(template.getPath()).getFileName().toString();
         if (instance.isPresent()) {
@@ -54,7 +89,14 @@ public class ConfigurationEntry implements Serializable {
 
     @SneakyThrows(IOException.class)
     public BigInteger checkSum() {
+        if (digest != null) {
+            return digest;
+        }
         String str = Utils.readUrl(template);
+        // templates are rendered again when an included or imported library is changed
+        for (String library : collectLibraries(str).values()) {
+            str += library;
+        }
         if (spec.isPresent()) {
             str += Utils.readUrl(spec.get());
         }
@@ -62,28 +104,80 @@ public class ConfigurationEntry implements Serializable {
         if (instance.isPresent()) {
             str += instance;
         }
-        return Utils.sha1(str);
+        digest = DIGESTS.intern(Utils.sha1(str));
+        return digest;
+    }
+
+    /**
+     * Get libraries included or imported by template (recursively).
+     *
+     * @return URLs of libraries
+     */
+    @SneakyThrows(IOException.class)
+    public Set<URL> getLibraries() {
+        if (libraries == null) {
+            collectLibraries(Utils.readUrl(template));
+        }
+        return libraries;
+    }
+
+    /**
+     * Get paths of libraries which are not found next to template, so they are resolved from other bundles (or they
+     * are missing). Template have to be rendered again if a bundle providing any of these paths is started or stopped.
+     *
+     * @return paths of libraries
+     */
+    @SneakyThrows(IOException.class)
+    public Set<String> getExternalLibraries() {
+        if (externalLibraries == null) {
+            collectLibraries(Utils.readUrl(template));
+        }
+        return externalLibraries;
+    }
+
+    /**
+     * Get names of libraries included or imported by template (recursively), libraries are cached by FreeMarker by these
+     * names.
+     *
+     * @return names of libraries
+     */
+    @SneakyThrows(IOException.class)
+    public Set<String> getLibraryNames() {
+        if (libraryNames == null) {
+            collectLibraries(Utils.readUrl(template));
+        }
+        return libraryNames;
+    }
+
+    /**
+     * Copy entry without digest, so digest (and libraries) are calculated again from the current content, ie. when
+     * a library provided by another bundle is changed.
+     *
+     * @return entry with the same identity
+     */
+    public ConfigurationEntry reload() {
+        return ConfigurationEntry.builder().bundleId(bundleId).template(template).spec(spec).instance(instance).build();
     }
 
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (!(o instanceof ConfigurationEntry)) return false;
-        if (!super.equals(o)) return false;
 
         ConfigurationEntry entry = (ConfigurationEntry) o;
 
-        if (getTemplate() != null ? !getTemplate().equals(entry.getTemplate()) : entry.getTemplate() != null) return false;
-        if (getSpec().isPresent() ? !getSpec().get().equals(entry.getSpec().orElse(null)) : entry.getSpec().isPresent()) return false;
-        return getInstance().isPresent() ? getInstance().get().equals(entry.getInstance().orElse(null)) : !entry.getInstance().isPresent();
+        return bundleId == entry.bundleId
+                && Objects.equals(getTemplatePath(), entry.getTemplatePath())
+                && Objects.equals(getSpecPath(), entry.getSpecPath())
+                && Objects.equals(instance, entry.instance);
     }
 
     @Override
     public int hashCode() {
-        int result = super.hashCode();
-        result = 31 * result + (getTemplate() != null ? getTemplate().hashCode() : 0);
-        result = 31 * result + (getSpec().isPresent() ? getSpec().get().hashCode() : 0);
-        result = 31 * result + (getInstance().isPresent() ? getInstance().get().hashCode() : 0);
+        int result = Long.hashCode(bundleId);
+        result = 31 * result + Objects.hashCode(getTemplatePath());
+        result = 31 * result + Objects.hashCode(getSpecPath());
+        result = 31 * result + Objects.hashCode(instance);
         return result;
     }
 
@@ -91,4 +185,24 @@ public class ConfigurationEntry implements Serializable {
         return String.format("ConfigurationEntry(template=%s, spec=%s, instance=%s)",
                 this.getTemplate(), this.getSpec().orElse(null), this.getInstance().orElse(null));
     }
+
+    private Map<URL, String> collectLibraries(String source) {
+        final Set<URL> names = new LinkedHashSet<>();
+        final Map<URL, String> found = TemplateLibraryLoader.collectLibraries(template, source, names);
+        // URLs are compared as strings (URL equality resolves host names)
+        final Set<String> resolved = found.keySet().stream().map(URL::toString).collect(Collectors.toSet());
+        libraries = ImmutableSet.copyOf(found.keySet());
+        libraryNames = names.stream().map(URL::toString).collect(ImmutableSet.toImmutableSet());
+        externalLibraries = names.stream().filter(n -> !resolved.contains(n.toString())).map(URL::getPath)
+                .collect(ImmutableSet.toImmutableSet());
+        return found;
+    }
+
+    private String getTemplatePath() {
+        return template != null ? template.getPath() : null;
+    }
+
+    private String getSpecPath() {
+        return spec != null && spec.isPresent() ? spec.get().getPath() : null;
+    }
 }
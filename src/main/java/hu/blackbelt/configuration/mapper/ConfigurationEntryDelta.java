@@ -0,0 +1,79 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.ImmutableSet;
+import lombok.Getter;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Difference of two sets of configuration entries.
+ */
+@Getter
+public final class ConfigurationEntryDelta {
+    private final Set<ConfigurationEntry> added;
+    private final Set<ConfigurationEntry> removed;
+    private final Set<ConfigurationEntry> changed;
+
+    private ConfigurationEntryDelta(Set<ConfigurationEntry> added, Set<ConfigurationEntry> removed, Set<ConfigurationEntry> changed) {
+        this.added = added;
+        this.removed = removed;
+        this.changed = changed;
+    }
+
+    /**
+     * Calculate difference of old and new entries. Entries with the same identity but different content digest are
+     * considered as changed.
+     *
+     * @param oldEntries old configuration entries
+     * @param newEntries new configuration entries
+     * @return delta
+     */
+    public static ConfigurationEntryDelta diff(Collection<ConfigurationEntry> oldEntries, Collection<ConfigurationEntry> newEntries) {
+        final Map<ConfigurationEntry, ConfigurationEntry> oldEntriesByIdentity = new HashMap<>(oldEntries.size() * 2);
+        oldEntries.forEach(e -> oldEntriesByIdentity.put(e, e));
+
+        final ImmutableSet.Builder<ConfigurationEntry> added = ImmutableSet.builder();
+        final ImmutableSet.Builder<ConfigurationEntry> changed = ImmutableSet.builder();
+        for (ConfigurationEntry entry : newEntries) {
+            final ConfigurationEntry oldEntry = oldEntriesByIdentity.remove(entry);
+            if (oldEntry == null) {
+                added.add(entry);
+            } else if (!oldEntry.checkSum().equals(entry.checkSum())) {
+                changed.add(entry);
+            }
+        }
+        return new ConfigurationEntryDelta(added.build(), ImmutableSet.copyOf(oldEntriesByIdentity.keySet()), changed.build());
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ConfigurationEntryDelta(added=%s, removed=%s, changed=%s)", added, removed, changed);
+    }
+}
@@ -0,0 +1,453 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Primitives;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.metatype.annotations.Designate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Journal of template changes and config set updates, so reconciliation passes of a real workload could be replayed
+ * offline by {@link ConfigurationJournalReplay}.
+ *
+ * The journal is a gzip compressed text file, each line is a tab separated record:
+ * <ul>
+ *     <li><code>content</code>: content of a template, XML spec, library or variable set, written once per digest,</li>
+ *     <li><code>bundle</code>: templates of a bundle are added, modified or removed (files refer to contents by digest),</li>
+ *     <li><code>configset</code>: config set is activated, updated or deactivated (typed properties, environment and
+ *     system variables of the JVM referring to contents by digest, secrets are redacted).</li>
+ * </ul>
+ * Records (except contents) start with the number of milliseconds elapsed since the journal is opened. Journals of the
+ * previous version (without types and variables) are read too.
+ */
+@Component(name = "configuration-mapper-journal", service = ConfigurationJournal.class, configurationPolicy = ConfigurationPolicy.REQUIRE)
+@Designate(ocd = ConfigurationJournalConfig.class)
+@Slf4j
+public class ConfigurationJournal {
+    static final String HEADER = "# configuration-mapper journal 2";
+    static final String HEADER_V1 = "# configuration-mapper journal 1";
+    static final String CONTENT = "content";
+    static final String BUNDLE = "bundle";
+    static final String CONFIGSET = "configset";
+
+    public static final String ADDING = "adding";
+    public static final String MODIFIED = "modified";
+    public static final String REMOVED = "removed";
+    public static final String ACTIVATED = "activated";
+    public static final String UPDATED = "updated";
+    public static final String DEACTIVATED = "deactivated";
+
+    private static final String SEPARATOR = "\t";
+    private static final String LIST_SEPARATOR = ",";
+    private static final String FIELD_SEPARATOR = "|";
+    private static final String VALUE_SEPARATOR = "=";
+    private static final String TYPE_SEPARATOR = ":";
+    private static final String ARRAY_SUFFIX = "[]";
+    private static final String REDACTED = "**************";
+    private static final Map<String, Function<String, Object>> VALUE_PARSERS = ImmutableMap.<String, Function<String, Object>>builder()
+            .put(String.class.getSimpleName(), v -> v)
+            .put(Boolean.class.getSimpleName(), Boolean::valueOf)
+            .put(Integer.class.getSimpleName(), Integer::valueOf)
+            .put(Long.class.getSimpleName(), Long::valueOf)
+            .put(Double.class.getSimpleName(), Double::valueOf)
+            .put(Float.class.getSimpleName(), Float::valueOf)
+            .put(Short.class.getSimpleName(), Short::valueOf)
+            .put(Byte.class.getSimpleName(), Byte::valueOf)
+            .put(Character.class.getSimpleName(), v -> v.charAt(0))
+            .build();
+
+    private final Set<String> contents = new HashSet<>();
+    private Writer writer;
+    private long started;
+
+    @Activate
+    protected void activate(ConfigurationJournalConfig config) throws IOException {
+        LOGGER.info("Recording configuration mapper journal: {}", config.file());
+        open(Files.newOutputStream(Paths.get(config.file())));
+    }
+
+    @Deactivate
+    protected synchronized void deactivate() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ex) {
+                LOGGER.error("Unable to close configuration mapper journal", ex);
+            }
+            writer = null;
+        }
+    }
+
+    synchronized void open(OutputStream out) throws IOException {
+        // records are flushed one by one, so journal is readable if process is killed during a slow startup
+        writer = new OutputStreamWriter(new GZIPOutputStream(out, true), UTF_8);
+        started = System.currentTimeMillis();
+        contents.clear();
+        writer.write(HEADER + "\n");
+        writer.flush();
+    }
+
+    /**
+     * Record change of configuration entries of a bundle.
+     *
+     * @param type {@link #ADDING}, {@link #MODIFIED} or {@link #REMOVED}
+     * @param templatePath normalized template path
+     * @param bundleId bundle ID
+     * @param symbolicName symbolic name of bundle
+     * @param entries configuration entries of bundle (empty if bundle is removed)
+     */
+    public synchronized void bundleEvent(String type, String templatePath, long bundleId, String symbolicName, List<ConfigurationEntry> entries) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            final Map<String, String> files = new LinkedHashMap<>();
+            for (ConfigurationEntry entry : entries) {
+                final byte[] template = addFile(files, entry.getTemplate());
+                if (entry.getSpec().isPresent()) {
+                    addFile(files, entry.getSpec().get());
+                }
+                // libraries are recorded in the bundle of template (by path), so they are resolved the same way by replay
+                for (URL library : TemplateLibraryLoader.collectLibraries(entry.getTemplate(), new String(template, UTF_8)).keySet()) {
+                    addFile(files, library);
+                }
+            }
+            write(BUNDLE, elapsed(), type, templatePath, String.valueOf(bundleId), symbolicName,
+                    files.entrySet().stream().map(f -> encode(f.getKey()) + VALUE_SEPARATOR + f.getValue())
+                            .collect(Collectors.joining(LIST_SEPARATOR)),
+                    entries.stream().map(e -> encode(e.getTemplate().getPath())
+                            + FIELD_SEPARATOR + e.getSpec().map(s -> encode(s.getPath())).orElse("")
+                            + FIELD_SEPARATOR + e.getInstance().map(ConfigurationJournal::encode).orElse(""))
+                            .collect(Collectors.joining(LIST_SEPARATOR)));
+        } catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    /**
+     * Record change of a config set. Environment and system variables of the JVM are recorded too (except when config
+     * set is deactivated), so templates are rendered with the same variables by replay.
+     *
+     * @param type {@link #ACTIVATED}, {@link #UPDATED} or {@link #DEACTIVATED}
+     * @param configSetId config set ID
+     * @param properties properties of config set (secrets are redacted)
+     */
+    public synchronized void configSetEvent(String type, String configSetId, Map<String, Object> properties) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            final boolean variables = !DEACTIVATED.equals(type);
+            write(CONFIGSET, elapsed(), type, configSetId, properties.entrySet().stream()
+                            .map(p -> encode(p.getKey()) + VALUE_SEPARATOR
+                                    + encode(Utils.isSecretKey(p.getKey()) ? encodeValue(REDACTED) : encodeValue(p.getValue())))
+                            .collect(Collectors.joining(LIST_SEPARATOR)),
+                    variables ? addVariables(System.getenv()) : "",
+                    variables ? addVariables(Utils.fromDictionary(System.getProperties())) : "");
+        } catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    /**
+     * Read journal.
+     *
+     * @param in journal (gzip compressed)
+     * @param contents contents of files referred by events are added by digest
+     * @return events in recording order
+     * @throws IOException if journal could not be read or it is invalid
+     */
+    static List<Event> read(InputStream in, Map<String, byte[]> contents) throws IOException {
+        final ImmutableList.Builder<Event> events = ImmutableList.builder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(in), UTF_8))) {
+            final String header = reader.readLine();
+            final boolean typed = HEADER.equals(header);
+            if (!typed && !HEADER_V1.equals(header)) {
+                throw new IOException("Invalid journal header: " + header);
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split(SEPARATOR, -1);
+                if (CONTENT.equals(fields[0]) && fields.length == 3) {
+                    contents.put(fields[1], Base64.getDecoder().decode(fields[2]));
+                } else if (BUNDLE.equals(fields[0]) && fields.length == 8) {
+                    events.add(Event.builder()
+                            .record(BUNDLE).time(Long.parseLong(fields[1])).type(fields[2])
+                            .templatePath(fields[3]).bundleId(Long.parseLong(fields[4])).name(fields[5])
+                            .files(decodeMap(fields[6]))
+                            .entries(split(fields[7]).stream().map(ConfigurationJournal::decodeEntry).collect(ImmutableList.toImmutableList()))
+                            .build());
+                } else if (CONFIGSET.equals(fields[0]) && fields.length == (typed ? 7 : 5)) {
+                    final Map<String, Object> properties = new LinkedHashMap<>();
+                    for (Map.Entry<String, String> property : decodeMap(fields[4]).entrySet()) {
+                        properties.put(property.getKey(), typed ? decodeValue(property.getValue()) : property.getValue());
+                    }
+                    events.add(Event.builder()
+                            .record(CONFIGSET).time(Long.parseLong(fields[1])).type(fields[2]).name(fields[3])
+                            .properties(ImmutableMap.copyOf(properties))
+                            .environment(typed ? readVariables(fields[5], contents) : null)
+                            .systemProperties(typed ? readVariables(fields[6], contents) : null)
+                            .build());
+                } else {
+                    throw new IOException("Invalid journal record: " + fields[0]);
+                }
+            }
+        }
+        return events.build();
+    }
+
+    private byte[] addFile(Map<String, String> files, URL url) throws IOException {
+        final byte[] content = read(url);
+        files.put(url.getPath(), addContent(content));
+        return content;
+    }
+
+    private String addVariables(Map<?, ?> variables) throws IOException {
+        // variables are unchanged in most cases, they are written once per digest
+        final String content = variables.entrySet().stream()
+                .map(v -> encode(String.valueOf(v.getKey())) + VALUE_SEPARATOR
+                        + encode(Utils.isSecretKey(String.valueOf(v.getKey())) ? REDACTED : String.valueOf(v.getValue())))
+                .sorted()
+                .collect(Collectors.joining(LIST_SEPARATOR));
+        return addContent(content.getBytes(UTF_8));
+    }
+
+    private String addContent(byte[] content) throws IOException {
+        final String digest = Hashing.murmur3_128().hashBytes(content).toString();
+        if (contents.add(digest)) {
+            write(CONTENT, digest, Base64.getEncoder().encodeToString(content));
+        }
+        return digest;
+    }
+
+    private void write(String... fields) throws IOException {
+        writer.write(String.join(SEPARATOR, fields));
+        writer.write('\n');
+        writer.flush();
+    }
+
+    private String elapsed() {
+        return String.valueOf(System.currentTimeMillis() - started);
+    }
+
+    private void fail(IOException ex) {
+        // journal is diagnostic only, config sets are not affected
+        LOGGER.error("Unable to write configuration mapper journal, recording is stopped", ex);
+        try {
+            writer.close();
+        } catch (IOException closeEx) {
+            LOGGER.debug("Unable to close configuration mapper journal", closeEx);
+        }
+        writer = null;
+    }
+
+    private static byte[] read(URL url) throws IOException {
+        try (InputStream is = url.openStream()) {
+            return ByteStreams.toByteArray(is);
+        }
+    }
+
+    private static Map<String, String> readVariables(String digest, Map<String, byte[]> contents) throws IOException {
+        if (digest.isEmpty()) {
+            return null;
+        }
+        final byte[] content = contents.get(digest);
+        if (content == null) {
+            throw new IOException("Journal refers to missing content: " + digest);
+        }
+        return decodeMap(new String(content, UTF_8));
+    }
+
+    /**
+     * Encode value with its type (<code>type:value</code>), elements of arrays and collections are encoded one by one
+     * (<code>type[]:element,element</code>). Values of other types are recorded as strings.
+     */
+    private static String encodeValue(Object value) {
+        if (value != null && (value.getClass().isArray() || value instanceof Collection)) {
+            final List<Object> elements = new ArrayList<>();
+            if (value instanceof Collection) {
+                elements.addAll((Collection<?>) value);
+            } else {
+                for (int i = 0; i < Array.getLength(value); i++) {
+                    elements.add(Array.get(value, i));
+                }
+            }
+            final Class<?> componentType = value.getClass().isArray() ? Primitives.wrap(value.getClass().getComponentType())
+                    : elements.isEmpty() ? String.class : elements.get(0).getClass();
+            return typeName(componentType) + ARRAY_SUFFIX + TYPE_SEPARATOR + elements.stream()
+                    .map(e -> encode(String.valueOf(e))).collect(Collectors.joining(LIST_SEPARATOR));
+        }
+        return typeName(value == null ? String.class : value.getClass()) + TYPE_SEPARATOR + value;
+    }
+
+    private static Object decodeValue(String value) throws IOException {
+        final int separator = value.indexOf(TYPE_SEPARATOR);
+        if (separator < 0) {
+            throw new IOException("Invalid journal value: " + value);
+        }
+        final String type = value.substring(0, separator);
+        final String content = value.substring(separator + 1);
+        try {
+            if (type.endsWith(ARRAY_SUFFIX)) {
+                final String componentType = type.substring(0, type.length() - ARRAY_SUFFIX.length());
+                final List<String> elements = split(content);
+                final Object array = Array.newInstance(toClass(componentType), elements.size());
+                for (int i = 0; i < elements.size(); i++) {
+                    Array.set(array, i, parse(componentType, decode(elements.get(i))));
+                }
+                return array;
+            }
+            return parse(type, content);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException ex) {
+            throw new IOException("Invalid journal value: " + value, ex);
+        }
+    }
+
+    private static String typeName(Class<?> type) {
+        return VALUE_PARSERS.containsKey(type.getSimpleName()) && type.getName().startsWith("java.lang.")
+                ? type.getSimpleName() : String.class.getSimpleName();
+    }
+
+    private static Class<?> toClass(String type) {
+        try {
+            return Class.forName("java.lang." + type);
+        } catch (ClassNotFoundException ex) {
+            throw new IllegalArgumentException("Unsupported type: " + type, ex);
+        }
+    }
+
+    private static Object parse(String type, String value) {
+        final Function<String, Object> parser = VALUE_PARSERS.get(type);
+        if (parser == null) {
+            throw new IllegalArgumentException("Unsupported type: " + type);
+        }
+        return parser.apply(value);
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, UTF_8);
+    }
+
+    private static String decode(String value) {
+        return URLDecoder.decode(value, UTF_8);
+    }
+
+    private static List<String> split(String list) {
+        return list.isEmpty() ? ImmutableList.of() : Arrays.asList(list.split(LIST_SEPARATOR, -1));
+    }
+
+    private static Map<String, String> decodeMap(String list) {
+        final Map<String, String> map = new LinkedHashMap<>();
+        for (String item : split(list)) {
+            final int separator = item.indexOf(VALUE_SEPARATOR);
+            map.put(decode(item.substring(0, separator)), decode(item.substring(separator + 1)));
+        }
+        return ImmutableMap.copyOf(map);
+    }
+
+    private static EntryRecord decodeEntry(String entry) {
+        final String[] fields = entry.split("\\" + FIELD_SEPARATOR, -1);
+        return new EntryRecord(decode(fields[0]),
+                fields[1].isEmpty() ? Optional.empty() : Optional.of(decode(fields[1])),
+                fields[2].isEmpty() ? Optional.empty() : Optional.of(decode(fields[2])));
+    }
+
+    /**
+     * Recorded bundle or config set event.
+     */
+    @Builder
+    @Getter
+    @SuppressWarnings("checkstyle:missingctor")
+    static class Event {
+        String record;
+        long time;
+        String type;
+        String name;
+        String templatePath;
+        long bundleId;
+        @Builder.Default
+        Map<String, String> files = ImmutableMap.of();
+        @Builder.Default
+        List<EntryRecord> entries = ImmutableList.of();
+        @Builder.Default
+        Map<String, Object> properties = ImmutableMap.of();
+        /**
+         * Environment variables of the JVM (<code>null</code> if they are not recorded).
+         */
+        Map<String, String> environment;
+        /**
+         * System properties of the JVM (<code>null</code> if they are not recorded).
+         */
+        Map<String, String> systemProperties;
+    }
+
+    /**
+     * Recorded configuration entry, template and spec are paths inside bundle.
+     */
+    @AllArgsConstructor
+    @Getter
+    static class EntryRecord {
+        private final String template;
+        private final Optional<String> spec;
+        private final Optional<String> instance;
+    }
+}
@@ -0,0 +1,340 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.google.common.primitives.Primitives;
+import hu.blackbelt.configuration.mapper.internal.InMemoryConfigurationAdmin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Offline tool replaying a {@link ConfigurationJournal} against an in-memory configuration admin, so reconciliation of a
+ * real workload could be measured (and fixes could be benchmarked) without the OSGi framework.
+ *
+ * <pre>
+ * ConfigurationJournalReplay &lt;journal&gt; [--repeat &lt;count&gt;]
+ * </pre>
+ *
+ * Recorded contents are extracted into a temporary directory (by bundle), bundle events update entries of the template
+ * path and passes of the affected config sets are executed the same way as config sets do at runtime (incremental
+ * passes on template changes, full passes on config set updates). Duration of each event is reported (of the last run
+ * if <code>--repeat</code> is given, earlier runs warm up the JVM).
+ *
+ * Config sets are configured by the recorded (typed) options the same way as at runtime (write rate, retry policy,
+ * render limits and lazy mode). Consumers are not recorded, so all PIDs are treated as consumed in lazy mode. Failed
+ * configurations are retried after the event as scheduled by the retry policy, waiting for retries is not measured.
+ * Templates are rendered with the recorded environment and system variables (variables of the replaying JVM are used
+ * for journals recorded without them), redacted secrets are rendered as they are recorded.
+ */
+public final class ConfigurationJournalReplay {
+    private static final String REPEAT_OPTION = "--repeat";
+
+    private final List<ConfigurationJournal.Event> events;
+    private final Map<String, byte[]> contents;
+    private final Path contentDirectory;
+    private final PrintStream out;
+
+    private ConfigurationJournalReplay(List<ConfigurationJournal.Event> events, Map<String, byte[]> contents, Path contentDirectory, PrintStream out) {
+        this.events = events;
+        this.contents = contents;
+        this.contentDirectory = contentDirectory;
+        this.out = out;
+    }
+
+    @SuppressWarnings("checkstyle:uncommentedmain")
+    public static void main(String[] args) throws Exception {
+        run(args, System.out);
+    }
+
+    /**
+     * Run tool.
+     *
+     * @param args command line arguments
+     * @param out report output
+     * @return duration of the last run in milliseconds (without extracting contents)
+     * @throws IOException if journal could not be read
+     */
+    public static long run(String[] args, PrintStream out) throws IOException {
+        if (args.length == 0) {
+            throw new IllegalArgumentException("Usage: ConfigurationJournalReplay <journal> [" + REPEAT_OPTION + " <count>]");
+        }
+        int repeat = 1;
+        for (int i = 1; i < args.length; i++) {
+            if (REPEAT_OPTION.equals(args[i]) && i + 1 < args.length) {
+                repeat = Math.max(1, Integer.parseInt(args[++i]));
+            } else {
+                throw new IllegalArgumentException("Invalid argument: " + args[i]);
+            }
+        }
+
+        final Map<String, byte[]> contents = new HashMap<>();
+        final List<ConfigurationJournal.Event> events;
+        try (InputStream in = Files.newInputStream(Paths.get(args[0]))) {
+            events = ConfigurationJournal.read(in, contents);
+        }
+        out.println("Events found in " + args[0] + ": " + events.size());
+
+        final Path contentDirectory = Files.createTempDirectory("configuration-mapper-replay");
+        try {
+            final ConfigurationJournalReplay replay = new ConfigurationJournalReplay(events, contents, contentDirectory, out);
+            long duration = 0;
+            for (int i = 1; i <= repeat; i++) {
+                duration = replay.replay(i == repeat);
+                out.println("Run " + i + " finished in " + duration + " ms");
+            }
+            return duration;
+        } finally {
+            MoreFiles.deleteRecursively(contentDirectory, RecursiveDeleteOption.ALLOW_INSECURE);
+        }
+    }
+
+    private List<ConfigurationEntry> extract(ConfigurationJournal.Event event) throws IOException {
+        // files of bundle are overwritten by later events the same way as bundle is updated
+        for (Map.Entry<String, String> file : event.getFiles().entrySet()) {
+            final byte[] content = contents.get(file.getValue());
+            if (content == null) {
+                throw new IOException("Journal refers to missing content: " + file.getValue());
+            }
+            final Path path = resolve(event.getBundleId(), file.getKey());
+            Files.createDirectories(path.getParent());
+            Files.write(path, content);
+        }
+        final ImmutableList.Builder<ConfigurationEntry> entries = ImmutableList.builder();
+        for (ConfigurationJournal.EntryRecord entry : event.getEntries()) {
+            entries.add(ConfigurationEntry.builder()
+                    .bundleId(event.getBundleId())
+                    .template(toUrl(event.getBundleId(), entry.getTemplate()))
+                    .spec(entry.getSpec().isPresent() ? Optional.of(toUrl(event.getBundleId(), entry.getSpec().get())) : Optional.empty())
+                    .instance(entry.getInstance())
+                    .build());
+        }
+        final List<ConfigurationEntry> result = entries.build();
+        // digests are calculated while files are available (as the tracker does)
+        result.forEach(ConfigurationEntry::checkSum);
+        return result;
+    }
+
+    private Path resolve(long bundleId, String path) {
+        return contentDirectory.resolve(String.valueOf(bundleId)).resolve(path.startsWith("/") ? path.substring(1) : path);
+    }
+
+    private URL toUrl(long bundleId, String path) throws IOException {
+        return resolve(bundleId, path).toUri().toURL();
+    }
+
+    private long replay(boolean report) throws IOException {
+        final InMemoryConfigurationAdmin configAdmin = new InMemoryConfigurationAdmin();
+        final Map<String, Map<Long, List<ConfigurationEntry>>> bundleEntries = new HashMap<>();
+        final Map<String, ReplayedConfigSet> configSets = new LinkedHashMap<>();
+        final Map<String, Long> durationByType = new TreeMap<>();
+
+        long duration = 0;
+        for (ConfigurationJournal.Event event : events) {
+            final List<ConfigurationEntry> extracted = ConfigurationJournal.BUNDLE.equals(event.getRecord())
+                    ? extract(event) : ImmutableList.of();
+            final long eventStarted = System.nanoTime();
+            final List<ConfigurationChangeEvent> passes = new ArrayList<>();
+            if (ConfigurationJournal.BUNDLE.equals(event.getRecord())) {
+                final Map<Long, List<ConfigurationEntry>> entries = bundleEntries.computeIfAbsent(event.getTemplatePath(), p -> new LinkedHashMap<>());
+                if (ConfigurationJournal.REMOVED.equals(event.getType())) {
+                    entries.remove(event.getBundleId());
+                } else {
+                    entries.put(event.getBundleId(), extracted);
+                }
+                for (ReplayedConfigSet configSet : configSets.values()) {
+                    if (configSet.templatePath.equals(event.getTemplatePath())) {
+                        configSet.process(flatten(entries), false).ifPresent(passes::add);
+                    }
+                }
+            } else if (ConfigurationJournal.DEACTIVATED.equals(event.getType())) {
+                final ReplayedConfigSet configSet = configSets.remove(event.getName());
+                if (configSet != null && !configSet.config.retainConfigurations()) {
+                    configSet.handler.destroy();
+                }
+            } else {
+                ReplayedConfigSet configSet = configSets.get(event.getName());
+                if (configSet == null) {
+                    configSet = new ReplayedConfigSet(event.getName(), configAdmin, event);
+                    configSets.put(event.getName(), configSet);
+                } else {
+                    configSet.update(event);
+                }
+                configSet.process(flatten(bundleEntries.getOrDefault(configSet.templatePath, new HashMap<>())), true)
+                        .ifPresent(passes::add);
+            }
+            long eventDuration = (System.nanoTime() - eventStarted) / 1_000_000;
+            for (ReplayedConfigSet configSet : configSets.values()) {
+                eventDuration += configSet.retry(passes);
+            }
+            duration += eventDuration;
+            durationByType.merge(event.getRecord() + " " + event.getType(), eventDuration, Long::sum);
+            if (report) {
+                out.println(String.format("%8d ms %6d ms %-9s %-11s %s%s", event.getTime(), eventDuration, event.getRecord(),
+                        event.getType(), event.getName(), passes.stream().map(p -> String.format(
+                                " [%s: created=%d, updated=%d, deleted=%d, failed=%d, unchanged=%d]", p.getConfigSetId(),
+                                p.getCreated().size(), p.getUpdated().size(), p.getDeleted().size(), p.getFailed().size(),
+                                p.getUnchangedOutputs())).collect(Collectors.joining())));
+            }
+        }
+        if (report) {
+            durationByType.forEach((type, d) -> out.println(String.format("Total of %-21s %6d ms", type + ":", d)));
+            out.println("Configurations: " + configAdmin.size() + ", updates: " + configAdmin.getUpdates()
+                    + ", deletes: " + configAdmin.getDeletes());
+        }
+        return duration;
+    }
+
+    private static List<ConfigurationEntry> flatten(Map<Long, List<ConfigurationEntry>> entries) {
+        return entries.values().stream().flatMap(List::stream).collect(ImmutableList.toImmutableList());
+    }
+
+    private static class ReplayedConfigSet {
+        private final OsgiTemplatedConfigurationSetHandler handler;
+        private DefaultTemplatedConfigSetConfig config;
+        private String templatePath;
+        private List<ConfigurationEntry> entries = ImmutableList.of();
+
+        ReplayedConfigSet(String id, InMemoryConfigurationAdmin configAdmin, ConfigurationJournal.Event event) {
+            config = toConfig(event.getProperties());
+            handler = new OsgiTemplatedConfigurationSetHandler(id, configAdmin, envPrefix(config),
+                    new HashMap<>(event.getProperties()), variableScopePrecedence(config),
+                    DefaultTemplatedConfigSet.loadRenderBudget(config));
+            configure(event);
+        }
+
+        void update(ConfigurationJournal.Event event) {
+            config = toConfig(event.getProperties());
+            handler.updateVariables(new HashMap<>(event.getProperties()), envPrefix(config), variableScopePrecedence(config));
+            configure(event);
+        }
+
+        private void configure(ConfigurationJournal.Event event) {
+            templatePath = TemplateResourceBundleTracker.normalizeTemplatePath(config.templatePath());
+            // consumers are not recorded, all PIDs are consumed in lazy mode
+            DefaultTemplatedConfigSet.applyOptions(handler, config, pid -> true, name -> null);
+            handler.setVariableSources(event.getEnvironment(), event.getSystemProperties());
+            // options are applied by full passes
+            entries = null;
+        }
+
+        Optional<ConfigurationChangeEvent> process(List<ConfigurationEntry> newEntries, boolean full) {
+            final ConfigurationEntryDelta delta = entries != null ? ConfigurationEntryDelta.diff(entries, newEntries) : null;
+            if (!full && delta != null && delta.isEmpty()) {
+                return Optional.empty();
+            }
+            entries = newEntries;
+            return Optional.of(handler.processConfigs(newEntries, full ? null : delta, () -> false));
+        }
+
+        /**
+         * Retry failed configurations until no retry is pending (or retry limit is reached).
+         *
+         * @param passes retry passes are added
+         * @return duration of retries in milliseconds (without waiting for them)
+         */
+        long retry(List<ConfigurationChangeEvent> passes) {
+            long duration = 0;
+            long delay;
+            while ((delay = handler.getRetryDelay()) >= 0) {
+                sleep(delay);
+                final long started = System.nanoTime();
+                passes.add(handler.retryFailed(() -> false));
+                duration += (System.nanoTime() - started) / 1_000_000;
+            }
+            return duration;
+        }
+
+        private static void sleep(long delay) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Replay is interrupted", ex);
+            }
+        }
+
+        private static String envPrefix(DefaultTemplatedConfigSetConfig config) {
+            return config.envPrefix() != null ? config.envPrefix() : "";
+        }
+
+        private static List<TemplateProcessor.VariableScope> variableScopePrecedence(DefaultTemplatedConfigSetConfig config) {
+            return DefaultTemplatedConfigSet.loadVariableSciptPrecedence(config.variableScopePrecedence());
+        }
+
+        /**
+         * Create options of config set from recorded properties (by attribute name, as declarative services does).
+         * Values of journals recorded without types are converted from strings.
+         */
+        private static DefaultTemplatedConfigSetConfig toConfig(Map<String, Object> properties) {
+            return (DefaultTemplatedConfigSetConfig) Proxy.newProxyInstance(DefaultTemplatedConfigSetConfig.class.getClassLoader(),
+                    new Class<?>[] {DefaultTemplatedConfigSetConfig.class},
+                    (proxy, method, args) -> convert(properties.get(method.getName()), method.getReturnType(), method.getDefaultValue()));
+        }
+
+        private static Object convert(Object value, Class<?> type, Object defaultValue) {
+            if (value == null) {
+                return defaultValue;
+            }
+            final Class<?> wrapped = Primitives.wrap(type);
+            if (wrapped.isInstance(value)) {
+                return value;
+            }
+            final String string = String.valueOf(value).trim();
+            if (wrapped == String.class) {
+                return string;
+            } else if (wrapped == Boolean.class) {
+                return Boolean.parseBoolean(string);
+            }
+            try {
+                final BigDecimal number = value instanceof Number ? new BigDecimal(value.toString()) : new BigDecimal(string);
+                if (wrapped == Integer.class) {
+                    return number.intValue();
+                } else if (wrapped == Long.class) {
+                    return number.longValue();
+                } else if (wrapped == Double.class) {
+                    return number.doubleValue();
+                }
+            } catch (NumberFormatException ex) {
+                return defaultValue;
+            }
+            return defaultValue;
+        }
+    }
+}
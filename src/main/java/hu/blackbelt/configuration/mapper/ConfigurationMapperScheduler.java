@@ -0,0 +1,270 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.Designate;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded scheduler shared by all config sets (and other mapper work).
+ *
+ * Tasks are submitted to named queues (ie. config set ID). Tasks of the same queue are executed one by one in
+ * submission order, queues are served round-robin so a config set with many pending tasks could not starve the others.
+ * The number of tasks executed in parallel is limited by configuration. Virtual threads are used on Java 21+.
+ */
+@Component(name = "configuration-mapper-scheduler", service = ConfigurationMapperScheduler.class, immediate = true)
+@Designate(ocd = ConfigurationMapperSchedulerConfig.class)
+@Slf4j
+public class ConfigurationMapperScheduler {
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactoryBuilder()
+            .setNameFormat("config-mapper-%d").setDaemon(true).build();
+    private static final ThreadFactory TIMER_THREAD_FACTORY = new ThreadFactoryBuilder()
+            .setNameFormat("config-mapper-timer-%d").setDaemon(true).build();
+
+    private final Map<String, TaskQueue> queues = new HashMap<>();
+    private final Deque<TaskQueue> readyQueues = new ArrayDeque<>();
+    private ExecutorService workers;
+    private ScheduledExecutorService timer;
+    private int maxConcurrency;
+    private int running;
+
+    @Activate
+    protected synchronized void activate(ConfigurationMapperSchedulerConfig config) {
+        maxConcurrency = Math.max(1, config.maxConcurrency());
+        workers = createWorkers(config.virtualThreads(), maxConcurrency);
+        final ScheduledThreadPoolExecutor scheduledExecutor = new ScheduledThreadPoolExecutor(1, TIMER_THREAD_FACTORY);
+        scheduledExecutor.setRemoveOnCancelPolicy(true);
+        timer = scheduledExecutor;
+        LOGGER.info("Configuration mapper scheduler started, concurrency limit: {}", maxConcurrency);
+    }
+
+    @Modified
+    protected synchronized void update(ConfigurationMapperSchedulerConfig config) {
+        maxConcurrency = Math.max(1, config.maxConcurrency());
+        if (workers instanceof ThreadPoolExecutor) {
+            final ThreadPoolExecutor pool = (ThreadPoolExecutor) workers;
+            if (maxConcurrency > pool.getMaximumPoolSize()) {
+                pool.setMaximumPoolSize(maxConcurrency);
+                pool.setCorePoolSize(maxConcurrency);
+            } else {
+                pool.setCorePoolSize(maxConcurrency);
+                pool.setMaximumPoolSize(maxConcurrency);
+            }
+        }
+        LOGGER.info("Configuration mapper scheduler concurrency limit changed: {}", maxConcurrency);
+        dispatch();
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        final ExecutorService stopping;
+        synchronized (this) {
+            queues.values().forEach(q -> q.tasks.clear());
+            queues.clear();
+            readyQueues.clear();
+            stopping = workers;
+            workers = null;
+            timer.shutdownNow();
+            timer = null;
+        }
+        stopping.shutdown();
+        try {
+            if (!stopping.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOGGER.warn("Configuration mapper tasks are not finished in time");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Get executor submitting tasks to the given queue.
+     *
+     * @param queueId queue ID
+     * @return executor
+     */
+    public Executor getExecutor(String queueId) {
+        return task -> execute(queueId, task);
+    }
+
+    /**
+     * Submit task to the given queue.
+     *
+     * @param queueId queue ID
+     * @param task task
+     */
+    public synchronized void execute(String queueId, Runnable task) {
+        if (workers == null) {
+            throw new IllegalStateException("Configuration mapper scheduler is not active");
+        }
+        final TaskQueue queue = queues.computeIfAbsent(queueId, TaskQueue::new);
+        queue.tasks.add(task);
+        if (!queue.scheduled) {
+            queue.scheduled = true;
+            readyQueues.add(queue);
+        }
+        dispatch();
+    }
+
+    /**
+     * Submit task to the given queue after the given delay.
+     *
+     * @param queueId queue ID
+     * @param task task
+     * @param delay delay in milliseconds
+     * @return future cancelling the submission
+     */
+    public synchronized ScheduledFuture<?> schedule(String queueId, Runnable task, long delay) {
+        if (timer == null) {
+            throw new IllegalStateException("Configuration mapper scheduler is not active");
+        }
+        return timer.schedule(() -> {
+            try {
+                execute(queueId, task);
+            } catch (IllegalStateException ex) {
+                LOGGER.debug("Delayed task of queue {} is dropped, scheduler is stopped", queueId);
+            }
+        }, Math.max(0, delay), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drop pending tasks of the given queue and wait for the running one. Calling from a task of the same queue does
+     * not wait.
+     *
+     * @param queueId queue ID
+     */
+    public synchronized void closeQueue(String queueId) {
+        final TaskQueue queue = queues.get(queueId);
+        if (queue == null) {
+            return;
+        }
+        if (!queue.tasks.isEmpty()) {
+            LOGGER.debug("Dropping {} pending task(s) of queue {}", queue.tasks.size(), queueId);
+            queue.tasks.clear();
+        }
+        readyQueues.remove(queue);
+        while (queue.runningThread != null && queue.runningThread != Thread.currentThread()) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (queue.runningThread == null) {
+            queues.remove(queueId);
+        }
+    }
+
+    /**
+     * Get number of pending (not running) tasks.
+     *
+     * @return number of pending tasks
+     */
+    public synchronized int getPendingTaskCount() {
+        return queues.values().stream().mapToInt(q -> q.tasks.size()).sum();
+    }
+
+    private void dispatch() {
+        while (running < maxConcurrency && !readyQueues.isEmpty()) {
+            final TaskQueue queue = readyQueues.poll();
+            final Runnable task = queue.tasks.poll();
+            running++;
+            workers.execute(() -> run(queue, task));
+        }
+    }
+
+    @SuppressWarnings("checkstyle:illegalcatch")
+    private void run(TaskQueue queue, Runnable task) {
+        synchronized (this) {
+            queue.runningThread = Thread.currentThread();
+        }
+        try {
+            task.run();
+        } catch (RuntimeException ex) {
+            LOGGER.error("Task of queue {} failed", queue.id, ex);
+        } finally {
+            synchronized (this) {
+                running--;
+                queue.runningThread = null;
+                if (queue.tasks.isEmpty()) {
+                    queue.scheduled = false;
+                    queues.remove(queue.id, queue);
+                } else {
+                    // queue is served again after the other ready ones
+                    readyQueues.add(queue);
+                }
+                notifyAll();
+                if (workers != null) {
+                    dispatch();
+                }
+            }
+        }
+    }
+
+    private static ExecutorService createWorkers(boolean virtualThreads, int maxConcurrency) {
+        if (virtualThreads) {
+            try {
+                final ExecutorService executor = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                LOGGER.debug("Using virtual threads for configuration mapper tasks");
+                return executor;
+            } catch (ReflectiveOperationException ex) {
+                LOGGER.debug("Virtual threads are not supported, using platform threads");
+            }
+        }
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<>(), THREAD_FACTORY);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static class TaskQueue {
+        private final String id;
+        private final Deque<Runnable> tasks = new ArrayDeque<>();
+        private boolean scheduled;
+        private Thread runningThread;
+
+        TaskQueue(String id) {
+            this.id = id;
+        }
+    }
+}
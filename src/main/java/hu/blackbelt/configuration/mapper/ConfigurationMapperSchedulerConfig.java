@@ -0,0 +1,40 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+@ObjectClassDefinition(name="Configuration mapper scheduler")
+@interface ConfigurationMapperSchedulerConfig {
+
+    @AttributeDefinition(
+            name = "Concurrency limit",
+            description = "Maximum number of mapper tasks (ie. config set passes) executed in parallel."
+    )
+    int maxConcurrency() default 2;
+
+    @AttributeDefinition(
+            name = "Virtual threads",
+            description = "Execute tasks on virtual threads if supported by JVM (Java 21+), platform threads are used otherwise."
+    )
+    boolean virtualThreads() default true;
+}
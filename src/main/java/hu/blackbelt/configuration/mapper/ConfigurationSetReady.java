@@ -0,0 +1,68 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+/**
+ * Readiness service registered by config sets when the initial configurations are written to configuration admin.
+ * Bundles and health checks could wait for this service (filtered by {@link #CONFIG_SET_ID_PROPERTY} property) instead
+ * of polling configurations.
+ */
+@Builder
+@Getter
+@SuppressWarnings("checkstyle:missingctor")
+public class ConfigurationSetReady {
+    public static final String CONFIG_SET_ID_PROPERTY = "configset.id";
+    public static final String TIMESTAMP_PROPERTY = "configset.ready.timestamp";
+    public static final String ENTRIES_PROPERTY = "configset.entries";
+    public static final String CONFIGURATIONS_PROPERTY = "configset.configurations";
+
+    String configSetId;
+
+    /**
+     * Time when initial pass was finished (milliseconds since epoch).
+     */
+    long timestamp;
+
+    /**
+     * Number of configuration entries (templates) processed by initial pass.
+     */
+    int entries;
+
+    /**
+     * Number of configurations written or verified by initial pass.
+     */
+    int configurations;
+
+    Dictionary<String, Object> getServiceProperties() {
+        final Dictionary<String, Object> properties = new Hashtable<>();
+        properties.put(CONFIG_SET_ID_PROPERTY, configSetId);
+        properties.put(TIMESTAMP_PROPERTY, timestamp);
+        properties.put(ENTRIES_PROPERTY, entries);
+        properties.put(CONFIGURATIONS_PROPERTY, configurations);
+        return properties;
+    }
+}
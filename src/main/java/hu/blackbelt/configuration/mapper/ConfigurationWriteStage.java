@@ -0,0 +1,182 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.RateLimiter;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.osgi.service.cm.Configuration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Write stage of a single pass between rendering and configuration admin. Updates are queued and written in batches
+ * throttled by a token bucket (shared by passes of a config set), multiple updates of the same PID are coalesced.
+ * Updates are written immediately if no rate limiter is given. PIDs are added to the written PIDs (once per update)
+ * before configuration admin is called, so configuration events of own updates could be recognized.
+ */
+@Slf4j
+class ConfigurationWriteStage {
+    private final RateLimiter rateLimiter;
+    private final int batchSize;
+    private final Multiset<String> writtenPids;
+    private final Map<String, PendingWrite> pending = new LinkedHashMap<>();
+
+    /**
+     * Maximal number of queued updates.
+     */
+    @Getter
+    private int maxQueueDepth;
+
+    /**
+     * Number of updates replaced by a later update of the same PID.
+     */
+    @Getter
+    private int coalesced;
+
+    /**
+     * Time spent waiting for rate limiter in milliseconds.
+     */
+    @Getter
+    private long throttled;
+
+    ConfigurationWriteStage(RateLimiter rateLimiter, int batchSize) {
+        this(rateLimiter, batchSize, ConcurrentHashMultiset.create());
+    }
+
+    /**
+     * Create write stage.
+     *
+     * @param rateLimiter rate limiter shared by passes, <code>null</code> to write updates immediately
+     * @param batchSize number of updates written at once
+     * @param writtenPids PIDs of updates written (removed if update failed), entries are removed by the caller when
+     *                    configuration event of the update is received
+     */
+    ConfigurationWriteStage(RateLimiter rateLimiter, int batchSize, Multiset<String> writtenPids) {
+        this.rateLimiter = rateLimiter;
+        this.batchSize = Math.max(1, batchSize);
+        this.writtenPids = writtenPids;
+    }
+
+    /**
+     * Queue (or write if not throttled) update of a configuration.
+     *
+     * @param configuration configuration
+     * @param properties new properties
+     * @throws IOException if configuration could not be updated
+     */
+    void write(Configuration configuration, Dictionary<String, Object> properties) throws IOException {
+        if (rateLimiter == null) {
+            update(configuration, properties);
+            return;
+        }
+        if (pending.put(configuration.getPid(), new PendingWrite(configuration, properties)) != null) {
+            coalesced++;
+        }
+        maxQueueDepth = Math.max(maxQueueDepth, pending.size());
+    }
+
+    /**
+     * Get number of queued updates.
+     *
+     * @return queue depth
+     */
+    int getQueueDepth() {
+        return pending.size();
+    }
+
+    /**
+     * Write queued updates batch by batch. Writing is stopped between batches if pass is superseded, remaining updates
+     * are kept in the queue (to be discarded).
+     *
+     * @param superseded returns <code>true</code> if a newer pass is requested
+     * @param failed invoked with PID and exception of failed updates
+     * @return <code>false</code> if writing is stopped because pass is superseded
+     */
+    @SuppressWarnings("checkstyle:illegalcatch")
+    boolean flush(BooleanSupplier superseded, BiConsumer<String, Exception> failed) {
+        final Iterator<PendingWrite> it = pending.values().iterator();
+        while (it.hasNext()) {
+            if (superseded.getAsBoolean()) {
+                LOGGER.debug("Writing configuration updates is superseded, queued: {}", pending.size());
+                return false;
+            }
+            final List<PendingWrite> batch = new ArrayList<>(batchSize);
+            while (it.hasNext() && batch.size() < batchSize) {
+                batch.add(it.next());
+                it.remove();
+            }
+            throttled += Math.round(rateLimiter.acquire(batch.size()) * 1000);
+            for (PendingWrite write : batch) {
+                try {
+                    update(write.configuration, write.properties);
+                } catch (IOException | RuntimeException ex) {
+                    failed.accept(write.configuration.getPid(), ex);
+                }
+            }
+            LOGGER.trace("Configuration updates written: {}, queued: {}", batch.size(), pending.size());
+        }
+        return true;
+    }
+
+    @SuppressWarnings("checkstyle:illegalcatch")
+    private void update(Configuration configuration, Dictionary<String, Object> properties) throws IOException {
+        final String pid = configuration.getPid();
+        writtenPids.add(pid);
+        try {
+            configuration.update(properties);
+        } catch (IOException | RuntimeException ex) {
+            // no configuration event is fired
+            writtenPids.remove(pid);
+            throw ex;
+        }
+    }
+
+    /**
+     * Drop all queued updates.
+     *
+     * @return PIDs of dropped updates
+     */
+    Set<String> discard() {
+        final Set<String> pids = new LinkedHashSet<>(pending.keySet());
+        pending.clear();
+        return pids;
+    }
+
+    @AllArgsConstructor
+    private static class PendingWrite {
+        private final Configuration configuration;
+        private final Dictionary<String, Object> properties;
+    }
+}
@@ -20,14 +20,26 @@ package hu.blackbelt.configuration.mapper;
  * #L%
  */
 
+import com.google.common.collect.ImmutableList;
 import lombok.extern.slf4j.Slf4j;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ConfigurationListener;
+import org.osgi.service.component.ComponentConstants;
 import org.osgi.service.component.annotations.*;
 import org.osgi.service.metatype.annotations.Designate;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 @Component(name = "configset", immediate = true, configurationPolicy = ConfigurationPolicy.REQUIRE)
 @Designate(ocd = DefaultTemplatedConfigSetConfig.class)
@@ -37,69 +49,415 @@ public class DefaultTemplatedConfigSet {
     @Reference(cardinality = ReferenceCardinality.MANDATORY, policy = ReferencePolicy.STATIC, policyOption = ReferencePolicyOption.GREEDY)
     ConfigurationAdmin configurationAdmin;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY, policy = ReferencePolicy.STATIC, policyOption = ReferencePolicyOption.GREEDY)
+    TemplateDiscoveryService templateDiscoveryService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY, policy = ReferencePolicy.STATIC, policyOption = ReferencePolicyOption.GREEDY)
+    ConfigurationMapperScheduler scheduler;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY, policy = ReferencePolicy.STATIC, policyOption = ReferencePolicyOption.GREEDY)
+    ConfigurationConsumerTracker consumerTracker;
+
+    @Reference(cardinality = ReferenceCardinality.MULTIPLE, policy = ReferencePolicy.DYNAMIC)
+    volatile List<ConfigurationChangeListener> configurationChangeListeners;
+
+    @Reference(cardinality = ReferenceCardinality.MULTIPLE, policy = ReferencePolicy.DYNAMIC)
+    private volatile List<TemplateEngine> templateEngines;
+
+    // journal events are recorded without the pass lock (held by running passes)
+    private final Object journalLock = new Object();
+    private ConfigurationJournal journal;
+
     private OsgiTemplatedConfigurationSetHandler osgiTemplatedConfigurationSetHandler;
-    private TemplateResourceBundleTracker templateResourceBundleTracker;
+    private TemplateDiscoveryService.Subscription templateSubscription;
+    private TemplateDiscoveryService.Subscription consumerSubscription;
+    private TemplateDirectoryWatcher directoryWatcher;
+    private List<ConfigurationEntry> configurationEntries = Collections.emptyList();
+    private ServiceRegistration<ConfigurationSetReady> readinessRegistration;
+    private ServiceRegistration<ConfigurationListener> configurationListenerRegistration;
+    private Executor executor;
+    private ScheduledFuture<?> retryFuture;
+    private volatile List<ConfigurationEntry> bundleEntries = Collections.emptyList();
+    private volatile List<ConfigurationEntry> directoryEntries = Collections.emptyList();
+    private final AtomicBoolean entriesChanged = new AtomicBoolean();
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicBoolean consumersChanged = new AtomicBoolean();
+    private volatile boolean stale;
+    private BundleContext readinessContext;
 
     private String id;
+    private volatile Map<String, Object> configSetProperties;
     private String envPrefix;
     private String templatePath;
+    private String templateDirectory;
+    private long templateDirectoryDebounce;
     private List<TemplateProcessor.VariableScope> variableScopePrecedence;
+    private boolean retainConfigurations;
 
     @Activate
     protected void activate(DefaultTemplatedConfigSetConfig config, BundleContext context, Map<String, Object> properties) {
         id = String.valueOf(properties.get(Constants.SERVICE_PID));
         LOGGER.info("Activating config set: " + id);
+        recordConfigSet(ConfigurationJournal.ACTIVATED, properties);
 
         templatePath = config.templatePath();
         envPrefix = config.envPrefix();
         variableScopePrecedence = Collections.unmodifiableList(loadVariableSciptPrecedence(config.variableScopePrecedence()));
+        retainConfigurations = config.retainConfigurations();
 
         osgiTemplatedConfigurationSetHandler = new OsgiTemplatedConfigurationSetHandler(
                 id,
                 configurationAdmin,
                 envPrefix,
                 properties,
-                variableScopePrecedence);
+                variableScopePrecedence,
+                loadRenderBudget(config));
+        applyOptions(osgiTemplatedConfigurationSetHandler, config, consumerTracker::hasConsumer, this::findTemplateEngine);
+        // configurations changed by others are reconciled even if their rendered output is unchanged
+        configurationListenerRegistration = context.registerService(ConfigurationListener.class, osgiTemplatedConfigurationSetHandler, null);
 
-        templateResourceBundleTracker = new TemplateResourceBundleTracker(
-                context,
+        // passes of config set are executed one by one by the shared scheduler
+        executor = scheduler.getExecutor(id);
+        // consumers are tracked only for lazy config sets, before the initial pass
+        subscribeConsumers(config.lazy());
+        templateSubscription = templateDiscoveryService.subscribe(
                 templatePath,
-                envPrefix,
-                o -> { osgiTemplatedConfigurationSetHandler.processConfigs(o); return null; });
+                o -> { scheduleConfigs(o); return null; });
+        startDirectoryWatcher(config);
 
+        // initial entries are scheduled on subscription, config set is ready when they are processed
+        executor.execute(() -> registerReadiness(context));
     }
 
     @Modified
     protected void update(DefaultTemplatedConfigSetConfig config, Map<String, Object> properties) {
+        // running pass is superseded, options are set without waiting for it
+        generation.incrementAndGet();
         LOGGER.info("Updating config set: " + id);
+        recordConfigSet(ConfigurationJournal.UPDATED, properties);
+
+        final boolean templatePathChanged = !Objects.equals(templatePath, config.templatePath());
+        if (templatePathChanged) {
+            LOGGER.info("Changing template path of config set {} from {} to {}", id, templatePath, config.templatePath());
+            templateSubscription.close();
+        }
 
-        if (!Objects.equals(templatePath, config.templatePath())) {
-            LOGGER.warn("Changing template path without restarting component is not supported");
+        final List<TemplateProcessor.VariableScope> newScopePrecedence = Collections.unmodifiableList(loadVariableSciptPrecedence(config.variableScopePrecedence()));
+        retainConfigurations = config.retainConfigurations();
+        final boolean templateDirectoryChanged = !Objects.equals(templateDirectory, config.templateDirectory())
+                || templateDirectoryDebounce != config.templateDirectoryDebounce();
+
+        subscribeConsumers(config.lazy());
+
+        // options are set without waiting for the running pass (it is superseded), all entries have to be processed by
+        // the next pass
+        stale = true;
+        applyOptions(osgiTemplatedConfigurationSetHandler, config, consumerTracker::hasConsumer, this::findTemplateEngine);
+        if (!Objects.equals(envPrefix, config.envPrefix()) || !Objects.equals(variableScopePrecedence, newScopePrecedence)) {
+            LOGGER.info("Changing environment prefix and/or variable scope precedence of config set {}", id);
+            envPrefix = config.envPrefix();
+            variableScopePrecedence = newScopePrecedence;
+            osgiTemplatedConfigurationSetHandler.updateVariables(properties, envPrefix, variableScopePrecedence);
+        } else {
+            osgiTemplatedConfigurationSetHandler.updateOsgiConfigs(properties);
+        }
+        if (templatePathChanged) {
+            templatePath = config.templatePath();
+            bundleEntries = Collections.emptyList();
         }
-        if (!Objects.equals(envPrefix, config.envPrefix())) {
-            LOGGER.warn("Changing environment prefix without restarting component is not supported");
+
+        if (templateDirectoryChanged) {
+            stopDirectoryWatcher();
+            startDirectoryWatcher(config);
         }
-        final List<TemplateProcessor.VariableScope> newScopePrecedence = loadVariableSciptPrecedence(config.variableScopePrecedence());
-        if (!Objects.equals(variableScopePrecedence, newScopePrecedence)) {
-            LOGGER.warn("Changing variable scope precedence without restarting component is not supported");
+
+        // entries of new template path are processed on subscription (outside of lock to keep lock ordering of trackers)
+        if (templatePathChanged) {
+            templateSubscription = templateDiscoveryService.subscribe(
+                    templatePath,
+                    o -> { scheduleConfigs(o); return null; });
         }
 
-        osgiTemplatedConfigurationSetHandler.updateOsgiConfigs(properties);
-        templateResourceBundleTracker.refreshAllBundles();
+        if (templatePathChanged || templateDirectoryChanged) {
+            scheduleEntries();
+        } else {
+            // only configurations with changed output are written (checksum is unchanged otherwise)
+            executor.execute(this::reprocessConfigs);
+        }
     }
 
     @Deactivate
     @SuppressWarnings("checkstyle:illegalcatch")
-    protected void deactivate() {
+    protected void deactivate(int reason) {
+        // running pass is superseded, so it is finished at the next entry boundary
+        generation.incrementAndGet();
         LOGGER.info("Deactivating config set: " + id);
+        recordConfigSet(ConfigurationJournal.DEACTIVATED, configSetProperties);
 
-        templateResourceBundleTracker.destroy();
-        osgiTemplatedConfigurationSetHandler.destroy();
+        templateSubscription.close();
+        subscribeConsumers(false);
+        stopDirectoryWatcher();
+        // pending passes are dropped, running one is finished
+        synchronized (this) {
+            cancelRetry();
+        }
+        scheduler.closeQueue(id);
+        configurationListenerRegistration.unregister();
+        synchronized (this) {
+            readinessContext = null;
+            if (readinessRegistration != null) {
+                readinessRegistration.unregister();
+                readinessRegistration = null;
+            }
+        }
+        if (retainConfigurations && reason != ComponentConstants.DEACTIVATION_REASON_CONFIGURATION_DELETED
+                && reason != ComponentConstants.DEACTIVATION_REASON_DISPOSED) {
+            // configurations are reconciled by checksum when config set is activated again, config set is not activated
+            // again if its configuration is deleted or it is disposed
+            LOGGER.info("Retaining configurations of config set: " + id);
+        } else {
+            osgiTemplatedConfigurationSetHandler.destroy();
+        }
 
         id = null;
     }
 
-    private List<TemplateProcessor.VariableScope> loadVariableSciptPrecedence(String value) {
+    private void scheduleConfigs(List<ConfigurationEntry> entries) {
+        bundleEntries = entries;
+        scheduleEntries();
+    }
+
+    private void scheduleDirectoryConfigs(List<ConfigurationEntry> entries) {
+        directoryEntries = entries;
+        scheduleEntries();
+    }
+
+    private void scheduleEntries() {
+        // running pass is superseded, changes are merged until the pending pass is started, so only the latest entries
+        // are processed
+        generation.incrementAndGet();
+        if (!entriesChanged.getAndSet(true)) {
+            executor.execute(this::processPendingConfigs);
+        }
+    }
+
+    private void subscribeConsumers(boolean lazy) {
+        if (lazy && consumerSubscription == null) {
+            consumerSubscription = consumerTracker.subscribe(this::consumersAdded);
+        } else if (!lazy && consumerSubscription != null) {
+            consumerSubscription.close();
+            consumerSubscription = null;
+        }
+    }
+
+    private void startDirectoryWatcher(DefaultTemplatedConfigSetConfig config) {
+        templateDirectory = config.templateDirectory();
+        templateDirectoryDebounce = config.templateDirectoryDebounce();
+        directoryEntries = Collections.emptyList();
+        if (templateDirectory == null || templateDirectory.trim().isEmpty()) {
+            return;
+        }
+        try {
+            directoryWatcher = new TemplateDirectoryWatcher(Paths.get(templateDirectory), templateDirectoryDebounce,
+                    o -> { scheduleDirectoryConfigs(o); return null; });
+            if (!directoryWatcher.getConfigEntries().isEmpty()) {
+                scheduleDirectoryConfigs(directoryWatcher.getConfigEntries());
+            }
+        } catch (IOException ex) {
+            LOGGER.error("Unable to watch template directory {} of config set {}", templateDirectory, id, ex);
+        }
+    }
+
+    private void stopDirectoryWatcher() {
+        if (directoryWatcher != null) {
+            directoryWatcher.destroy();
+            directoryWatcher = null;
+        }
+    }
+
+    private void consumersAdded(Set<String> pids) {
+        // deferred configurations are rendered by a new pass (merged with other consumer changes until it is started)
+        if (pids.stream().anyMatch(osgiTemplatedConfigurationSetHandler::isDeferred) && !consumersChanged.getAndSet(true)) {
+            executor.execute(() -> {
+                consumersChanged.set(false);
+                reprocessConfigs();
+            });
+        }
+    }
+
+    private void processPendingConfigs() {
+        if (entriesChanged.getAndSet(false)) {
+            processConfigs(ImmutableList.<ConfigurationEntry>builder().addAll(bundleEntries).addAll(directoryEntries).build());
+        }
+    }
+
+    private synchronized void reprocessConfigs() {
+        runPass(configurationEntries, null);
+    }
+
+    private synchronized void processConfigs(List<ConfigurationEntry> entries) {
+        final ConfigurationEntryDelta delta = ConfigurationEntryDelta.diff(configurationEntries, entries);
+        configurationEntries = entries;
+        if (delta.isEmpty() && !stale) {
+            LOGGER.debug("Configuration entries of config set {} are unchanged", id);
+            return;
+        }
+        LOGGER.trace("Configuration entries of config set {} changed: {}", id, delta);
+        // only affected entries are rendered if configurations are up to date
+        runPass(entries, stale ? null : delta);
+    }
+
+    @SuppressWarnings("checkstyle:illegalcatch")
+    private void runPass(List<ConfigurationEntry> entries, ConfigurationEntryDelta delta) {
+        // pass is cancelled at the next entry boundary when a newer one is requested
+        final long passGeneration = generation.get();
+        final ConfigurationChangeEvent event;
+        try {
+            event = osgiTemplatedConfigurationSetHandler.processConfigs(entries, delta,
+                    () -> generation.get() != passGeneration);
+        } catch (RuntimeException ex) {
+            // entries are processed again by the next pass
+            LOGGER.error("Configuration pass of config set {} failed", id, ex);
+            stale = true;
+            return;
+        }
+        stale = event.isCancelled();
+        fireConfigurationsChanged(event);
+        scheduleRetry();
+        if (!stale && readinessContext != null) {
+            final BundleContext context = readinessContext;
+            readinessContext = null;
+            registerReadiness(context);
+        }
+    }
+
+    private synchronized void retryFailedConfigs() {
+        if (id == null) {
+            return;
+        }
+        final long passGeneration = generation.get();
+        final ConfigurationChangeEvent event = osgiTemplatedConfigurationSetHandler.retryFailed(
+                () -> generation.get() != passGeneration);
+        fireConfigurationsChanged(event);
+        scheduleRetry();
+    }
+
+    private void scheduleRetry() {
+        // failed configurations are retried one by one instead of processing all entries again
+        cancelRetry();
+        final long delay = osgiTemplatedConfigurationSetHandler.getRetryDelay();
+        if (delay >= 0 && id != null) {
+            LOGGER.debug("Retrying failed configurations of config set {} in {} ms", id, delay);
+            retryFuture = scheduler.schedule(id, this::retryFailedConfigs, delay);
+        }
+    }
+
+    private void cancelRetry() {
+        if (retryFuture != null) {
+            retryFuture.cancel(false);
+            retryFuture = null;
+        }
+    }
+
+    private synchronized void registerReadiness(BundleContext context) {
+        if (id == null) {
+            return;
+        }
+        if (stale) {
+            // initial pass is superseded or failed, config set is ready when a pass is completed
+            readinessContext = context;
+            return;
+        }
+        final ConfigurationSetReady ready = ConfigurationSetReady.builder()
+                .configSetId(id)
+                .timestamp(System.currentTimeMillis())
+                .entries(configurationEntries.size())
+                .configurations(osgiTemplatedConfigurationSetHandler.getConfigurationCount())
+                .build();
+        readinessRegistration = context.registerService(ConfigurationSetReady.class, ready, ready.getServiceProperties());
+        LOGGER.info("Config set {} is ready, entries: {}, configurations: {}", id, ready.getEntries(), ready.getConfigurations());
+    }
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    void bindConfigurationJournal(ConfigurationJournal configurationJournal) {
+        synchronized (journalLock) {
+            journal = configurationJournal;
+            final Map<String, Object> properties = configSetProperties;
+            if (properties != null) {
+                // active config set is recorded, so journal could be replayed from the current state
+                configurationJournal.configSetEvent(ConfigurationJournal.ACTIVATED,
+                        String.valueOf(properties.get(Constants.SERVICE_PID)), properties);
+            }
+        }
+    }
+
+    void unbindConfigurationJournal(ConfigurationJournal configurationJournal) {
+        synchronized (journalLock) {
+            if (journal == configurationJournal) {
+                journal = null;
+            }
+        }
+    }
+
+    private void recordConfigSet(String type, Map<String, Object> properties) {
+        synchronized (journalLock) {
+            // properties of deactivated config set are not recorded when journal is bound later
+            configSetProperties = ConfigurationJournal.DEACTIVATED.equals(type) ? null : properties;
+            if (journal != null) {
+                journal.configSetEvent(type, String.valueOf(properties.get(Constants.SERVICE_PID)), properties);
+            }
+        }
+    }
+
+    private TemplateEngine findTemplateEngine(String name) {
+        final List<TemplateEngine> engines = templateEngines;
+        if (engines == null) {
+            return null;
+        }
+        return engines.stream().filter(e -> name.equals(e.getName())).findFirst().orElse(null);
+    }
+
+    @SuppressWarnings("checkstyle:illegalcatch")
+    private void fireConfigurationsChanged(ConfigurationChangeEvent event) {
+        final List<ConfigurationChangeListener> listeners = configurationChangeListeners;
+        if (listeners == null) {
+            return;
+        }
+        for (ConfigurationChangeListener listener : listeners) {
+            try {
+                listener.configurationsChanged(event);
+            } catch (RuntimeException ex) {
+                LOGGER.error("Configuration change listener failed", ex);
+            }
+        }
+    }
+
+    /**
+     * Apply options of config set which are changed without creating the handler again (used by journal replay too).
+     *
+     * @param handler handler of config set
+     * @param config options of config set
+     * @param consumerFilter consumer filter applied in lazy mode
+     * @param templateEngines resolves additional template engines by name
+     */
+    static void applyOptions(OsgiTemplatedConfigurationSetHandler handler, DefaultTemplatedConfigSetConfig config,
+                             Predicate<String> consumerFilter, Function<String, TemplateEngine> templateEngines) {
+        handler.setRenderBudget(loadRenderBudget(config));
+        handler.setWriteLimit(config.writeRate(), config.writeBatchSize());
+        handler.setRetryPolicy(config.retryInitialDelay(), config.retryMaxDelay(), config.retryLimit());
+        handler.setConsumerFilter(config.lazy() ? consumerFilter : null);
+        handler.setTemplateEngines(config.templateEngine(), templateEngines);
+    }
+
+    static RenderBudget loadRenderBudget(DefaultTemplatedConfigSetConfig config) {
+        return RenderBudget.builder()
+                .maxRenderTime(config.renderTimeout())
+                .maxOutputSize(config.renderMaxOutputSize())
+                .maxInstructions(config.renderMaxInstructions())
+                .build();
+    }
+
+    static List<TemplateProcessor.VariableScope> loadVariableSciptPrecedence(String value) {
         final List<TemplateProcessor.VariableScope> list = new LinkedList<>();
 
         if (value != null) {
@@ -32,6 +32,18 @@ import org.osgi.service.metatype.annotations.ObjectClassDefinition;
     )
     String templatePath() default "/config-templates";
 
+    @AttributeDefinition(
+            name = "Template directory",
+            description = "Local directory watched for templates (in addition to bundles), empty to disable."
+    )
+    String templateDirectory() default "";
+
+    @AttributeDefinition(
+            name = "Template directory debounce",
+            description = "Quiet period in milliseconds after changes of template directory before it is rescanned."
+    )
+    long templateDirectoryDebounce() default 500;
+
     @AttributeDefinition(
             name = "Environment prefix",
             description = "Environment prefix used to get environment variables. For example: When X_ prefix used X_PART1_PART2 env variabsle used " +
@@ -44,4 +56,77 @@ import org.osgi.service.metatype.annotations.ObjectClassDefinition;
             description = "Comma-separated list of variable scope precedences (first: lowest, last: highest)."
     )
     String variableScopePrecedence() default "osgi,environment,system";
+
+    @AttributeDefinition(
+            name = "Template engine",
+            description = "Template engine used by templates without engine specified by XML spec (freemarker, " +
+                    "substitution or name of a registered engine)."
+    )
+    String templateEngine() default "freemarker";
+
+    @AttributeDefinition(
+            name = "Render timeout",
+            description = "Maximum wall time of rendering a single template in milliseconds (0: unlimited)."
+    )
+    long renderTimeout() default 0;
+
+    @AttributeDefinition(
+            name = "Render output size limit",
+            description = "Maximum number of characters generated by a single template (0: unlimited)."
+    )
+    long renderMaxOutputSize() default 0;
+
+    @AttributeDefinition(
+            name = "Render instruction limit",
+            description = "Maximum number of output instructions (text blocks and interpolations writing output) executed by a single template (0: unlimited). Loops without output are limited by render timeout."
+    )
+    long renderMaxInstructions() default 0;
+
+    @AttributeDefinition(
+            name = "Write rate",
+            description = "Maximum number of configuration updates per second written to configuration admin (0: unlimited). " +
+                    "Throttled updates are queued, coalesced by PID and written before the next priority tier."
+    )
+    double writeRate() default 0;
+
+    @AttributeDefinition(
+            name = "Write batch size",
+            description = "Number of throttled configuration updates written together."
+    )
+    int writeBatchSize() default 1;
+
+    @AttributeDefinition(
+            name = "Retry delay",
+            description = "Delay in milliseconds before failed configurations are rendered and written again. Delay is " +
+                    "doubled by each failed retry."
+    )
+    long retryInitialDelay() default 1000;
+
+    @AttributeDefinition(
+            name = "Maximum retry delay",
+            description = "Maximum delay in milliseconds between retries of failed configurations."
+    )
+    long retryMaxDelay() default 60000;
+
+    @AttributeDefinition(
+            name = "Retry limit",
+            description = "Maximum number of retries of failed configurations (0: failed configurations are rendered " +
+                    "again by the next pass only)."
+    )
+    int retryLimit() default 5;
+
+    @AttributeDefinition(
+            name = "Lazy",
+            description = "Render and publish configurations only when a consumer (managed service, managed service factory " +
+                    "or DS component) of the PID exists. Deferred configurations are published when the consumer appears."
+    )
+    boolean lazy() default false;
+
+    @AttributeDefinition(
+            name = "Retain configurations",
+            description = "Keep generated configurations when config set is deactivated. Retained configurations are " +
+                    "reconciled (created, updated or deleted by checksum) when config set is activated again. Configurations " +
+                    "are deleted anyway if configuration of config set is deleted."
+    )
+    boolean retainConfigurations() default false;
 }
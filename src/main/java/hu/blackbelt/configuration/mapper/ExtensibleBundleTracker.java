@@ -28,11 +28,19 @@ import org.osgi.framework.BundleEvent;
 import org.osgi.util.tracker.BundleTracker;
 import org.osgi.util.tracker.BundleTrackerCustomizer;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
@@ -46,16 +54,23 @@ import java.util.concurrent.ThreadFactory;
  *
  * This extender modifies behaviour to not leak platform thread
  * in {@link BundleTrackerCustomizer#addingBundle(Bundle, BundleEvent)}
- * but deliver this event from its own single threaded executor.
+ * but deliver this event from its own single threaded executor
+ * (or from the given one, ie. a queue of {@link ConfigurationMapperScheduler}).
  *
- * If bundle is removed before event for adding bundle was executed,
+ * If bundle is removed before event for adding bundle was started,
  * that event is cancelled. If addingBundle event is currently in progress
- * or was already executed, platform thread is block untill addingBundle
- * finishes so bundle could be removed correctly in platform thread.
+ * or was already executed, removal is queued behind it on the same executor,
+ * so platform thread is not blocked. Removal is executed in platform thread
+ * with bounded wait only if the executor rejects it (ie. tracker is closed).
  *
- *
- * Method {@link BundleTrackerCustomizer#removedBundle(Bundle, BundleEvent, Object)}
- * is never invoked on registered trackers.
+ * Additional customizers are independent, they are invoked in parallel
+ * after the primary one, the event is finished when all of them are finished.
+ * The event thread invokes the first additional customizer itself, the others
+ * are submitted to the fan-out executor (a cached pool of the tracker by
+ * default). Customizers not started by the fan-out executor yet are invoked
+ * by the event thread too, so waiting for them never depends on free threads
+ * of the fan-out executor (and could not deadlock if it is a shared or
+ * saturated pool). Customizers must not wait for events of the same tracker.
  *
  * @param <T>
  */
@@ -63,7 +78,17 @@ import java.util.concurrent.ThreadFactory;
 public final class ExtensibleBundleTracker<T> extends BundleTracker<Future<T>> {
     private static final ThreadFactory THREAD_FACTORY = new ThreadFactoryBuilder()
             .setNameFormat("config-bundle-tracker-%d").build();
-    private final ExecutorService eventExecutor;
+    private static final ThreadFactory FAN_OUT_THREAD_FACTORY = new ThreadFactoryBuilder()
+            .setNameFormat("config-bundle-tracker-fan-out-%d").setDaemon(true).build();
+    private static final long REMOVAL_TIMEOUT_SECONDS = 30;
+    private static final int NEW = 0;
+    private static final int STARTED = 1;
+    private static final int WITHDRAWN = 2;
+
+    private final Executor eventExecutor;
+    private final ExecutorService ownExecutor;
+    private final Executor fanOutExecutor;
+    private final ExecutorService ownFanOutExecutor;
     private final BundleTrackerCustomizer<T> primaryTracker;
     private final BundleTrackerCustomizer<?>[] additionalTrackers;
 
@@ -75,17 +100,76 @@ public final class ExtensibleBundleTracker<T> extends BundleTracker<Future<T>> {
     public ExtensibleBundleTracker(final BundleContext context, final int bundleState,
                                    final BundleTrackerCustomizer<T> primaryBundleTrackerCustomizer,
                                    final BundleTrackerCustomizer<?>... additionalBundleTrackerCustomizers) {
+        this(context, bundleState, Executors.newSingleThreadExecutor(THREAD_FACTORY), true, null,
+                primaryBundleTrackerCustomizer, additionalBundleTrackerCustomizers);
+    }
+
+    /**
+     * Create tracker delivering adding events from the given executor. Executor have to run tasks in submission order
+     * (one by one), it is not shut down by tracker.
+     *
+     * @param context bundle context
+     * @param bundleState state mask of tracked bundles
+     * @param executor executor of adding events
+     * @param primaryBundleTrackerCustomizer primary customizer
+     * @param additionalBundleTrackerCustomizers additional customizers
+     */
+    public ExtensibleBundleTracker(final BundleContext context, final int bundleState, final Executor executor,
+                                   final BundleTrackerCustomizer<T> primaryBundleTrackerCustomizer,
+                                   final BundleTrackerCustomizer<?>... additionalBundleTrackerCustomizers) {
+        this(context, bundleState, executor, false, null, primaryBundleTrackerCustomizer, additionalBundleTrackerCustomizers);
+    }
+
+    /**
+     * Create tracker delivering adding events from the given executor and invoking additional customizers on the
+     * fan-out executor. Fan-out executor is not shut down by tracker, any executor could be used (see class
+     * documentation), it should not run tasks in the threads of event executor.
+     *
+     * @param context bundle context
+     * @param bundleState state mask of tracked bundles
+     * @param executor executor of adding and removal events (tasks have to be run in submission order, one by one)
+     * @param fanOutExecutor executor of additional customizers except the first one (null: own pool of tracker)
+     * @param primaryBundleTrackerCustomizer primary customizer
+     * @param additionalBundleTrackerCustomizers additional customizers
+     */
+    public ExtensibleBundleTracker(final BundleContext context, final int bundleState, final Executor executor,
+                                   final Executor fanOutExecutor,
+                                   final BundleTrackerCustomizer<T> primaryBundleTrackerCustomizer,
+                                   final BundleTrackerCustomizer<?>... additionalBundleTrackerCustomizers) {
+        this(context, bundleState, executor, false, fanOutExecutor, primaryBundleTrackerCustomizer, additionalBundleTrackerCustomizers);
+    }
+
+    private ExtensibleBundleTracker(final BundleContext context, final int bundleState, final Executor executor,
+                                    final boolean ownExecutor, final Executor fanOutExecutor,
+                                    final BundleTrackerCustomizer<T> primaryBundleTrackerCustomizer,
+                                    final BundleTrackerCustomizer<?>... additionalBundleTrackerCustomizers) {
         super(context, bundleState, null);
         this.primaryTracker = primaryBundleTrackerCustomizer;
         this.additionalTrackers = additionalBundleTrackerCustomizers;
-        eventExecutor = Executors.newSingleThreadExecutor(THREAD_FACTORY);
+        this.eventExecutor = executor;
+        this.ownExecutor = ownExecutor ? (ExecutorService) executor : null;
+        // threads of own fan-out executor are started only if there are customizers to invoke in parallel
+        this.ownFanOutExecutor = fanOutExecutor == null && additionalBundleTrackerCustomizers.length > 1
+                ? Executors.newCachedThreadPool(FAN_OUT_THREAD_FACTORY) : null;
+        this.fanOutExecutor = fanOutExecutor != null ? fanOutExecutor : ownFanOutExecutor;
         LOGGER.trace("Registered as extender with context {} and bundle state {}", context, bundleState);
     }
 
+    @Override
+    public void close() {
+        super.close();
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+        if (ownFanOutExecutor != null) {
+            ownFanOutExecutor.shutdown();
+        }
+    }
+
     @Override
     public Future<T> addingBundle(final Bundle bundle, final BundleEvent event) {
         LOGGER.trace("Submiting AddingBundle for bundle {} and event {} to be processed asynchronously", bundle,event);
-        Future<T> future = eventExecutor.submit(new Callable<T>() {
+        AddingTask future = new AddingTask(new Callable<T>() {
             @Override
             public T call() throws Exception {
                 try {
@@ -105,6 +189,7 @@ public final class ExtensibleBundleTracker<T> extends BundleTracker<Future<T>> {
                 }
             }
         });
+        eventExecutor.execute(future);
         return future;
     }
 
@@ -116,15 +201,25 @@ public final class ExtensibleBundleTracker<T> extends BundleTracker<Future<T>> {
 
     @Override
     public void removedBundle(final Bundle bundle, final BundleEvent event, final Future<T> object) {
-        if(!object.isDone() && object.cancel(false)) {
-            // We canceled adding event before it was processed
+        if (((AddingTask) object).withdraw()) {
+            // We canceled adding event before it was started
             // so it is safe to return
             LOGGER.trace("Adding Bundle event for {} was cancelled. No additional work required.",bundle);
             return;
         }
+        try {
+            // adding event is in progress or finished, removal is executed after it
+            eventExecutor.execute(() -> removeBundle(bundle, event, object));
+        } catch (RejectedExecutionException e) {
+            LOGGER.trace("Removal of bundle {} is rejected by executor, removing in caller thread", bundle);
+            removeBundle(bundle, event, object);
+        }
+    }
+
+    private void removeBundle(final Bundle bundle, final BundleEvent event, final Future<T> object) {
         try {
             LOGGER.trace("Invoking removedBundle event for {}",bundle);
-            primaryTracker.removedBundle(bundle, event, object.get());
+            primaryTracker.removedBundle(bundle, event, object.get(REMOVAL_TIMEOUT_SECONDS, TimeUnit.SECONDS));
             forEachAdditionalBundle(new BundleStrategy() {
                 @Override
                 public void execute(final BundleTrackerCustomizer<?> tracker) {
@@ -138,8 +233,45 @@ public final class ExtensibleBundleTracker<T> extends BundleTracker<Future<T>> {
     }
 
     private void forEachAdditionalBundle(final BundleStrategy lambda) {
-        for (BundleTrackerCustomizer<?> trac : additionalTrackers) {
-            lambda.execute(trac);
+        if (additionalTrackers.length == 0) {
+            return;
+        }
+        final List<FutureTask<Void>> tasks = new ArrayList<>(additionalTrackers.length - 1);
+        for (int i = 1; i < additionalTrackers.length; i++) {
+            final BundleTrackerCustomizer<?> trac = additionalTrackers[i];
+            final FutureTask<Void> task = new FutureTask<>(() -> lambda.execute(trac), null);
+            tasks.add(task);
+            try {
+                fanOutExecutor.execute(task);
+            } catch (RejectedExecutionException e) {
+                LOGGER.trace("Additional customizer is rejected by fan-out executor, invoking in event thread");
+            }
+        }
+        RuntimeException failure = null;
+        try {
+            lambda.execute(additionalTrackers[0]);
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        for (FutureTask<Void> task : tasks) {
+            // no-op if the task is already started by the fan-out executor
+            task.run();
+        }
+        for (FutureTask<Void> task : tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for additional customizers", e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
         }
     }
 
@@ -147,4 +279,25 @@ public final class ExtensibleBundleTracker<T> extends BundleTracker<Future<T>> {
         void execute(BundleTrackerCustomizer<?> tracker);
     }
 
+    /**
+     * Adding event which could be withdrawn until it is started.
+     */
+    private final class AddingTask extends FutureTask<T> {
+        private final AtomicInteger state = new AtomicInteger(NEW);
+
+        AddingTask(final Callable<T> callable) {
+            super(callable);
+        }
+
+        @Override
+        public void run() {
+            if (state.compareAndSet(NEW, STARTED)) {
+                super.run();
+            }
+        }
+
+        boolean withdraw() {
+            return state.compareAndSet(NEW, WITHDRAWN) && cancel(false);
+        }
+    }
 }
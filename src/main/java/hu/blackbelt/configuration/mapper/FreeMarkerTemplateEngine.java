@@ -0,0 +1,198 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.base.Charsets;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+import freemarker.template.TemplateExceptionHandler;
+import freemarker.template.TemplateHashModel;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.function.Function;
+
+/**
+ * Template engine based on FreeMarker, supporting directives, built-ins and expressions. Template variables are
+ * resolved lazily (by name), so data model is not copied.
+ *
+ * A single engine is shared by all config sets: FreeMarker configuration (with its object wrapper and introspection
+ * cache) is created once and it is not modified after creation, so it could be used by multiple threads. Variables of
+ * config sets are passed when templates are rendered.
+ */
+@Slf4j
+class FreeMarkerTemplateEngine implements TemplateEngine {
+    private static final Set<Template> INTERRUPTIBLE_TEMPLATES = Collections.newSetFromMap(new WeakHashMap<>());
+    private static final MethodHandle INTERRUPTION_CHECKS = findInterruptionChecks();
+    static final String NAME = "freemarker";
+    static final FreeMarkerTemplateEngine SHARED = new FreeMarkerTemplateEngine(createConfiguration());
+
+    private final Configuration configuration;
+
+    private FreeMarkerTemplateEngine(Configuration configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * Get FreeMarker configuration of engine (used to evaluate expressions). Settings of configuration must not be
+     * changed.
+     *
+     * @return FreeMarker configuration
+     */
+    Configuration getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * Drop the given libraries from the cache, they are loaded again when they are included or imported next time.
+     * Other cached libraries are kept.
+     *
+     * @param names names of libraries, see {@link ConfigurationEntry#getLibraryNames()}
+     */
+    void reloadLibraries(Collection<String> names) {
+        for (String name : names) {
+            try {
+                configuration.removeTemplateFromCache(name);
+            } catch (IOException ex) {
+                LOGGER.debug("Unable to evict library {}: {}", name, ex.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public CompiledTemplate compile(String name, Reader source) throws IOException {
+        final Template template = new Template(name, source, configuration);
+        addInterruptionChecks(template);
+        return (variables, out) -> {
+            try {
+                template.process(new VariablesHashModel(variables), out);
+            } catch (TemplateException ex) {
+                throw new IOException(ex.getMessage(), ex);
+            }
+        };
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Configuration createConfiguration() {
+        final Configuration configuration = new InterruptibleConfiguration();
+        configuration.setTemplateExceptionHandler(TemplateExceptionHandler.RETHROW_HANDLER);
+        configuration.setDefaultEncoding(Charsets.UTF_8.name());
+        // included and imported libraries are cached until they are reloaded explicitly
+        configuration.setTemplateLoader(new TemplateLibraryLoader());
+        configuration.setLocalizedLookup(false);
+        configuration.setTemplateUpdateDelay(Integer.MAX_VALUE);
+        return configuration;
+    }
+
+    /**
+     * Make template abortable by interrupting the rendering thread (checked at each loop iteration and macro call), so
+     * render time limit is enforced even if template writes nothing.
+     *
+     * FreeMarker has no public API for interruption checks, the internal {@code _CoreAPI.addThreadInterruptedChecks}
+     * (available since 2.3.22, imported version range of FreeMarker is pinned) is called if it exists. Otherwise render
+     * time limit is checked only when template writes output (see {@link RenderBudget}).
+     *
+     * @param template template to process
+     */
+    @SuppressWarnings("checkstyle:illegalcatch")
+    private static void addInterruptionChecks(Template template) {
+        if (INTERRUPTION_CHECKS == null) {
+            return;
+        }
+        synchronized (INTERRUPTIBLE_TEMPLATES) {
+            // cached libraries are processed once, before they are returned to any renderer
+            if (INTERRUPTIBLE_TEMPLATES.add(template)) {
+                try {
+                    INTERRUPTION_CHECKS.invoke(template);
+                } catch (RuntimeException | Error ex) {
+                    throw ex;
+                } catch (Throwable ex) {
+                    throw new IllegalStateException("Unable to add interruption checks to template " + template.getName(), ex);
+                }
+            }
+        }
+    }
+
+    private static MethodHandle findInterruptionChecks() {
+        try {
+            final Class<?> coreApi = Class.forName("freemarker.core._CoreAPI", true, Template.class.getClassLoader());
+            return MethodHandles.publicLookup().findStatic(coreApi, "addThreadInterruptedChecks",
+                    MethodType.methodType(void.class, Template.class));
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            LOGGER.warn("Interruption checks are not supported by FreeMarker {}, render timeout is checked on output only",
+                    Configuration.getVersion());
+            return null;
+        }
+    }
+
+    /**
+     * Configuration making included and imported libraries interruptible too.
+     */
+    private static class InterruptibleConfiguration extends Configuration {
+
+        InterruptibleConfiguration() {
+            super(Configuration.VERSION_2_3_22);
+        }
+
+        @Override
+        public Template getTemplate(String name, Locale locale, Object customLookupCondition, String encoding,
+                                    boolean parseAsFTL, boolean ignoreMissing) throws IOException {
+            final Template template = super.getTemplate(name, locale, customLookupCondition, encoding, parseAsFTL, ignoreMissing);
+            if (template != null) {
+                addInterruptionChecks(template);
+            }
+            return template;
+        }
+    }
+
+    @AllArgsConstructor
+    private class VariablesHashModel implements TemplateHashModel {
+        private final Function<String, Object> variables;
+
+        @Override
+        public TemplateModel get(String key) throws TemplateModelException {
+            return configuration.getObjectWrapper().wrap(variables.apply(key));
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return false;
+        }
+    }
+}
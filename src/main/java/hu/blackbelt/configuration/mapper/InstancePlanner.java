@@ -0,0 +1,226 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.ImmutableMap;
+import hu.blackbelt.osgi.configuration.mapper.v1.xml.ns.definition.ComponentType;
+import hu.blackbelt.osgi.configuration.mapper.v1.xml.ns.definition.Components;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import java.net.URL;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Plans component instances of configuration entries based on their XML specs: resolves factory PIDs, expands list
+ * driven components and groups instances by publication priority. Conditions are evaluated when instances are created.
+ */
+@Slf4j
+class InstancePlanner {
+    static final int DEFAULT_PRIORITY = 0;
+
+    private final TemplateProcessor templateProcessor;
+    private final Unmarshaller unmarshaller;
+
+    InstancePlanner(TemplateProcessor templateProcessor) throws JAXBException {
+        this.templateProcessor = templateProcessor;
+        ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
+        final JAXBContext jc = JAXBContext.newInstance("hu.blackbelt.osgi.configuration.mapper.v1.xml.ns.definition", getClass().getClassLoader());
+        Thread.currentThread().setContextClassLoader(cl);
+        unmarshaller = jc.createUnmarshaller();
+    }
+
+    /**
+     * Unmarshal XML spec.
+     *
+     * @param spec URL of XML spec
+     * @return components
+     * @throws JAXBException if XML spec is invalid
+     */
+    Components readSpec(URL spec) throws JAXBException {
+        return (Components) unmarshaller.unmarshal(spec);
+    }
+
+    /**
+     * Plan component instances of configuration entries. Entries are planned independently: if XML spec of an entry
+     * could not be read or any of its expressions could not be evaluated, no instance of the entry is planned and the
+     * failure is reported, other entries are planned anyway.
+     *
+     * @param entries all configuration entries of config set
+     * @param failed invoked with entries which could not be planned
+     * @return planned instances grouped by priority (highest first)
+     */
+    SortedMap<Integer, List<PlannedInstance>> plan(List<ConfigurationEntry> entries, BiConsumer<ConfigurationEntry, Exception> failed) {
+        return plan(entries, e -> true, failed);
+    }
+
+    /**
+     * Plan component instances of the selected configuration entries.
+     *
+     * @param entries all configuration entries of config set (instance specific templates are collected from)
+     * @param selected selects entries to plan
+     * @param failed invoked with entries which could not be planned
+     * @return planned instances grouped by priority (highest first)
+     */
+    @SuppressWarnings("checkstyle:illegalcatch")
+    SortedMap<Integer, List<PlannedInstance>> plan(List<ConfigurationEntry> entries, Predicate<ConfigurationEntry> selected,
+                                                   BiConsumer<ConfigurationEntry, Exception> failed) {
+        final Map<String, Set<String>> instanceTemplates = getInstanceTemplates(entries);
+        // specs and list expansions are shared by entries of the same spec within a plan
+        final Map<String, Components> specs = new HashMap<>();
+        final Map<String, Map<String, Map<String, Object>>> expansions = new HashMap<>();
+        // Collecting instances to create grouped by priority (highest first).
+        final SortedMap<Integer, List<PlannedInstance>> tiers = new TreeMap<>(Comparator.reverseOrder());
+        for (ConfigurationEntry entry : entries) {
+            if (!selected.test(entry)) {
+                continue;
+            }
+            final SortedMap<Integer, List<PlannedInstance>> planned = new TreeMap<>();
+            try {
+                plan(planned, entry, instanceTemplates, specs, expansions);
+            } catch (Exception ex) {
+                failed.accept(entry, ex);
+                continue;
+            }
+            planned.forEach((priority, instances) -> tiers.computeIfAbsent(priority, p -> new ArrayList<>()).addAll(instances));
+        }
+
+        return tiers;
+    }
+
+    @SneakyThrows(JAXBException.class)
+    private void plan(SortedMap<Integer, List<PlannedInstance>> tiers, ConfigurationEntry entry, Map<String, Set<String>> instanceTemplates,
+                      Map<String, Components> specs, Map<String, Map<String, Map<String, Object>>> expansions) {
+        LOGGER.debug("Processing {}", entry.template);
+        if (entry.getSpec().isPresent()) {
+            final String specKey = getSpecKey(entry);
+            if (!specs.containsKey(specKey)) {
+                specs.put(specKey, readSpec(entry.getSpec().get()));
+            }
+            final Components components = specs.get(specKey);
+            final Optional<String> engine = Optional.ofNullable(components).map(Components::getEngine);
+            if (components == null || components.getComponents().isEmpty()) {
+                LOGGER.warn("Missing component instances in configuration mapper XML");
+            } else {
+                if (!entry.getInstance().isPresent()) {
+                    // instances without factory PID and with expression PID will be created based on template without instance name
+                    components.getComponents().stream().filter(c -> c.getForEach() == null && (c.getFactoryPid() == null || c.getFactoryPid().contains("$"))).forEach(c -> {
+                        final String pidName = c.getFactoryPid() != null ? entry.getPidBaseName() + "-" + templateProcessor.resolvePid(entry.getPidBaseName(), Optional.ofNullable(c.getFactoryPid())) : entry.getPidBaseName();
+                        plan(tiers, c.getPriority(), engine, entry, pidName, Optional.ofNullable(c.getCondition()), Collections.emptyMap());
+                    });
+                    // list elements without instance specific template will be created based on template without instance name
+                    final Set<String> instances = instanceTemplates.getOrDefault(specKey, Collections.emptySet());
+                    components.getComponents().stream().filter(c -> c.getForEach() != null).forEach(c ->
+                        expand(expansions, specKey, entry, components, c).forEach((instance, variables) -> {
+                            if (!instances.contains(instance)) {
+                                plan(tiers, c.getPriority(), engine, entry, entry.getPidBaseName() + "-" + instance, Optional.ofNullable(c.getCondition()), variables);
+                            }
+                        }));
+                } else {
+                    // matching factory PID will be instantiated
+                    components.getComponents().stream().filter(c -> c.getForEach() == null && Objects.equals(
+                            templateProcessor.resolvePid(entry.getPidBaseName(), Optional.ofNullable(c.getFactoryPid())), entry.getInstance().get())).forEach(c ->
+                        plan(tiers, c.getPriority(), engine, entry, entry.getPidBaseName() + "-" + entry.getInstance().get(), Optional.ofNullable(c.getCondition()), Collections.emptyMap()));
+                    // matching list element will be instantiated
+                    components.getComponents().stream().filter(c -> c.getForEach() != null).forEach(c -> {
+                        final Map<String, Object> variables = expand(expansions, specKey, entry, components, c).get(entry.getInstance().get());
+                        if (variables != null) {
+                            plan(tiers, c.getPriority(), engine, entry, entry.getPidBaseName() + "-" + entry.getInstance().get(), Optional.ofNullable(c.getCondition()), variables);
+                        }
+                    });
+                }
+            }
+        } else {
+            // XML file is not exists
+            plan(tiers, DEFAULT_PRIORITY, Optional.empty(), entry, entry.getPidBaseName(), Optional.empty(), Collections.emptyMap());
+        }
+    }
+
+    private void plan(SortedMap<Integer, List<PlannedInstance>> tiers, int priority, Optional<String> engine, ConfigurationEntry entry,
+                      String pidName, Optional<String> condition, Map<String, Object> variables) {
+        tiers.computeIfAbsent(priority, p -> new ArrayList<>()).add(new PlannedInstance(entry, pidName, condition, variables, engine));
+    }
+
+    private Map<String, Map<String, Object>> expand(Map<String, Map<String, Map<String, Object>>> expansions, String specKey,
+                                                    ConfigurationEntry entry, Components components, ComponentType component) {
+        // list is evaluated once per spec, not once per instance specific template
+        final String key = specKey + "#" + components.getComponents().indexOf(component);
+        Map<String, Map<String, Object>> instances = expansions.get(key);
+        if (instances == null) {
+            instances = expand(entry, component);
+            expansions.put(key, instances);
+        }
+        return instances;
+    }
+
+    /**
+     * Expand component over elements of its list expression.
+     *
+     * @param entry configuration entry
+     * @param component component with list expression
+     * @return loop variables by instance name
+     */
+    private Map<String, Map<String, Object>> expand(ConfigurationEntry entry, ComponentType component) {
+        final Map<String, Map<String, Object>> instances = new LinkedHashMap<>();
+        final String var = component.getForEach().getVar();
+        for (Object element : templateProcessor.evaluateList(entry.getPidBaseName(), component.getForEach().getValue(), component.getForEach().getSeparator())) {
+            final Map<String, Object> variables = ImmutableMap.of(var, element);
+            final String instance = component.getFactoryPid() != null
+                    ? templateProcessor.resolvePid(entry.getPidBaseName(), Optional.of(component.getFactoryPid()), variables)
+                    : String.valueOf(element);
+            if (instance == null || instance.trim().isEmpty()) {
+                LOGGER.warn("Empty factory PID of list element {} in {}", element, entry.getSpec().get());
+            } else if (instances.putIfAbsent(instance, variables) != null) {
+                LOGGER.warn("Duplicated factory PID {} of list element {} in {}", instance, element, entry.getSpec().get());
+            }
+        }
+        return instances;
+    }
+
+    private static Map<String, Set<String>> getInstanceTemplates(List<ConfigurationEntry> entries) {
+        final Map<String, Set<String>> instanceTemplates = new HashMap<>();
+        entries.stream().filter(e -> e.getSpec().isPresent() && e.getInstance().isPresent()).forEach(e ->
+                instanceTemplates.computeIfAbsent(getSpecKey(e), k -> new HashSet<>()).add(e.getInstance().get()));
+        return instanceTemplates;
+    }
+
+    private static String getSpecKey(ConfigurationEntry entry) {
+        return entry.getBundleId() + ":" + entry.getSpec().map(URL::getPath).orElse("");
+    }
+
+    @AllArgsConstructor
+    @Getter
+    static class PlannedInstance {
+        private final ConfigurationEntry entry;
+        private final String pidName;
+        private final Optional<String> condition;
+        private final Map<String, Object> variables;
+        private final Optional<String> engine;
+    }
+}
@@ -20,31 +20,40 @@ package hu.blackbelt.configuration.mapper;
  * #L%
  */
 
-import com.google.common.base.Charsets;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Multiset;
 import com.google.common.collect.Ordering;
-import hu.blackbelt.osgi.configuration.mapper.v1.xml.ns.definition.Components;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.RateLimiter;
+import lombok.AllArgsConstructor;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.service.cm.Configuration;
 import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ConfigurationEvent;
+import org.osgi.service.cm.ConfigurationListener;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Unmarshaller;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 import static hu.blackbelt.configuration.mapper.ConfigState.CHECKSUMCHANGE;
+import static hu.blackbelt.configuration.mapper.ConfigState.DELETED;
+import static hu.blackbelt.configuration.mapper.ConfigState.FAILED;
 import static hu.blackbelt.configuration.mapper.ConfigState.FOREIGN;
 import static hu.blackbelt.configuration.mapper.ConfigState.NEW;
 import static hu.blackbelt.configuration.mapper.ConfigState.UNCHANGED;
+import static hu.blackbelt.configuration.mapper.Utils.escapeFilterValue;
 import static hu.blackbelt.configuration.mapper.Utils.fromDictionary;
 import static hu.blackbelt.configuration.mapper.Utils.getPidName;
-import static hu.blackbelt.configuration.mapper.Utils.loadProperties;
 import static hu.blackbelt.configuration.mapper.Utils.parsePid;
 import static hu.blackbelt.configuration.mapper.Utils.sha1;
 
@@ -57,84 +66,433 @@ import static hu.blackbelt.configuration.mapper.Utils.sha1;
  * supported.
  */
 @Slf4j
-public class OsgiTemplatedConfigurationSetHandler {
+public class OsgiTemplatedConfigurationSetHandler implements ConfigurationListener {
     private static final String CONFIGURATION_CHECKSUM_PROPERTY_NAME = "__osgi_templated_checksum";
     private static final String CONFIGURATION_PROPERTY_NAME = "__osgi_templated_config_name";
     private static final String CONFIGURATION_CREATED_BY_PROPERTY_NAME = "__osgi_templated_created_by";
 
     public static final String UPDATING_CONFIGUTRATION = "Updating configuration pid: %s configEntry: %s state: %s entries: %s";
     private final static String NEWLINE = System.getProperty("line.separator");
+    private static final long DEFAULT_RETRY_INITIAL_DELAY = 1000;
+    private static final long DEFAULT_RETRY_MAX_DELAY = 60000;
+    private static final int DEFAULT_RETRY_LIMIT = 5;
+    private static final int MAX_BACKOFF_SHIFT = 20;
 
     private final String id;
     private final ConfigurationAdmin configAdmin;
-    private final String envPrefix;
     private final TemplateProcessor templateProcessor;
-    private final Unmarshaller unmarshaller;
+    private final InstancePlanner planner;
+    private final AtomicLong passCounter = new AtomicLong();
+    private volatile RateLimiter writeRateLimiter;
+    private volatile int writeBatchSize = 1;
+    private volatile Predicate<String> consumerFilter;
+    // cleared (not replaced) by full passes, retries started before lazy mode is changed could defer PIDs anyway
+    private final Set<String> deferredPids = ConcurrentHashMap.newKeySet();
+    private Map<String, ConfigurationEntry> plannedEntries;
+    // instances failed by previous passes keyed by templated configuration name (template URL of entries could not be
+    // planned), retried with exponential backoff
+    private final Map<String, FailedInstance> failedInstances = new LinkedHashMap<>();
+    private List<ConfigurationEntry> currentEntries = Collections.emptyList();
+    private volatile long retryInitialDelay = DEFAULT_RETRY_INITIAL_DELAY;
+    private volatile long retryMaxDelay = DEFAULT_RETRY_MAX_DELAY;
+    private volatile int retryLimit = DEFAULT_RETRY_LIMIT;
+    // digests of rendered outputs written (or found unchanged) by previous passes keyed by templated configuration name
+    private final Map<String, RenderedOutput> renderedOutputs = new ConcurrentHashMap<>();
+    // templated configuration names of rendered outputs keyed by PID, so configuration events are looked up by PID
+    private final Map<String, String> renderedNames = new ConcurrentHashMap<>();
+    // PIDs updated by passes (once per update) until configuration event of the update is received
+    private final Multiset<String> writtenPids = ConcurrentHashMultiset.create();
 
-    @SneakyThrows(JAXBException.class)
     public OsgiTemplatedConfigurationSetHandler(String id, ConfigurationAdmin configAdmin, String envPrefix,
                                                 Map<String, Object> properties,
                                                 List<TemplateProcessor.VariableScope> variableScopePrecedence) {
+        this(id, configAdmin, envPrefix, properties, variableScopePrecedence, RenderBudget.UNLIMITED);
+    }
+
+    @SneakyThrows(JAXBException.class)
+    public OsgiTemplatedConfigurationSetHandler(String id, ConfigurationAdmin configAdmin, String envPrefix,
+                                                Map<String, Object> properties,
+                                                List<TemplateProcessor.VariableScope> variableScopePrecedence,
+                                                RenderBudget renderBudget) {
         this.id = id;
         this.configAdmin = configAdmin;
-        this.envPrefix = envPrefix;
-        templateProcessor = new TemplateProcessor(properties, envPrefix, variableScopePrecedence);
-        ClassLoader cl = Thread.currentThread().getContextClassLoader();
-        Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
-        final JAXBContext jc = JAXBContext.newInstance("hu.blackbelt.osgi.configuration.mapper.v1.xml.ns.definition", getClass().getClassLoader());
-        Thread.currentThread().setContextClassLoader(cl);
-        unmarshaller = jc.createUnmarshaller();
+        templateProcessor = new TemplateProcessor(properties, envPrefix, variableScopePrecedence, renderBudget);
+        planner = new InstancePlanner(templateProcessor);
     }
 
     public void updateOsgiConfigs(Map<String, Object> properties) {
         templateProcessor.updateOsgiConfigs(properties);
     }
 
-    @SneakyThrows(JAXBException.class)
-    public void processConfigs(List<ConfigurationEntry> entries) {
-        // Updating or creating corresponding configurations.
-        final Set<Configuration> processedConfigs = new HashSet<>();
-        for (ConfigurationEntry entry : entries) {
-            LOGGER.debug("Processing {}", entry.template);
-            if (entry.getSpec().isPresent()) {
-                final Components components = (Components)unmarshaller.unmarshal(entry.getSpec().get());
-                if (components == null || components.getComponents().isEmpty()) {
-                    LOGGER.warn("Missing component instances in configuration mapper XML");
-                } else {
-                    if (!entry.getInstance().isPresent()) {
-                        // instances without factory PID and with expression PID will be created based on template without instance name
-                        components.getComponents().stream().filter(c -> c.getFactoryPid() == null || c.getFactoryPid().contains("$")).forEach(c -> {
-                            final String pidName = c.getFactoryPid() != null ? entry.getPidBaseName() + "-" + templateProcessor.resolvePid(entry.getPidBaseName(), Optional.ofNullable(c.getFactoryPid())) : entry.getPidBaseName();
-                            createInstance(entry, pidName, Optional.ofNullable(c.getCondition()), processedConfigs);
-                        });
-                    } else {
-                        // matching factory PID will be instantiated
-                        components.getComponents().stream().filter(c -> Objects.equals(
-                                templateProcessor.resolvePid(entry.getPidBaseName(), Optional.ofNullable(c.getFactoryPid())), entry.getInstance().get())).forEach(c ->
-                            createInstance(entry, entry.getPidBaseName() + "-" + entry.getInstance().get(), Optional.ofNullable(c.getCondition()), processedConfigs));
-                    }
-                }
+    public void updateVariables(Map<String, Object> properties, String envPrefix,
+                                List<TemplateProcessor.VariableScope> variableScopePrecedence) {
+        templateProcessor.updateVariables(properties, envPrefix, variableScopePrecedence);
+    }
+
+    public void setRenderBudget(RenderBudget renderBudget) {
+        templateProcessor.setRenderBudget(renderBudget);
+    }
+
+    /**
+     * Use the given environment and system variables instead of the variables of the JVM.
+     *
+     * @param environment environment variables, <code>null</code> to use environment of the JVM
+     * @param systemProperties system properties, <code>null</code> to use system properties of the JVM
+     * @see TemplateProcessor#setVariableSources(Map, Map)
+     */
+    public void setVariableSources(Map<String, String> environment, Map<String, String> systemProperties) {
+        templateProcessor.setVariableSources(environment, systemProperties);
+    }
+
+    /**
+     * Set template engines.
+     *
+     * @param defaultEngine name of engine used by templates without engine specified by XML spec
+     * @param additionalEngines resolves registered engines by name, returns <code>null</code> if engine does not exist
+     */
+    public void setTemplateEngines(String defaultEngine, Function<String, TemplateEngine> additionalEngines) {
+        templateProcessor.setTemplateEngines(defaultEngine, additionalEngines);
+    }
+
+    /**
+     * Set throttling of configuration admin updates.
+     *
+     * @param rate maximum number of configuration updates per second (0: unlimited, updates are written immediately)
+     * @param batchSize number of configuration updates written together
+     */
+    public void setWriteLimit(double rate, int batchSize) {
+        if (rate <= 0) {
+            writeRateLimiter = null;
+        } else if (writeRateLimiter != null) {
+            writeRateLimiter.setRate(rate);
+        } else {
+            writeRateLimiter = RateLimiter.create(rate);
+        }
+        writeBatchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Set retry policy of failed instances. Delay is doubled by each failed retry.
+     *
+     * @param initialDelay delay of the first retry in milliseconds
+     * @param maxDelay maximum delay of retries in milliseconds
+     * @param limit maximum number of retries (0: failed instances are rendered again by the next pass only)
+     */
+    public void setRetryPolicy(long initialDelay, long maxDelay, int limit) {
+        retryInitialDelay = Math.max(0, initialDelay);
+        retryMaxDelay = Math.max(retryInitialDelay, maxDelay);
+        retryLimit = Math.max(0, limit);
+    }
+
+    /**
+     * Get errors of failed instances.
+     *
+     * @return error messages keyed by templated configuration name
+     */
+    public synchronized Map<String, String> getFailures() {
+        final Map<String, String> failures = new LinkedHashMap<>();
+        failedInstances.forEach((pidName, f) -> failures.put(pidName, f.error));
+        return failures;
+    }
+
+    /**
+     * Get delay of the next retry.
+     *
+     * @return delay in milliseconds, negative if no retry is pending
+     */
+    public synchronized long getRetryDelay() {
+        return failedInstances.values().stream()
+                .filter(f -> f.nextRetry > 0)
+                .mapToLong(f -> Math.max(0, f.nextRetry - System.currentTimeMillis()))
+                .min().orElse(-1);
+    }
+
+    /**
+     * Render failed instances again which are due to retry. Configurations of other instances are not touched.
+     *
+     * @param superseded returns <code>true</code> if a newer pass is requested
+     * @return changes of the pass
+     */
+    public synchronized ConfigurationChangeEvent retryFailed(BooleanSupplier superseded) {
+        final Pass pass = new Pass(passCounter.incrementAndGet(), new ConfigurationWriteStage(writeRateLimiter, writeBatchSize, writtenPids), superseded);
+        final long now = System.currentTimeMillis();
+        // instances are retried in the order they failed (priority order of the failed pass)
+        final List<FailedInstance> due = failedInstances.values().stream()
+                .filter(f -> f.nextRetry > 0 && f.nextRetry <= now)
+                .collect(Collectors.toList());
+        for (FailedInstance f : due) {
+            if (superseded.getAsBoolean()) {
+                pass.cancel();
+                break;
+            }
+            if (f.instance != null) {
+                LOGGER.info("Retrying configuration {}, attempt: {}", f.instance.getPidName(), f.attempts);
+                failedInstances.remove(f.instance.getPidName());
+                pass.retried.put(f.instance.getPidName(), f.attempts);
+                // consumer filter of the current lazy mode is applied to retried instances too
+                processInstance(f.instance, consumerFilter, pass);
             } else {
-                // XML file is not exists
-                createInstance(entry, entry.getPidBaseName(), Optional.empty(), processedConfigs);
+                LOGGER.info("Retrying planning of {}, attempt: {}", f.entry.getTemplate(), f.attempts);
+                failedInstances.remove(f.entry.getTemplate().toString());
+                pass.retried.put(f.entry.getTemplate().toString(), f.attempts);
+                replan(f.entry, pass);
             }
         }
+        flush(pass);
+
+        final ConfigurationChangeEvent event = pass.toEvent(id);
+        LOGGER.info(pass.cancelled ? "Configuration retry superseded: {}" : "Configuration retry finished: {}", event);
+        return event;
+    }
+
+    /**
+     * Set lazy mode. Configurations of PIDs without consumer are not rendered (existing ones are kept) until a consumer
+     * appears.
+     *
+     * @param consumerFilter returns <code>true</code> if configuration of the given PID (factory PID of factory
+     *                       configurations) is consumed, <code>null</code> to render all configurations
+     */
+    public void setConsumerFilter(Predicate<String> consumerFilter) {
+        this.consumerFilter = consumerFilter;
+        if (consumerFilter == null) {
+            deferredPids.clear();
+        }
+    }
 
-        getConfigurations().forEach(c -> {
-            if (!processedConfigs.contains(c)) {
-                String pid = c.getPid();
-                LOGGER.info("Removing config: {}-{}", pid, c.getFactoryPid());
-                try {
-                    c.delete();
-                } catch (IOException | RuntimeException ex) {
-                    LOGGER.error("Unable to delete configuration of {}", pid, ex);
+    /**
+     * Check if rendering of configurations of the given PID is deferred because no consumer exists.
+     *
+     * @param pid PID (factory PID of factory configurations)
+     * @return <code>true</code> if configuration is deferred by the latest pass
+     */
+    public boolean isDeferred(String pid) {
+        return deferredPids.contains(pid);
+    }
+
+    /**
+     * Create, update and delete configurations of config set based on the given entries.
+     *
+     * @param entries all configuration entries of config set
+     * @return changes of the pass
+     */
+    public ConfigurationChangeEvent processConfigs(List<ConfigurationEntry> entries) {
+        return processConfigs(entries, () -> false);
+    }
+
+    /**
+     * Create, update and delete configurations of config set based on the given entries. Pass is cancelled at the next
+     * entry boundary when it is superseded by a newer one: queued configuration updates are dropped and configurations
+     * of missing entries are not deleted (the newer pass continues from the latest state).
+     *
+     * @param entries all configuration entries of config set
+     * @param superseded returns <code>true</code> if a newer pass is requested
+     * @return changes of the pass
+     */
+    public ConfigurationChangeEvent processConfigs(List<ConfigurationEntry> entries, BooleanSupplier superseded) {
+        return processConfigs(entries, null, superseded);
+    }
+
+    /**
+     * Create, update and delete configurations of config set based on the given entries. If delta of entries is given
+     * (and a previous pass is completed), pass is incremental: only instances of added and changed entries (and
+     * instances which are failed or moved between entries) are rendered, configurations of instances which are no
+     * longer planned are deleted.
+     *
+     * @param entries all configuration entries of config set
+     * @param delta changes of entries since the previous pass, <code>null</code> to process all entries
+     * @param superseded returns <code>true</code> if a newer pass is requested
+     * @return changes of the pass
+     */
+    public synchronized ConfigurationChangeEvent processConfigs(List<ConfigurationEntry> entries, ConfigurationEntryDelta delta, BooleanSupplier superseded) {
+        final Pass pass = new Pass(passCounter.incrementAndGet(), new ConfigurationWriteStage(writeRateLimiter, writeBatchSize, writtenPids), superseded);
+        final Map<String, ConfigurationEntry> previousPlan = plannedEntries;
+        final boolean incremental = delta != null && previousPlan != null;
+        // deferred PIDs are collected while pass is running, so consumers appearing meanwhile are not missed
+        final Predicate<String> filter = consumerFilter;
+        if (filter != null && !incremental) {
+            deferredPids.clear();
+        }
+        templateProcessor.retainTemplates(entries);
+        currentEntries = entries;
+        final Map<ConfigurationEntry, Exception> planFailures = new LinkedHashMap<>();
+        final SortedMap<Integer, List<InstancePlanner.PlannedInstance>> tiers = planner.plan(entries, planFailures::put);
+        final Map<String, ConfigurationEntry> plan = new HashMap<>();
+        tiers.values().forEach(t -> t.forEach(i -> plan.put(i.getPidName(), i.getEntry())));
+        // instances of entries planned successfully again are rendered, new pass starts retries from the beginning
+        final Set<ConfigurationEntry> replanned = new HashSet<>();
+        for (Iterator<FailedInstance> it = failedInstances.values().iterator(); it.hasNext();) {
+            final FailedInstance f = it.next();
+            if (f.instance == null) {
+                if (!planFailures.containsKey(f.entry)) {
+                    replanned.add(f.entry);
                 }
+                it.remove();
+            }
+        }
+        planFailures.forEach((entry, ex) -> planFailed(entry, ex, previousPlan, plan, pass));
 
+        // Updating or creating corresponding configurations, each priority tier is published before the next one.
+        tiers:
+        for (Map.Entry<Integer, List<InstancePlanner.PlannedInstance>> tier : tiers.entrySet()) {
+            for (InstancePlanner.PlannedInstance i : tier.getValue()) {
+                if (superseded.getAsBoolean()) {
+                    pass.cancel();
+                    break tiers;
+                }
+                if (incremental && !isAffected(i, delta, previousPlan) && !replanned.contains(i.getEntry())) {
+                    continue;
+                }
+                // new pass starts retries from the beginning
+                failedInstances.remove(i.getPidName());
+                processInstance(i, filter, pass);
+            }
+            LOGGER.debug("Configurations of priority {} are rendered: {}, queued updates: {}", tier.getKey(), tier.getValue().size(), pass.writes.getQueueDepth());
+            flush(pass);
+            if (pass.cancelled) {
+                break;
+            }
+            LOGGER.debug("Configurations of priority {} are published", tier.getKey());
+        }
+
+        if (!pass.cancelled && incremental) {
+            previousPlan.keySet().stream().filter(pidName -> !plan.containsKey(pidName)).forEach(pidName -> {
+                final String[] pid = parsePid(pidName);
+                final Configuration c = findExistingConfiguration(pid[0], pid[1]);
+                if (c != null) {
+                    deleteConfiguration(c, pass);
+                }
+            });
+        } else if (!pass.cancelled && !pass.keepOrphans) {
+            getConfigurations().forEach(c -> {
+                if (!pass.processedPids.contains(c.getPid())) {
+                    deleteConfiguration(c, pass);
+                }
+            });
+        }
+        if (!pass.cancelled) {
+            plannedEntries = plan;
+            failedInstances.entrySet().removeIf(f -> f.getValue().instance != null && !plan.containsKey(f.getKey()));
+        }
+
+        final ConfigurationChangeEvent event = pass.toEvent(id);
+        LOGGER.info(pass.cancelled ? "Configuration pass superseded: {}" : "Configuration pass finished: {}", event);
+        return event;
+    }
+
+    private void planFailed(ConfigurationEntry entry, Exception ex, Map<String, ConfigurationEntry> previousPlan,
+                            Map<String, ConfigurationEntry> plan, Pass pass) {
+        final String name = entry.getTemplate().toString();
+        LOGGER.error("Unable to plan instances of {}, keeping previous configurations", name, ex);
+        if (previousPlan != null) {
+            // instances planned by the previous pass are kept until the entry is planned successfully
+            previousPlan.forEach((pidName, previous) -> {
+                if (previous.equals(entry) && !plan.containsKey(pidName)) {
+                    plan.put(pidName, previous);
+                    keepPreviousConfiguration(pidName, pass);
+                }
+            });
+        } else {
+            // instances of the entry are unknown, pass does not delete any configuration
+            pass.keepOrphans = true;
+        }
+        pass.failed.put(name, FAILED);
+        fail(name, entry, null, ex, pass);
+    }
+
+    private void replan(ConfigurationEntry entry, Pass pass) {
+        final Map<ConfigurationEntry, Exception> planFailures = new HashMap<>();
+        final SortedMap<Integer, List<InstancePlanner.PlannedInstance>> tiers = planner.plan(currentEntries, entry::equals, planFailures::put);
+        if (planFailures.containsKey(entry)) {
+            // instances of the previous plan are kept
+            LOGGER.error("Unable to plan instances of {}, keeping previous configurations", entry.getTemplate(), planFailures.get(entry));
+            pass.failed.put(entry.getTemplate().toString(), FAILED);
+            fail(entry.getTemplate().toString(), entry, null, planFailures.get(entry), pass);
+            return;
+        }
+        final Set<String> pidNames = new HashSet<>();
+        for (List<InstancePlanner.PlannedInstance> tier : tiers.values()) {
+            for (InstancePlanner.PlannedInstance i : tier) {
+                pidNames.add(i.getPidName());
+                processInstance(i, consumerFilter, pass);
+            }
+            flush(pass);
+            if (pass.cancelled) {
+                return;
+            }
+        }
+        if (plannedEntries != null) {
+            // configurations of instances kept from the previous plan but no longer planned are deleted
+            plannedEntries.entrySet().removeIf(e -> {
+                if (!e.getValue().equals(entry) || pidNames.contains(e.getKey())) {
+                    return false;
+                }
+                final String[] pid = parsePid(e.getKey());
+                final Configuration c = findExistingConfiguration(pid[0], pid[1]);
+                if (c != null) {
+                    deleteConfiguration(c, pass);
+                }
+                return true;
+            });
+            pidNames.forEach(pidName -> plannedEntries.put(pidName, entry));
+        }
+    }
+
+    private boolean isAffected(InstancePlanner.PlannedInstance instance, ConfigurationEntryDelta delta, Map<String, ConfigurationEntry> previousPlan) {
+        final ConfigurationEntry entry = instance.getEntry();
+        return delta.getAdded().contains(entry) || delta.getChanged().contains(entry)
+                || !entry.equals(previousPlan.get(instance.getPidName()))
+                || failedInstances.containsKey(instance.getPidName());
+    }
+
+    private void flush(Pass pass) {
+        pass.flush();
+        pass.failedWrites.forEach((pid, ex) -> {
+            final InstancePlanner.PlannedInstance instance = pass.written.get(pid);
+            if (instance != null) {
+                fail(instance, ex, pass);
             }
         });
+        pass.failedWrites.clear();
+        pass.written.clear();
+        pass.rendered.forEach(this::rememberRenderedOutput);
+        pass.rendered.clear();
+    }
+
+    private void fail(InstancePlanner.PlannedInstance instance, Exception ex, Pass pass) {
+        fail(instance.getPidName(), instance.getEntry(), instance, ex, pass);
+    }
+
+    private void fail(String name, ConfigurationEntry entry, InstancePlanner.PlannedInstance instance, Exception ex, Pass pass) {
+        final FailedInstance previous = failedInstances.get(name);
+        final int attempts = (previous != null ? previous.attempts : pass.retried.getOrDefault(name, 0)) + 1;
+        final long nextRetry;
+        if (attempts > retryLimit) {
+            // given up, instance is rendered again by the next pass
+            nextRetry = 0;
+            LOGGER.warn("Configuration {} is not retried any more after {} attempt(s)", name, attempts);
+        } else {
+            nextRetry = System.currentTimeMillis() + Math.min(retryMaxDelay, retryInitialDelay << Math.min(attempts - 1, MAX_BACKOFF_SHIFT));
+        }
+        final String error = String.valueOf(ex.getMessage());
+        failedInstances.put(name, new FailedInstance(entry, instance, attempts, nextRetry, error));
+        pass.errors.put(name, error);
+    }
+
+    private void deleteConfiguration(Configuration c, Pass pass) {
+        String pid = c.getPid();
+        LOGGER.info("Removing config: {}-{}", pid, c.getFactoryPid());
+        try {
+            c.delete();
+            forgetRenderedOutput(pid);
+            pass.deleted.put(pid, DELETED);
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.error("Unable to delete configuration of {}", pid, ex);
+        }
     }
 
     public void destroy() {
+        renderedOutputs.clear();
+        renderedNames.clear();
         for (Configuration configuration : getConfigurations()) {
             try {
                 configuration.delete();
@@ -144,23 +502,131 @@ public class OsgiTemplatedConfigurationSetHandler {
         }
     }
 
-    private void createInstance(final ConfigurationEntry entry, final String pidName, final Optional<String> condition, final Set<Configuration> processedConfigs ) {
-        if (templateProcessor.isProcess(pidName, condition)) {
-            try {
-                Configuration config = setConfig(entry, pidName,
-                        new ByteArrayInputStream(templateProcessor.getConfig(entry).getBytes(Charsets.UTF_8)));
-                final String pid = config.getPid();
-                processedConfigs.add(config);
-                LOGGER.debug("Created/updated config with PID: {}", pid);
-            } catch (Exception ex) {
-                LOGGER.error("Unable to create config", ex);
+    private void processInstance(InstancePlanner.PlannedInstance instance, Predicate<String> filter, Pass pass) {
+        if (filter != null) {
+            // PID is deferred before consumer is checked, so a consumer appearing meanwhile triggers a new pass
+            final String pid = parsePid(instance.getPidName())[0];
+            deferredPids.add(pid);
+            if (!filter.test(pid)) {
+                deferInstance(instance.getPidName(), pass);
+                return;
             }
+            deferredPids.remove(pid);
         }
+        createInstance(instance, pass);
+    }
+
+    private void deferInstance(final String pidName, final Pass pass) {
+        final String[] pid = parsePid(pidName);
+        pass.deferred++;
+        // configuration published before consumer disappeared is kept
+        final Configuration previous = findExistingConfiguration(pid[0], pid[1]);
+        if (previous != null) {
+            pass.processedPids.add(previous.getPid());
+        }
+        LOGGER.debug("Configuration {} is deferred, no consumer exists", pidName);
+    }
+
+    private void createInstance(final InstancePlanner.PlannedInstance instance, final Pass pass) {
+        final String pidName = instance.getPidName();
+        try {
+            if (!templateProcessor.isProcess(pidName, instance.getCondition(), instance.getVariables())) {
+                forgetRenderedOutputOf(pidName);
+                return;
+            }
+            final PropertiesDictionaryWriter properties = new PropertiesDictionaryWriter();
+            templateProcessor.render(instance.getEntry(), instance.getEngine(), instance.getVariables(), properties);
+            properties.close();
+            final RenderedOutput previous = renderedOutputs.get(pidName);
+            if (previous != null && previous.digest.equals(properties.getOutputDigest())) {
+                // same output as written before, configuration is not hashed, looked up and updated again
+                pass.processed(previous.pid, UNCHANGED);
+                pass.unchangedOutputs++;
+                LOGGER.trace("Rendered output of {} is unchanged", pidName);
+                return;
+            }
+            Configuration config = setConfig(instance.getEntry(), pidName, properties, pass);
+            pass.written.put(config.getPid(), instance);
+            LOGGER.debug("Created/updated config with PID: {}", config.getPid());
+        } catch (Exception ex) {
+            forgetRenderedOutputOf(pidName);
+            if (ex instanceof RenderBudgetExceededException) {
+                LOGGER.error("Unable to create config {}, keeping previous configuration: {}", pidName, ex.getMessage());
+            } else {
+                LOGGER.error("Unable to create config {}, keeping previous configuration", pidName, ex);
+            }
+            keepPreviousConfiguration(pidName, pass);
+            pass.failed.put(pidName, FAILED);
+            fail(instance, ex, pass);
+        }
+    }
+
+    @SuppressWarnings("checkstyle:illegalcatch")
+    private void keepPreviousConfiguration(String pidName, Pass pass) {
+        // previous values of configuration are kept until the instance is rendered successfully
+        final String[] pid = parsePid(pidName);
+        try {
+            final Configuration previous = findExistingConfiguration(pid[0], pid[1]);
+            if (previous != null) {
+                pass.processedPids.add(previous.getPid());
+            }
+        } catch (Exception ex) {
+            // configuration admin is not available, pass does not delete any configuration
+            LOGGER.error("Unable to find previous configuration of {}", pidName, ex);
+            pass.keepOrphans = true;
+        }
+    }
+
+    /**
+     * Forget rendered output of configurations updated or deleted by others, so they are reconciled by the next pass.
+     * Configuration admin events of all configurations are received, they are handled without looking up
+     * configurations: events of updates written by passes are recognized by PID.
+     *
+     * @param event configuration event
+     */
+    @Override
+    public void configurationEvent(ConfigurationEvent event) {
+        if (event.getType() == ConfigurationEvent.CM_DELETED) {
+            forgetRenderedOutput(event.getPid());
+        } else if (event.getType() == ConfigurationEvent.CM_UPDATED && !writtenPids.remove(event.getPid())) {
+            forgetRenderedOutput(event.getPid());
+        }
+    }
+
+    private void rememberRenderedOutput(String name, RenderedOutput output) {
+        final RenderedOutput previous = renderedOutputs.put(name, output);
+        if (previous != null && !previous.pid.equals(output.pid)) {
+            renderedNames.remove(previous.pid, name);
+        }
+        renderedNames.put(output.pid, name);
+    }
+
+    private void forgetRenderedOutputOf(String name) {
+        final RenderedOutput previous = renderedOutputs.remove(name);
+        if (previous != null) {
+            renderedNames.remove(previous.pid, name);
+        }
+    }
+
+    private void forgetRenderedOutput(String pid) {
+        final String name = renderedNames.remove(pid);
+        if (name != null) {
+            renderedOutputs.computeIfPresent(name, (n, r) -> r.pid.equals(pid) ? null : r);
+        }
+    }
+
+    /**
+     * Get number of configurations owned by config set.
+     *
+     * @return number of configurations
+     */
+    public int getConfigurationCount() {
+        return getConfigurations().size();
     }
 
     private List<Configuration> getConfigurations() {
         try {
-            final Configuration[] configurations = configAdmin.listConfigurations("(" + CONFIGURATION_CREATED_BY_PROPERTY_NAME + "=" + id + ")");
+            final Configuration[] configurations = configAdmin.listConfigurations("(" + CONFIGURATION_CREATED_BY_PROPERTY_NAME + "=" + escapeFilterValue(id) + ")");
             return configurations != null ? Arrays.asList(configurations) : Collections.emptyList();
         } catch (InvalidSyntaxException | IOException ex) {
             LOGGER.error("Unable to get configurations", ex);
@@ -172,17 +638,18 @@ public class OsgiTemplatedConfigurationSetHandler {
      * Set the configuration based on the config file.
      *
      * @param name pid name
-     * @param value content
+     * @param properties rendered content
      * @return sha1 of configuration
      * @throws Exception
      */
     @SuppressWarnings({"checkstyle:executablestatementcount", "checkstyle:methodlength"})
     @SneakyThrows(IOException.class)
-    private Configuration setConfig(ConfigurationEntry configurationEntry, String name, InputStream value) {
-        Dictionary<String, Object> ht = loadProperties(value);
+    private Configuration setConfig(ConfigurationEntry configurationEntry, String name, PropertiesDictionaryWriter properties, Pass pass) {
+        final Dictionary<String, Object> ht = properties.getDictionary();
 
         String[] pid = parsePid(name);
-        Configuration config = getConfiguration(pid[0], pid[1]);
+        // configuration created in this pass could be queued by write stage (not found by configuration admin yet)
+        Configuration config = pass.queued.containsKey(name) ? pass.queued.get(name) : getConfiguration(pid[0], pid[1]);
 
         BigInteger checksum = sha1(fromDictionary(ht));
 
@@ -216,9 +683,13 @@ public class OsgiTemplatedConfigurationSetHandler {
             if (config.getBundleLocation() != null) {
                 config.setBundleLocation(null);
             }
-            config.update(ht);
+            pass.writes.write(config, ht);
+            pass.queued.put(name, config);
             LOGGER.info("Created/updated config with PID: {}", getPidName(pid[0], pid[1]));
         }
+        pass.processed(config.getPid(), state);
+        // digest is kept when the update is written
+        pass.rendered.put(name, new RenderedOutput(properties.getOutputDigest(), config.getPid()));
         return config;
     }
 
@@ -242,7 +713,7 @@ public class OsgiTemplatedConfigurationSetHandler {
 
     @SneakyThrows({ IOException.class, InvalidSyntaxException.class })
     private Configuration findExistingConfiguration(String pid, String factoryPid) {
-        String filter = "(" + CONFIGURATION_PROPERTY_NAME + "=" + getPidName(pid, factoryPid) + ")";
+        String filter = "(" + CONFIGURATION_PROPERTY_NAME + "=" + escapeFilterValue(getPidName(pid, factoryPid)) + ")";
         Configuration[] configurations = configAdmin.listConfigurations(filter);
         if (configurations != null && configurations.length > 0) {
             return configurations[0];
@@ -255,7 +726,7 @@ public class OsgiTemplatedConfigurationSetHandler {
         StringBuilder b = new StringBuilder();
         for (String k : Ordering.natural().sortedCopy(properties.keySet())) {
             Object value = properties.get(k);
-            if (k.toLowerCase().contains("password") || k.toLowerCase().contains("secret")) {
+            if (Utils.isSecretKey(k)) {
                 value = "**************";
             }
             b.append(NEWLINE + "\t" +  k + " = " + value);
@@ -263,4 +734,101 @@ public class OsgiTemplatedConfigurationSetHandler {
         return b.toString();
     }
 
+    private static class Pass {
+        private final long number;
+        private final long started = System.currentTimeMillis();
+        private final Set<String> processedPids = new HashSet<>();
+        private final Map<String, ConfigState> created = new LinkedHashMap<>();
+        private final Map<String, ConfigState> updated = new LinkedHashMap<>();
+        private final Map<String, ConfigState> deleted = new LinkedHashMap<>();
+        private final Map<String, ConfigState> failed = new LinkedHashMap<>();
+        private final ConfigurationWriteStage writes;
+        private final BooleanSupplier superseded;
+        private final Map<String, Configuration> queued = new HashMap<>();
+        private final Map<String, RenderedOutput> rendered = new HashMap<>();
+        private final Map<String, InstancePlanner.PlannedInstance> written = new HashMap<>();
+        private final Map<String, Exception> failedWrites = new LinkedHashMap<>();
+        private final Map<String, String> errors = new LinkedHashMap<>();
+        private final Map<String, Integer> retried = new HashMap<>();
+        private boolean keepOrphans;
+        private int deferred;
+        private int unchangedOutputs;
+        private boolean cancelled;
+
+        Pass(long number, ConfigurationWriteStage writes, BooleanSupplier superseded) {
+            this.number = number;
+            this.writes = writes;
+            this.superseded = superseded;
+        }
+
+        void cancel() {
+            cancelled = true;
+            rendered.clear();
+            for (String pid : writes.discard()) {
+                created.remove(pid);
+                updated.remove(pid);
+            }
+        }
+
+        void flush() {
+            queued.clear();
+            final boolean written = writes.flush(superseded, (pid, ex) -> {
+                LOGGER.error("Unable to update configuration {}", pid, ex);
+                rendered.values().removeIf(r -> r.pid.equals(pid));
+                failedWrites.put(pid, ex);
+                created.remove(pid);
+                updated.remove(pid);
+                failed.put(pid, FAILED);
+            });
+            if (!written) {
+                // remaining batches are discarded, a newer pass writes them
+                cancel();
+            }
+        }
+
+        void processed(String pid, ConfigState state) {
+            processedPids.add(pid);
+            if (state == NEW) {
+                created.put(pid, state);
+            } else if (state != UNCHANGED) {
+                updated.put(pid, state);
+            }
+        }
+
+        ConfigurationChangeEvent toEvent(String configSetId) {
+            return ConfigurationChangeEvent.builder()
+                    .configSetId(configSetId)
+                    .pass(number)
+                    .duration(System.currentTimeMillis() - started)
+                    .processed(processedPids.size())
+                    .created(Collections.unmodifiableMap(created))
+                    .updated(Collections.unmodifiableMap(updated))
+                    .deleted(Collections.unmodifiableMap(deleted))
+                    .failed(Collections.unmodifiableMap(failed))
+                    .errors(Collections.unmodifiableMap(errors))
+                    .writeQueueDepth(writes.getMaxQueueDepth())
+                    .coalesced(writes.getCoalesced())
+                    .throttled(writes.getThrottled())
+                    .deferred(deferred)
+                    .unchangedOutputs(unchangedOutputs)
+                    .cancelled(cancelled)
+                    .build();
+        }
+    }
+
+    @AllArgsConstructor
+    private static class FailedInstance {
+        private final ConfigurationEntry entry;
+        // null if instances of the entry could not be planned
+        private final InstancePlanner.PlannedInstance instance;
+        private final int attempts;
+        private final long nextRetry;
+        private final String error;
+    }
+
+    @AllArgsConstructor
+    private static class RenderedOutput {
+        private final HashCode digest;
+        private final String pid;
+    }
 }
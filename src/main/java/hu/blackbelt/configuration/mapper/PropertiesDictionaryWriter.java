@@ -0,0 +1,187 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Properties;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writer building configuration dictionary from {@link Properties} format text while it is written, so rendered
+ * configuration have not to be copied before parsing. Result is the same as {@link Utils#loadProperties}: backslashes
+ * are kept as they are (no escape sequences and line continuations), XML format is detected by leading <code>&lt;</code>
+ * character. Digest of the written text is calculated too, so unchanged output could be detected without comparing
+ * dictionaries.
+ */
+public class PropertiesDictionaryWriter extends Writer {
+    private static final int INITIAL_LINE_CAPACITY = 256;
+
+    private final Properties properties = new Properties();
+    private final StringBuilder buffer = new StringBuilder(INITIAL_LINE_CAPACITY);
+    private final Hasher hasher = Hashing.murmur3_128().newHasher();
+    private HashCode outputDigest;
+    private boolean started;
+    private boolean xml;
+    private boolean skipLineFeed;
+    private boolean closed;
+
+    @Override
+    public void write(int c) throws IOException {
+        accept((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            accept(cbuf[i]);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            accept(str.charAt(i));
+        }
+    }
+
+    @Override
+    public void flush() {
+        // Nothing to flush, dictionary is built on close
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        outputDigest = hasher.hash();
+        if (xml) {
+            properties.loadFromXML(new ByteArrayInputStream(buffer.toString().getBytes(UTF_8)));
+        } else {
+            endOfLine();
+        }
+        buffer.setLength(0);
+    }
+
+    /**
+     * Get dictionary of written properties. Writer have to be closed before.
+     *
+     * @return dictionary
+     */
+    public Dictionary<String, Object> getDictionary() {
+        if (!closed) {
+            throw new IllegalStateException("Writer is not closed");
+        }
+        final Hashtable ht = new Hashtable();
+        ht.putAll(properties);
+        return ht;
+    }
+
+    /**
+     * Get digest of the written text. Writer have to be closed before.
+     *
+     * @return digest
+     */
+    public HashCode getOutputDigest() {
+        if (!closed) {
+            throw new IllegalStateException("Writer is not closed");
+        }
+        return outputDigest;
+    }
+
+    private void accept(char c) throws IOException {
+        if (closed) {
+            throw new IOException("Writer is closed");
+        }
+        hasher.putChar(c);
+        if (!started) {
+            started = true;
+            xml = c == '<';
+        }
+        if (xml) {
+            buffer.append(c);
+        } else if (c == '\n' && skipLineFeed) {
+            skipLineFeed = false;
+        } else if (c == '\n' || c == '\r') {
+            skipLineFeed = c == '\r';
+            endOfLine();
+        } else {
+            skipLineFeed = false;
+            buffer.append(c);
+        }
+    }
+
+    @SuppressWarnings("checkstyle:avoidinlineconditionals")
+    private void endOfLine() {
+        final int limit = buffer.length();
+        int start = 0;
+        while (start < limit && isWhitespace(buffer.charAt(start))) {
+            start++;
+        }
+        if (start == limit || buffer.charAt(start) == '#' || buffer.charAt(start) == '!') {
+            buffer.setLength(0);
+            return;
+        }
+
+        int keyEnd = start;
+        boolean hasSeparator = false;
+        while (keyEnd < limit) {
+            final char c = buffer.charAt(keyEnd);
+            if (c == '=' || c == ':') {
+                hasSeparator = true;
+                break;
+            } else if (isWhitespace(c)) {
+                break;
+            }
+            keyEnd++;
+        }
+
+        int valueStart = keyEnd < limit ? keyEnd + 1 : limit;
+        while (valueStart < limit) {
+            final char c = buffer.charAt(valueStart);
+            if (!isWhitespace(c)) {
+                if (!hasSeparator && (c == '=' || c == ':')) {
+                    hasSeparator = true;
+                } else {
+                    break;
+                }
+            }
+            valueStart++;
+        }
+
+        properties.put(buffer.substring(start, keyEnd), buffer.substring(valueStart, limit));
+        buffer.setLength(0);
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\f';
+    }
+}
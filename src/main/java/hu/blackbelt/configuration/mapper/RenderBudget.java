@@ -0,0 +1,199 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.Builder;
+import lombok.Getter;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits of rendering a single template. Zero (or negative) value means unlimited.
+ *
+ * Output limits are checked when template writes output. Render time is enforced by a watchdog interrupting the
+ * rendering thread too, so loops and macros writing nothing are aborted (templates of engines have to check interruption
+ * of thread, FreeMarker templates and libraries are checked at each loop iteration and macro call).
+ */
+@Builder
+@Getter
+@SuppressWarnings("checkstyle:missingctor")
+public class RenderBudget {
+    public static final RenderBudget UNLIMITED = RenderBudget.builder().build();
+
+    private static final ScheduledThreadPoolExecutor WATCHDOG = createWatchdog();
+
+    /**
+     * Maximum wall time of rendering in milliseconds.
+     */
+    long maxRenderTime;
+
+    /**
+     * Maximum number of characters written by template.
+     */
+    long maxOutputSize;
+
+    /**
+     * Maximum number of output instructions (static text blocks and interpolations writing output) executed by
+     * template. Loops without output are limited by {@link #maxRenderTime}.
+     */
+    long maxInstructions;
+
+    /**
+     * Render template within limits.
+     *
+     * @param name template name
+     * @param out output of template
+     * @param render renders template to the given (limited) writer
+     * @throws RenderBudgetExceededException if any limit is exceeded
+     * @throws IOException if template could not be rendered
+     */
+    @SuppressWarnings("checkstyle:illegalcatch")
+    public void render(String name, Writer out, Render render) throws IOException {
+        final Writer limited = limit(name, out);
+        if (maxRenderTime <= 0) {
+            render.render(limited);
+            return;
+        }
+        final Watchdog watchdog = new Watchdog(Thread.currentThread());
+        final ScheduledFuture<?> future = WATCHDOG.schedule(watchdog::expire, maxRenderTime, TimeUnit.MILLISECONDS);
+        try {
+            render.render(limited);
+        } catch (IOException | RuntimeException ex) {
+            if (watchdog.isExpired()) {
+                final RenderBudgetExceededException exceeded = new RenderBudgetExceededException(name, "render time exceeds " + maxRenderTime + " ms");
+                exceeded.initCause(ex);
+                throw exceeded;
+            }
+            throw ex;
+        } finally {
+            future.cancel(false);
+            watchdog.finish();
+        }
+    }
+
+    /**
+     * Wrap writer so rendering is aborted with {@link RenderBudgetExceededException} when any limit is exceeded.
+     *
+     * @param name template name
+     * @param out writer to wrap
+     * @return writer enforcing limits
+     */
+    public Writer limit(String name, Writer out) {
+        if (maxRenderTime <= 0 && maxOutputSize <= 0 && maxInstructions <= 0) {
+            return out;
+        }
+        return new LimitedWriter(name, out);
+    }
+
+    private static ScheduledThreadPoolExecutor createWatchdog() {
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+                .setNameFormat("config-mapper-render-watchdog-%d").setDaemon(true).build());
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /**
+     * Renders template to the given writer.
+     */
+    public interface Render {
+        void render(Writer out) throws IOException;
+    }
+
+    private static class Watchdog {
+        private final Thread thread;
+        private boolean expired;
+        private boolean finished;
+
+        Watchdog(Thread thread) {
+            this.thread = thread;
+        }
+
+        synchronized void expire() {
+            if (!finished) {
+                expired = true;
+                thread.interrupt();
+            }
+        }
+
+        synchronized boolean isExpired() {
+            return expired;
+        }
+
+        synchronized void finish() {
+            finished = true;
+            if (expired) {
+                // interrupt is consumed, thread is reused by other passes
+                Thread.interrupted();
+            }
+        }
+    }
+
+    private class LimitedWriter extends FilterWriter {
+        private final String name;
+        private final long deadline;
+        private long outputSize;
+        private long instructions;
+
+        LimitedWriter(String name, Writer out) {
+            super(out);
+            this.name = name;
+            this.deadline = maxRenderTime > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxRenderTime) : 0;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            check(1);
+            super.write(c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            check(len);
+            super.write(cbuf, off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            check(len);
+            super.write(str, off, len);
+        }
+
+        private void check(int len) throws RenderBudgetExceededException {
+            outputSize += len;
+            instructions++;
+            if (maxOutputSize > 0 && outputSize > maxOutputSize) {
+                throw new RenderBudgetExceededException(name, "output size exceeds " + maxOutputSize + " characters");
+            }
+            if (maxInstructions > 0 && instructions > maxInstructions) {
+                throw new RenderBudgetExceededException(name, "number of instructions exceeds " + maxInstructions);
+            }
+            if (deadline != 0 && System.nanoTime() - deadline > 0) {
+                throw new RenderBudgetExceededException(name, "render time exceeds " + maxRenderTime + " ms");
+            }
+        }
+    }
+}
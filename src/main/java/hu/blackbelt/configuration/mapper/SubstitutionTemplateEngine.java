@@ -0,0 +1,150 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.io.CharStreams;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal template engine replacing <code>${name}</code> and <code>${name!default}</code> placeholders (default value
+ * could be quoted, <code>${name!}</code> means empty default). Dotted names (ie. <code>${environment.HOME}</code>) are
+ * resolved as map lookups. Any other text is written as it is.
+ *
+ * Templates are compiled to an array of tokens and rendered without wrapping variables, values are written by
+ * {@link String#valueOf(Object)} (numbers are not formatted).
+ */
+class SubstitutionTemplateEngine implements TemplateEngine {
+    static final String NAME = "substitution";
+    static final SubstitutionTemplateEngine SHARED = new SubstitutionTemplateEngine();
+
+    private static final String PLACEHOLDER_START = "${";
+    private static final char PLACEHOLDER_END = '}';
+    private static final char DEFAULT_SEPARATOR = '!';
+    private static final Pattern NAME_PATTERN = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z0-9_]+)*");
+    private static final Pattern PATH_SEPARATOR = Pattern.compile("\\.");
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public CompiledTemplate compile(String name, Reader source) throws IOException {
+        final String text = CharStreams.toString(source);
+        final List<Token> tokens = new ArrayList<>();
+        int position = 0;
+        int start;
+        while ((start = text.indexOf(PLACEHOLDER_START, position)) >= 0) {
+            final int end = text.indexOf(PLACEHOLDER_END, start);
+            if (end < 0) {
+                throw new IOException("Unterminated placeholder in template " + name + " at " + start);
+            }
+            if (start > position) {
+                tokens.add(new Token(text.substring(position, start)));
+            }
+            tokens.add(parsePlaceholder(name, text.substring(start + PLACEHOLDER_START.length(), end).trim()));
+            position = end + 1;
+        }
+        if (position < text.length()) {
+            tokens.add(new Token(text.substring(position)));
+        }
+        return new SubstitutionTemplate(name, tokens.toArray(new Token[0]));
+    }
+
+    private static Token parsePlaceholder(String name, String placeholder) throws IOException {
+        final int separator = placeholder.indexOf(DEFAULT_SEPARATOR);
+        final String variable = separator < 0 ? placeholder : placeholder.substring(0, separator).trim();
+        if (!NAME_PATTERN.matcher(variable).matches()) {
+            throw new IOException("Invalid placeholder in template " + name + ": ${" + placeholder + "} (use freemarker engine for expressions)");
+        }
+        final String defaultValue = separator < 0 ? null : unquote(placeholder.substring(separator + 1).trim());
+        return new Token(PATH_SEPARATOR.split(variable), defaultValue);
+    }
+
+    private static String unquote(String value) {
+        if (value.length() >= 2 && (value.charAt(0) == '"' || value.charAt(0) == '\'') && value.charAt(value.length() - 1) == value.charAt(0)) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    private static final class Token {
+        private final String text;
+        private final String[] path;
+        private final String defaultValue;
+
+        Token(String text) {
+            this.text = text;
+            this.path = null;
+            this.defaultValue = null;
+        }
+
+        Token(String[] path, String defaultValue) {
+            this.text = null;
+            this.path = path;
+            this.defaultValue = defaultValue;
+        }
+    }
+
+    private static final class SubstitutionTemplate implements CompiledTemplate {
+        private final String name;
+        private final Token[] tokens;
+
+        SubstitutionTemplate(String name, Token[] tokens) {
+            this.name = name;
+            this.tokens = tokens;
+        }
+
+        @Override
+        public void render(Function<String, Object> variables, Writer out) throws IOException {
+            for (Token token : tokens) {
+                if (token.text != null) {
+                    out.write(token.text);
+                    continue;
+                }
+                final Object value = resolve(variables, token.path);
+                if (value != null) {
+                    out.write(String.valueOf(value));
+                } else if (token.defaultValue != null) {
+                    out.write(token.defaultValue);
+                } else {
+                    throw new IOException("Variable " + String.join(".", token.path) + " is undefined in template " + name);
+                }
+            }
+        }
+
+        private static Object resolve(Function<String, Object> variables, String[] path) {
+            Object value = variables.apply(path[0]);
+            for (int i = 1; i < path.length && value != null; i++) {
+                value = value instanceof Map ? ((Map<?, ?>) value).get(path[i]) : null;
+            }
+            return value;
+        }
+    }
+}
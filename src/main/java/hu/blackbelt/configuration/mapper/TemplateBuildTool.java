@@ -0,0 +1,265 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Ordering;
+import hu.blackbelt.osgi.configuration.mapper.v1.xml.ns.definition.Components;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Build time tool processing a template directory the same way as config sets do at runtime, so template and XML
+ * spec errors are reported by the build instead of configuration admin logs in production.
+ *
+ * <pre>
+ * TemplateBuildTool &lt;templateDirectory&gt; [--index] [--index-output &lt;directory&gt;] [--variables &lt;file&gt;] [--output &lt;directory&gt;]
+ * </pre>
+ *
+ * <ul>
+ *     <li>templates are parsed and XML specs are unmarshalled,</li>
+ *     <li><code>--index</code>: {@link TemplateIndex} with precomputed digests is written into the template directory
+ *     (tool should be run against the build output, ie. <code>target/classes</code>, so sources are not modified),</li>
+ *     <li><code>--index-output</code>: index is written into the given directory instead of the template directory,</li>
+ *     <li><code>--variables</code>: configurations are rendered with sample variables (properties file), names of used
+ *     variables are listed per configuration,</li>
+ *     <li><code>--output</code>: rendered configurations (<code>&lt;pid&gt;.cfg</code>) and variable dependencies
+ *     (<code>configuration-mapper.variables</code>) are written into the given directory.</li>
+ * </ul>
+ *
+ * Process exits with non-zero status if any error is found.
+ */
+public final class TemplateBuildTool {
+    public static final String VARIABLES_FILE_NAME = "configuration-mapper.variables";
+
+    private static final String INDEX_OPTION = "--index";
+    private static final String INDEX_OUTPUT_OPTION = "--index-output";
+    private static final String VARIABLES_OPTION = "--variables";
+    private static final String OUTPUT_OPTION = "--output";
+    private static final String CONFIG_EXTENSION = ".cfg";
+
+    private final Path templateDirectory;
+    private final PrintStream out;
+    private boolean writeIndex;
+    private Path indexDirectory;
+    private Path variablesFile;
+    private Path outputDirectory;
+    private int errors;
+
+    private TemplateBuildTool(Path templateDirectory, PrintStream out) {
+        this.templateDirectory = templateDirectory;
+        this.out = out;
+    }
+
+    @SuppressWarnings("checkstyle:uncommentedmain")
+    public static void main(String[] args) throws Exception {
+        final int errors = run(args, System.out);
+        if (errors > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Run tool.
+     *
+     * @param args command line arguments
+     * @param out report output
+     * @return number of errors
+     * @throws Exception if template directory or output could not be accessed
+     */
+    public static int run(String[] args, PrintStream out) throws Exception {
+        if (args.length == 0) {
+            throw new IllegalArgumentException("Usage: TemplateBuildTool <templateDirectory> [" + INDEX_OPTION + "] ["
+                    + INDEX_OUTPUT_OPTION + " <directory>] [" + VARIABLES_OPTION + " <file>] [" + OUTPUT_OPTION + " <directory>]");
+        }
+        final TemplateBuildTool tool = new TemplateBuildTool(Paths.get(args[0]), out);
+        for (int i = 1; i < args.length; i++) {
+            if (INDEX_OPTION.equals(args[i])) {
+                tool.writeIndex = true;
+            } else if (INDEX_OUTPUT_OPTION.equals(args[i]) && i + 1 < args.length) {
+                tool.writeIndex = true;
+                tool.indexDirectory = Paths.get(args[++i]);
+            } else if (VARIABLES_OPTION.equals(args[i]) && i + 1 < args.length) {
+                tool.variablesFile = Paths.get(args[++i]);
+            } else if (OUTPUT_OPTION.equals(args[i]) && i + 1 < args.length) {
+                tool.outputDirectory = Paths.get(args[++i]);
+            } else {
+                throw new IllegalArgumentException("Invalid argument: " + args[i]);
+            }
+        }
+        return tool.execute();
+    }
+
+    private int execute() throws Exception {
+        final List<ConfigurationEntry> entries = collectEntries();
+        out.println("Template entries found in " + templateDirectory + ": " + entries.size());
+
+        final Map<String, Object> variables = loadVariables();
+        final TemplateProcessor templateProcessor = new TemplateProcessor(variables, "",
+                ImmutableList.of(TemplateProcessor.VariableScope.osgi));
+        final InstancePlanner planner = new InstancePlanner(templateProcessor);
+
+        validate(entries, templateProcessor, planner);
+        if (errors == 0 && writeIndex) {
+            writeIndex(entries);
+        }
+        if (errors == 0 && variablesFile != null) {
+            render(entries, templateProcessor, planner);
+        }
+
+        out.println(errors == 0 ? "Templates are valid" : "Errors found: " + errors);
+        return errors;
+    }
+
+    private List<ConfigurationEntry> collectEntries() throws IOException {
+        return TemplateResourceBundleTracker.collectConfigEntries(0, TemplateDirectoryWatcher.listFiles(templateDirectory), this::resolve);
+    }
+
+    @SuppressWarnings("checkstyle:illegalcatch")
+    private void validate(List<ConfigurationEntry> entries, TemplateProcessor templateProcessor, InstancePlanner planner) {
+        final Set<String> specs = new TreeSet<>();
+        entries.forEach(entry -> entry.getSpec().ifPresent(spec -> specs.add(spec.toString())));
+        final Map<String, String> engines = new HashMap<>();
+        for (String spec : specs) {
+            try {
+                final Components components = planner.readSpec(new URL(spec));
+                if (components == null || components.getComponents().isEmpty()) {
+                    error(spec, "missing component instances");
+                } else if (components.getEngine() != null) {
+                    engines.put(spec, components.getEngine());
+                }
+            } catch (Exception ex) {
+                error(spec, ex);
+            }
+        }
+        for (ConfigurationEntry entry : entries) {
+            try {
+                templateProcessor.compile(entry, entry.getSpec().map(spec -> engines.get(spec.toString())));
+            } catch (IOException ex) {
+                error(entry.getTemplate(), ex);
+            }
+        }
+    }
+
+    private void writeIndex(List<ConfigurationEntry> entries) throws IOException {
+        if (indexDirectory != null) {
+            Files.createDirectories(indexDirectory);
+        }
+        final Path index = (indexDirectory != null ? indexDirectory : templateDirectory).resolve(TemplateIndex.INDEX_FILE_NAME);
+        try (Writer writer = Files.newBufferedWriter(index, UTF_8)) {
+            final Path base = templateDirectory.toAbsolutePath().normalize();
+            TemplateIndex.write(entries, url -> base.relativize(toPath(url).normalize()).toString().replace(base.getFileSystem().getSeparator(), "/"), writer);
+        }
+        out.println("Template index written: " + index);
+    }
+
+    @SuppressWarnings("checkstyle:illegalcatch")
+    private void render(List<ConfigurationEntry> entries, TemplateProcessor templateProcessor, InstancePlanner planner) throws IOException {
+        final SortedMap<Integer, List<InstancePlanner.PlannedInstance>> tiers = planner.plan(entries, (entry, ex) -> error(entry.getTemplate(), ex));
+
+        final Map<String, Set<String>> dependencies = new TreeMap<>();
+        if (outputDirectory != null) {
+            Files.createDirectories(outputDirectory);
+        }
+        for (List<InstancePlanner.PlannedInstance> instances : tiers.values()) {
+            for (InstancePlanner.PlannedInstance instance : instances) {
+                try {
+                    if (!templateProcessor.isProcess(instance.getPidName(), instance.getCondition(), instance.getVariables())) {
+                        out.println(" - " + instance.getPidName() + ": skipped by condition");
+                        continue;
+                    }
+                    final Set<String> used = new TreeSet<>();
+                    final StringWriter rendered = new StringWriter();
+                    templateProcessor.render(instance.getEntry(), instance.getEngine(), instance.getVariables(), rendered, used);
+
+                    // parse rendered configuration to report syntax errors
+                    final PropertiesDictionaryWriter properties = new PropertiesDictionaryWriter();
+                    properties.write(rendered.toString());
+                    properties.close();
+
+                    dependencies.put(instance.getPidName(), used);
+                    out.println(" - " + instance.getPidName() + ": " + properties.getDictionary().size() + " properties, variables: " + used);
+                    if (outputDirectory != null) {
+                        Files.write(outputDirectory.resolve(instance.getPidName() + CONFIG_EXTENSION), rendered.toString().getBytes(UTF_8));
+                    }
+                } catch (Exception ex) {
+                    error(instance.getPidName(), ex);
+                }
+            }
+        }
+
+        if (outputDirectory != null) {
+            final List<String> lines = dependencies.entrySet().stream()
+                    .map(e -> e.getKey() + "=" + String.join(",", Ordering.natural().sortedCopy(e.getValue())))
+                    .collect(Collectors.toList());
+            Files.write(outputDirectory.resolve(VARIABLES_FILE_NAME), lines, UTF_8);
+        }
+    }
+
+    private Map<String, Object> loadVariables() throws IOException {
+        if (variablesFile == null) {
+            return Collections.emptyMap();
+        }
+        try (InputStream is = Files.newInputStream(variablesFile)) {
+            final Map<String, Object> variables = new HashMap<>();
+            Utils.fromDictionary(Utils.loadProperties(is)).forEach((k, v) -> variables.put((String) k, v));
+            return variables;
+        }
+    }
+
+    private URL resolve(String name) {
+        try {
+            return templateDirectory.resolve(name.substring(1)).toUri().toURL();
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Invalid template file name: " + name, ex);
+        }
+    }
+
+    private static Path toPath(URL url) {
+        try {
+            return Paths.get(url.toURI());
+        } catch (URISyntaxException ex) {
+            throw new IllegalArgumentException("Invalid template URL: " + url, ex);
+        }
+    }
+
+    private void error(Object source, Object error) {
+        errors++;
+        String message = String.valueOf(error);
+        if (error instanceof Throwable && ((Throwable) error).getMessage() != null) {
+            message = ((Throwable) error).getMessage().trim();
+        }
+        out.println("ERROR " + source + ": " + message);
+    }
+}
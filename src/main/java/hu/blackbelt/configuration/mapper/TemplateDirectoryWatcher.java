@@ -0,0 +1,206 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/**
+ * Configuration entries of a local directory, so templates could be changed without rebuilding and refreshing bundles.
+ * Entries have {@link #BUNDLE_ID} as bundle ID.
+ *
+ * Directory (including subdirectories) is watched by {@link WatchService}. Events are debounced: directory is rescanned when no more events
+ * arrive within the debounce period (ie. editor writing multiple files), changes are propagated with all entries of the
+ * directory if any entry is added, removed or changed.
+ */
+@Slf4j
+public class TemplateDirectoryWatcher {
+    public static final long BUNDLE_ID = -1;
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactoryBuilder()
+            .setNameFormat("config-mapper-watcher-%d").setDaemon(true).build();
+
+    private final Path directory;
+    private final long debounce;
+    private final Function<List<ConfigurationEntry>, Void> configurationEntriesChanged;
+    private final WatchService watchService;
+    private volatile List<ConfigurationEntry> configEntries;
+
+    /**
+     * Scan directory and start watching it.
+     *
+     * @param directory template directory
+     * @param debounce debounce period in milliseconds
+     * @param configurationEntriesChanged callback invoked with all entries on change (from watcher thread)
+     * @throws IOException if directory could not be scanned or watched
+     */
+    public TemplateDirectoryWatcher(Path directory, long debounce, Function<List<ConfigurationEntry>, Void> configurationEntriesChanged) throws IOException {
+        this.directory = directory;
+        this.debounce = debounce;
+        this.configurationEntriesChanged = configurationEntriesChanged;
+
+        watchService = directory.getFileSystem().newWatchService();
+        try {
+            register(directory);
+            configEntries = scan();
+        } catch (IOException | UncheckedIOException ex) {
+            watchService.close();
+            throw ex;
+        }
+        THREAD_FACTORY.newThread(this::watch).start();
+        LOGGER.info("Watching template directory: {}, entries: {}", directory, configEntries.size());
+    }
+
+    /**
+     * Get configuration entries of directory.
+     *
+     * @return configuration entries
+     */
+    public List<ConfigurationEntry> getConfigEntries() {
+        return configEntries;
+    }
+
+    public void destroy() {
+        try {
+            watchService.close();
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to close watcher of template directory {}", directory, ex);
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                drain(watchService.take());
+                WatchKey key;
+                while ((key = watchService.poll(debounce, TimeUnit.MILLISECONDS)) != null) {
+                    drain(key);
+                }
+                rescan();
+            }
+        } catch (ClosedWatchServiceException ex) {
+            LOGGER.info("Stop watching template directory: {}", directory);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain(WatchKey key) {
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == ENTRY_CREATE) {
+                // subdirectories created after start have to be watched too, their files are found by the next scan
+                final Path created = ((Path) key.watchable()).resolve((Path) event.context());
+                if (Files.isDirectory(created)) {
+                    try {
+                        register(created);
+                    } catch (IOException | UncheckedIOException ex) {
+                        LOGGER.warn("Unable to watch template directory {}: {}", created, ex.getMessage());
+                    }
+                }
+            }
+        }
+        key.reset();
+    }
+
+    private void register(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.filter(Files::isDirectory)::iterator) {
+                path.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            }
+        }
+    }
+
+    @SuppressWarnings("checkstyle:illegalcatch")
+    private void rescan() {
+        final List<ConfigurationEntry> newEntries;
+        try {
+            newEntries = scan();
+        } catch (Exception ex) {
+            // files could be changed while directory is scanned, next event triggers a new scan
+            LOGGER.warn("Unable to scan template directory {}: {}", directory, ex.getMessage());
+            return;
+        }
+        final ConfigurationEntryDelta delta = ConfigurationEntryDelta.diff(configEntries, newEntries);
+        if (!delta.isEmpty()) {
+            LOGGER.info("Template directory {} changed, configurations have to be reloaded", directory);
+            LOGGER.trace("entry changes: {}", delta);
+            configEntries = newEntries;
+            try {
+                configurationEntriesChanged.apply(newEntries);
+            } catch (RuntimeException ex) {
+                LOGGER.error("Unable to process configuration entries", ex);
+            }
+        }
+    }
+
+    /**
+     * List files of a template directory (including subdirectories) in the same form as they are enumerated in bundles:
+     * paths relative to the directory with leading and separator <code>/</code> characters.
+     *
+     * @param directory template directory
+     * @return sorted file paths
+     * @throws IOException if directory could not be listed
+     */
+    static List<String> listFiles(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            return paths.filter(Files::isRegularFile)
+                    .map(p -> "/" + directory.relativize(p).toString().replace(p.getFileSystem().getSeparator(), "/"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private List<ConfigurationEntry> scan() throws IOException {
+        final List<ConfigurationEntry> entries = TemplateResourceBundleTracker.collectConfigEntries(BUNDLE_ID, listFiles(directory), this::resolve);
+        // digests are calculated while scanning to detect changes later
+        entries.forEach(ConfigurationEntry::checkSum);
+        return entries;
+    }
+
+    private URL resolve(String name) {
+        try {
+            return directory.resolve(name.substring(1)).toUri().toURL();
+        } catch (MalformedURLException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import lombok.extern.slf4j.Slf4j;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+/**
+ * Template discovery shared by all configuration sets. Bundles are scanned (and entries are hashed) only once per
+ * template path, changes are propagated to all configuration sets subscribed to the given template path.
+ *
+ * A single bundle listener is registered for all template paths: any bundle (not only templated ones) could provide
+ * libraries of templates, started and stopped bundles are passed to trackers to reload templates using them.
+ */
+@Component(service = TemplateDiscoveryService.class, immediate = true)
+@Slf4j
+public class TemplateDiscoveryService {
+
+    private final Map<String, SharedTracker> trackers = new HashMap<>();
+    private final BundleListener libraryListener = this::libraryBundleChanged;
+
+    private BundleContext context;
+    private volatile ConfigurationJournal journal;
+
+    @Activate
+    protected void activate(BundleContext context) {
+        this.context = context;
+        context.addBundleListener(libraryListener);
+    }
+
+    @Deactivate
+    protected synchronized void deactivate() {
+        try {
+            context.removeBundleListener(libraryListener);
+        } catch (IllegalStateException ex) {
+            // bundle context is no longer valid, listener is removed by framework
+        }
+        trackers.values().forEach(t -> t.tracker.destroy());
+        trackers.clear();
+        context = null;
+    }
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    synchronized void bindConfigurationJournal(ConfigurationJournal configurationJournal) {
+        journal = configurationJournal;
+        // entries of already tracked bundles are recorded, so journal could be replayed from the current state
+        trackers.values().forEach(t -> t.tracker.record(configurationJournal));
+    }
+
+    void unbindConfigurationJournal(ConfigurationJournal configurationJournal) {
+        if (journal == configurationJournal) {
+            journal = null;
+        }
+    }
+
+    /**
+     * Subscribe to changes of configuration entries under the given template path. Current entries are passed to the
+     * listener immediately (if there is any).
+     *
+     * @param templatePath template path inside bundles
+     * @param listener callback invoked with all entries of the template path on change
+     * @return subscription that have to be closed if changes are no longer needed
+     */
+    public synchronized Subscription subscribe(String templatePath, Function<List<ConfigurationEntry>, Void> listener) {
+        final String path = TemplateResourceBundleTracker.normalizeTemplatePath(templatePath);
+        SharedTracker sharedTracker = trackers.get(path);
+        if (sharedTracker == null) {
+            LOGGER.info("Start tracking template path: " + path);
+            sharedTracker = new SharedTracker();
+            sharedTracker.tracker = new TemplateResourceBundleTracker(context, path, () -> journal, sharedTracker::fire);
+            trackers.put(path, sharedTracker);
+        }
+
+        final SharedTracker subscribed = sharedTracker;
+        synchronized (subscribed.tracker) {
+            subscribed.listeners.add(listener);
+            final List<ConfigurationEntry> entries = subscribed.tracker.getConfigEntries();
+            if (!entries.isEmpty()) {
+                listener.apply(entries);
+            }
+        }
+        return () -> unsubscribe(path, subscribed, listener);
+    }
+
+    private synchronized void unsubscribe(String path, SharedTracker sharedTracker, Function<List<ConfigurationEntry>, Void> listener) {
+        sharedTracker.listeners.remove(listener);
+        if (sharedTracker.listeners.isEmpty() && trackers.get(path) == sharedTracker) {
+            LOGGER.info("Stop tracking template path: " + path);
+            trackers.remove(path);
+            sharedTracker.tracker.destroy();
+        }
+    }
+
+    private void libraryBundleChanged(BundleEvent event) {
+        // libraries are resolved from active bundles, updated bundles are stopped and started again
+        if (event.getType() != BundleEvent.STARTED && event.getType() != BundleEvent.STOPPED) {
+            return;
+        }
+        final List<TemplateResourceBundleTracker> current;
+        synchronized (this) {
+            current = new ArrayList<>(trackers.size());
+            trackers.values().forEach(t -> current.add(t.tracker));
+        }
+        current.forEach(t -> t.librariesChanged(event.getBundle()));
+    }
+
+    /**
+     * Subscription of template path changes.
+     */
+    public interface Subscription {
+        void close();
+    }
+
+    @SuppressWarnings("checkstyle:illegalcatch")
+    private static class SharedTracker {
+        private final List<Function<List<ConfigurationEntry>, Void>> listeners = new CopyOnWriteArrayList<>();
+        private TemplateResourceBundleTracker tracker;
+
+        private Void fire(List<ConfigurationEntry> entries) {
+            for (Function<List<ConfigurationEntry>, Void> listener : listeners) {
+                try {
+                    listener.apply(entries);
+                } catch (RuntimeException ex) {
+                    LOGGER.error("Unable to process configuration entries", ex);
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.function.Function;
+
+/**
+ * Template engine rendering configuration templates. Engine of a template is selected by the <code>engine</code>
+ * attribute of its XML spec (or by the default engine of config set). Built-in engines are <code>freemarker</code> and
+ * <code>substitution</code>, additional engines could be registered as OSGi services.
+ */
+public interface TemplateEngine {
+
+    /**
+     * Get name of engine (referred by XML specs and config set options).
+     *
+     * @return engine name
+     */
+    String getName();
+
+    /**
+     * Compile template. Compiled templates are cached until content of template is changed.
+     *
+     * @param name template name (used by error messages)
+     * @param source template source
+     * @return compiled template
+     * @throws IOException if template could not be read or it is invalid
+     */
+    CompiledTemplate compile(String name, Reader source) throws IOException;
+
+    /**
+     * Compiled template, it is rendered by multiple threads concurrently.
+     */
+    interface CompiledTemplate {
+
+        /**
+         * Render template.
+         *
+         * @param variables resolves template variables by name, returns <code>null</code> if variable is undefined
+         * @param out output of template
+         * @throws IOException if template could not be rendered
+         */
+        void render(Function<String, Object> variables, Writer out) throws IOException;
+    }
+}
@@ -0,0 +1,127 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.net.URL;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Function;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Precomputed index of configuration entries placed into the template path of a bundle.
+ *
+ * Each non-comment line describes one entry in the <code>template;spec;instance;digest</code> format where spec and
+ * instance are optional, file names are relative to the template path and digest is the hexadecimal form of
+ * {@link ConfigurationEntry#checkSum()}. Digest is empty (calculated at runtime) if template uses libraries not found
+ * next to it, they could be provided by other bundles.
+ */
+public final class TemplateIndex {
+
+    public static final String INDEX_FILE_NAME = "configuration-mapper.index";
+
+    private static final String SEPARATOR = ";";
+    private static final String COMMENT = "#";
+    private static final int FIELD_COUNT = 4;
+    private static final int HEX = 16;
+
+    private TemplateIndex() {
+    }
+
+    /**
+     * Read configuration entries from index.
+     *
+     * @param index URL of the index file
+     * @param bundleId ID of bundle containing the index
+     * @param resolver resolves file names (relative to the template path) to URLs, returns null if file does not exist
+     * @return configuration entries with precomputed digests
+     * @throws IOException if index could not be read, it is malformed or it refers to missing files
+     */
+    public static List<ConfigurationEntry> read(URL index, long bundleId, Function<String, URL> resolver) throws IOException {
+        final ImmutableList.Builder<ConfigurationEntry> entries = ImmutableList.builder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(index.openStream(), UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith(COMMENT)) {
+                    continue;
+                }
+                final String[] fields = line.split(SEPARATOR, -1);
+                if (fields.length != FIELD_COUNT || fields[0].isEmpty()) {
+                    throw new IOException("Invalid template index line: " + line);
+                }
+                entries.add(ConfigurationEntry.builder()
+                        .bundleId(bundleId)
+                        .template(resolve(resolver, fields[0]))
+                        .spec(fields[1].isEmpty() ? Optional.empty() : Optional.of(resolve(resolver, fields[1])))
+                        .instance(fields[2].isEmpty() ? Optional.empty() : Optional.of(fields[2]))
+                        .digest(fields[3].isEmpty() ? null : parseDigest(fields[3]))
+                        .build());
+            }
+        }
+        return entries.build();
+    }
+
+    /**
+     * Write index of the given configuration entries.
+     *
+     * @param entries configuration entries (digests are calculated if not precomputed, they are omitted if entry uses
+     *                external libraries)
+     * @param relativizer converts entry URLs to file names relative to the template path
+     * @param writer output
+     */
+    public static void write(List<ConfigurationEntry> entries, Function<URL, String> relativizer, Writer writer) {
+        final PrintWriter out = new PrintWriter(writer);
+        out.println(COMMENT + " template" + SEPARATOR + "spec" + SEPARATOR + "instance" + SEPARATOR + "digest");
+        for (ConfigurationEntry entry : entries) {
+            out.println(relativizer.apply(entry.getTemplate())
+                    + SEPARATOR + entry.getSpec().map(relativizer).orElse("")
+                    + SEPARATOR + entry.getInstance().orElse("")
+                    + SEPARATOR + (entry.getExternalLibraries().isEmpty() ? entry.checkSum().toString(HEX) : ""));
+        }
+        out.flush();
+    }
+
+    private static BigInteger parseDigest(String digest) throws IOException {
+        try {
+            return new BigInteger(digest, HEX);
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid digest in template index: " + digest, ex);
+        }
+    }
+
+    private static URL resolve(Function<String, URL> resolver, String name) throws IOException {
+        final URL url = resolver.apply(name);
+        if (url == null) {
+            throw new IOException("Template index refers to missing file: " + name);
+        }
+        return url;
+    }
+}
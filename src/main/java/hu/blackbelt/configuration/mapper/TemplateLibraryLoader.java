@@ -0,0 +1,168 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import freemarker.cache.TemplateLoader;
+import lombok.extern.slf4j.Slf4j;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * FreeMarker template loader resolving <code>&lt;#include&gt;</code> and <code>&lt;#import&gt;</code> directives of
+ * templates. Templates are named by their URL, so library names are resolved relative to the including template (in the
+ * same bundle or directory). Libraries missing from the bundle of the including template are looked up by the same
+ * path in other active bundles, so libraries could be shared by a bundle.
+ *
+ * Libraries are compiled once and cached by FreeMarker, they are not checked for modification when they are used (so
+ * no URL is opened and no bundle is looked up by renders). Libraries of a template are evicted from the cache when the
+ * template is compiled (its digest contains the content of its libraries), so it is compiled again when a bundle
+ * providing its libraries is started or stopped, see {@link FreeMarkerTemplateEngine#reloadLibraries(Collection)}.
+ */
+@Slf4j
+class TemplateLibraryLoader implements TemplateLoader {
+    private static final Pattern LIBRARY_PATTERN = Pattern.compile("[<\\[]#(?:include|import)\\s+[\"']([^\"']+)[\"']");
+    private static final int MAX_LIBRARY_DEPTH = 16;
+
+    @Override
+    public Object findTemplateSource(String name) throws IOException {
+        try {
+            return resolve(new URL(name));
+        } catch (MalformedURLException ex) {
+            LOGGER.debug("Invalid library name: {}", name);
+            return null;
+        }
+    }
+
+    @Override
+    public long getLastModified(Object templateSource) {
+        try {
+            final URLConnection connection = ((URL) templateSource).openConnection();
+            final long lastModified = connection.getLastModified();
+            connection.getInputStream().close();
+            return lastModified > 0 ? lastModified : -1;
+        } catch (IOException ex) {
+            return -1;
+        }
+    }
+
+    @Override
+    public Reader getReader(Object templateSource, String encoding) throws IOException {
+        return new InputStreamReader(((URL) templateSource).openStream(), encoding);
+    }
+
+    @Override
+    public void closeTemplateSource(Object templateSource) {
+        // readers are closed by FreeMarker
+    }
+
+    /**
+     * Collect libraries (recursively) included or imported by a template.
+     *
+     * @param template URL of template
+     * @param source template source
+     * @return sources of libraries by URL
+     */
+    static Map<URL, String> collectLibraries(URL template, String source) {
+        return collectLibraries(template, source, new HashSet<>());
+    }
+
+    /**
+     * Collect libraries (recursively) included or imported by a template.
+     *
+     * @param template URL of template
+     * @param source template source
+     * @param names library names (URLs relative to the including template, used by FreeMarker as template names) are
+     *              added to, name of a library differs from its URL if it is resolved from another bundle or it is missing
+     * @return sources of libraries by URL
+     */
+    static Map<URL, String> collectLibraries(URL template, String source, Set<URL> names) {
+        final Map<URL, String> libraries = new LinkedHashMap<>();
+        collectLibraries(template, source, libraries, names, 0);
+        return libraries;
+    }
+
+    private static void collectLibraries(URL base, String source, Map<URL, String> libraries, Set<URL> names, int depth) {
+        if (depth >= MAX_LIBRARY_DEPTH) {
+            return;
+        }
+        final Matcher matcher = LIBRARY_PATTERN.matcher(source);
+        while (matcher.find()) {
+            try {
+                final URL candidate = new URL(base, matcher.group(1));
+                names.add(candidate);
+                // resolved URL is the candidate itself if library exists next to the including template
+                final URL library = resolve(candidate);
+                if (library != null && !libraries.containsKey(library)) {
+                    final String librarySource = Utils.readUrl(library);
+                    libraries.put(library, librarySource);
+                    collectLibraries(library, librarySource, libraries, names, depth + 1);
+                }
+            } catch (IOException ex) {
+                // missing libraries are reported when template is rendered
+                LOGGER.debug("Unable to read library {} of {}: {}", matcher.group(1), base, ex.getMessage());
+            }
+        }
+    }
+
+    private static URL resolve(URL url) {
+        if (exists(url)) {
+            return url;
+        }
+        final Bundle bundle = FrameworkUtil.getBundle(TemplateLibraryLoader.class);
+        final BundleContext context = bundle != null ? bundle.getBundleContext() : null;
+        if (context == null || "file".equals(url.getProtocol())) {
+            return null;
+        }
+        for (Bundle b : context.getBundles()) {
+            if (b.getState() == Bundle.ACTIVE) {
+                final URL entry = b.getEntry(url.getPath());
+                if (entry != null) {
+                    return entry;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean exists(URL url) {
+        try (InputStream is = url.openStream()) {
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+}
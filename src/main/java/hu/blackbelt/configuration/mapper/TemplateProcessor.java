@@ -21,22 +21,42 @@ package hu.blackbelt.configuration.mapper;
  */
 
 import com.google.common.base.CaseFormat;
-import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import freemarker.core.Environment;
 import freemarker.template.Configuration;
 import freemarker.template.Template;
+import freemarker.template.TemplateCollectionModel;
 import freemarker.template.TemplateException;
-import freemarker.template.TemplateExceptionHandler;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelIterator;
+import freemarker.template.TemplateScalarModel;
+import freemarker.template.TemplateSequenceModel;
+import freemarker.template.utility.DeepUnwrap;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
@@ -46,41 +66,133 @@ public class TemplateProcessor {
 
     public static final String DOT = ".";
     public static final String UNDERSCORE = "_";
+    private static final String LIST_VARIABLE = "__list";
+    private static final int EXPRESSION_CACHE_SIZE = 10000;
 
-    private Map<String, Object> templateProperties;
-    private final String keyPrefix;
-    private final List<VariableScope> variableScopePrecedence;
+    private static final Map<String, TemplateEngine> BUILT_IN_ENGINES = ImmutableMap.of(
+            FreeMarkerTemplateEngine.NAME, FreeMarkerTemplateEngine.SHARED,
+            SubstitutionTemplateEngine.NAME, SubstitutionTemplateEngine.SHARED);
+
+    /**
+     * Compiled templates shared by all config sets, a template is kept until any config set is using it.
+     */
+    private static final Cache<TemplateKey, TemplateEngine.CompiledTemplate> SHARED_TEMPLATES = CacheBuilder.newBuilder()
+            .weakValues()
+            .build();
+
+    /**
+     * Compiled expressions (conditions, factory PIDs and lists) shared by all config sets.
+     */
+    private static final Cache<String, Template> SHARED_EXPRESSIONS = CacheBuilder.newBuilder()
+            .maximumSize(EXPRESSION_CACHE_SIZE)
+            .build();
+
+    private volatile Map<String, Object> templateProperties;
+    private volatile String keyPrefix;
+    private volatile List<VariableScope> variableScopePrecedence;
+    private volatile RenderBudget renderBudget;
+    private volatile Map<String, Object> osgiProperties;
+    private volatile Map<String, String> environment;
+    private volatile Map<String, String> systemProperties;
+    private final Map<ConfigurationEntry, CachedTemplate> templateCache = new ConcurrentHashMap<>();
+    private volatile String defaultEngine = FreeMarkerTemplateEngine.NAME;
+    private volatile Function<String, TemplateEngine> additionalEngines = name -> null;
     private final static String NEWLINE = System.getProperty("line.separator");
 
     public enum VariableScope {
         osgi, environment, system
     }
 
-    Configuration templateConfiguration = new Configuration(Configuration.VERSION_2_3_22);
+    private final Configuration templateConfiguration = FreeMarkerTemplateEngine.SHARED.getConfiguration();
 
     public TemplateProcessor(Map<String, Object> props, String keyPrefix, List<VariableScope> variableScopePrecedence) {
+        this(props, keyPrefix, variableScopePrecedence, RenderBudget.UNLIMITED);
+    }
+
+    public TemplateProcessor(Map<String, Object> props, String keyPrefix, List<VariableScope> variableScopePrecedence,
+                             RenderBudget renderBudget) {
         this.keyPrefix = keyPrefix;
         this.variableScopePrecedence = variableScopePrecedence;
+        this.renderBudget = renderBudget;
 
-        templateConfiguration.setTemplateExceptionHandler(TemplateExceptionHandler.RETHROW_HANDLER);
-        templateConfiguration.setDefaultEncoding(Charsets.UTF_8.name());
 
         setTemplateProperties(props);
     }
 
-    public void updateOsgiConfigs(Map<String, Object> props) {
+    public synchronized void updateOsgiConfigs(Map<String, Object> props) {
         setTemplateProperties(props);
     }
 
-    @SneakyThrows({ IOException.class, TemplateException.class })
+    /**
+     * Update variable settings and recompute template variables.
+     *
+     * @param props OSGi configuration options
+     * @param keyPrefix environment prefix
+     * @param variableScopePrecedence variable scope precedence
+     */
+    public synchronized void updateVariables(Map<String, Object> props, String keyPrefix, List<VariableScope> variableScopePrecedence) {
+        this.keyPrefix = keyPrefix;
+        this.variableScopePrecedence = variableScopePrecedence;
+        setTemplateProperties(props);
+    }
+
+    public void setRenderBudget(RenderBudget renderBudget) {
+        this.renderBudget = renderBudget;
+    }
+
+    /**
+     * Use the given environment and system variables instead of the variables of the JVM (ie. when a recorded journal
+     * is replayed) and recompute template variables.
+     *
+     * @param environment environment variables, <code>null</code> to use environment of the JVM
+     * @param systemProperties system properties, <code>null</code> to use system properties of the JVM
+     */
+    public synchronized void setVariableSources(Map<String, String> environment, Map<String, String> systemProperties) {
+        this.environment = environment;
+        this.systemProperties = systemProperties;
+        setTemplateProperties(osgiProperties);
+    }
+
+    /**
+     * Set template engines.
+     *
+     * @param defaultEngine name of engine used by templates without engine specified by XML spec
+     * @param additionalEngines resolves engines (other than built-in ones) by name, returns <code>null</code> if engine
+     *                          does not exist
+     */
+    public void setTemplateEngines(String defaultEngine, Function<String, TemplateEngine> additionalEngines) {
+        this.defaultEngine = defaultEngine;
+        this.additionalEngines = additionalEngines;
+    }
+
+    /**
+     * Drop compiled templates of entries which are not used anymore.
+     *
+     * @param entries configuration entries in use
+     */
+    public void retainTemplates(Collection<ConfigurationEntry> entries) {
+        templateCache.keySet().retainAll(new HashSet<>(entries));
+    }
+
     public boolean isProcess(String name, Optional<String> expression) {
+        return isProcess(name, expression, Collections.emptyMap());
+    }
+
+    /**
+     * Evaluate condition expression.
+     *
+     * @param name name of component instance
+     * @param expression condition expression, component instance is created if not present
+     * @param variables additional (loop) variables
+     * @return component instance have to be created
+     */
+    @SneakyThrows({ IOException.class, TemplateException.class })
+    public boolean isProcess(String name, Optional<String> expression, Map<String, Object> variables) {
         if (expression.isPresent()) {
             LOGGER.trace("Expression: " + expression.get());
-            Template t = new Template("E-" + name,
-                    new StringReader("<#if " + expression.get() + ">true<#else>false</#if>"),
-                    templateConfiguration);
+            Template t = getExpression("E-" + name, "<#if " + expression.get() + ">true<#else>false</#if>");
             StringWriter w = new StringWriter();
-            t.process(templateProperties, w);
+            process(t, variables, w);
             String result = w.toString();
             LOGGER.debug("Expression result: {}", result);
             if ("true".equalsIgnoreCase(result)) {
@@ -92,12 +204,24 @@ public class TemplateProcessor {
         }
     }
 
-    @SneakyThrows({ IOException.class, TemplateException.class })
     public String resolvePid(String name, Optional<String> pidExpression) {
+        return resolvePid(name, pidExpression, Collections.emptyMap());
+    }
+
+    /**
+     * Resolve factory PID (instance name) expression.
+     *
+     * @param name name of configuration entry
+     * @param pidExpression factory PID expression
+     * @param variables additional (loop) variables
+     * @return resolved factory PID or <code>null</code> if it is empty
+     */
+    @SneakyThrows({ IOException.class, TemplateException.class })
+    public String resolvePid(String name, Optional<String> pidExpression, Map<String, Object> variables) {
         if (pidExpression.isPresent()) {
-            Template t = new Template("PID-" + name, pidExpression.get(), templateConfiguration);
+            Template t = getExpression("PID-" + name, pidExpression.get());
             StringWriter w = new StringWriter();
-            t.process(templateProperties, w);
+            process(t, variables, w);
             String factoryPid = w.toString().trim();
             if (!factoryPid.isEmpty()) {
                 return w.toString();
@@ -106,16 +230,171 @@ public class TemplateProcessor {
         return null;
     }
 
-    @SneakyThrows({ IOException.class, TemplateException.class })
     public String getConfig(ConfigurationEntry configurationEntry) {
-        Template t = new Template(configurationEntry.getTemplate().toString(),
-                new InputStreamReader(configurationEntry.getTemplate().openStream(), UTF_8),
-                templateConfiguration);
         StringWriter w = new StringWriter();
-        t.process(templateProperties, w);
+        render(configurationEntry, w);
         return  w.toString();
     }
 
+    /**
+     * Evaluate list expression. Sequences and collections are returned as they are, strings are split by the given
+     * separator.
+     *
+     * @param name name of configuration entry
+     * @param expression list expression
+     * @param separator separator of elements if expression is evaluated to string
+     * @return elements of list
+     */
+    @SneakyThrows({ IOException.class, TemplateException.class })
+    public List<Object> evaluateList(String name, String expression, String separator) {
+        Template t = getExpression("L-" + name, "<#assign " + LIST_VARIABLE + " = (" + expression + ")>");
+        Environment env = t.createProcessingEnvironment(templateProperties, new StringWriter());
+        env.process();
+
+        final TemplateModel list = env.getMainNamespace().get(LIST_VARIABLE);
+        final ImmutableList.Builder<Object> elements = ImmutableList.builder();
+        if (list instanceof TemplateSequenceModel) {
+            final TemplateSequenceModel sequence = (TemplateSequenceModel) list;
+            for (int i = 0; i < sequence.size(); i++) {
+                elements.add(DeepUnwrap.unwrap(sequence.get(i)));
+            }
+        } else if (list instanceof TemplateCollectionModel) {
+            for (TemplateModelIterator it = ((TemplateCollectionModel) list).iterator(); it.hasNext();) {
+                elements.add(DeepUnwrap.unwrap(it.next()));
+            }
+        } else if (list instanceof TemplateScalarModel) {
+            elements.addAll(Splitter.on(separator).trimResults().omitEmptyStrings().split(((TemplateScalarModel) list).getAsString()));
+        } else if (list != null) {
+            throw new IllegalArgumentException("List expression of " + name + " is not a sequence or string: " + expression);
+        }
+        return elements.build();
+    }
+
+    public void render(ConfigurationEntry configurationEntry, Writer out) {
+        render(configurationEntry, Collections.emptyMap(), out);
+    }
+
+    public void render(ConfigurationEntry configurationEntry, Map<String, Object> variables, Writer out) {
+        render(configurationEntry, Optional.empty(), variables, out);
+    }
+
+    /**
+     * Render template of configuration entry. Template is compiled once and reused until content of configuration
+     * entry (or its engine) is changed.
+     *
+     * @param configurationEntry configuration entry
+     * @param engine name of template engine, default engine is used if not present
+     * @param variables additional (loop) variables
+     * @param out output of template
+     */
+    @SneakyThrows(IOException.class)
+    public void render(ConfigurationEntry configurationEntry, Optional<String> engine, Map<String, Object> variables, Writer out) {
+        final String name = configurationEntry.getTemplate().toString();
+        final TemplateEngine.CompiledTemplate template = getTemplate(configurationEntry, engine);
+        renderBudget.render(name, out, limited -> template.render(variables(variables), limited));
+    }
+
+    /**
+     * Render template of configuration entry and collect names of template variables used by rendering.
+     *
+     * @param configurationEntry configuration entry
+     * @param engine name of template engine, default engine is used if not present
+     * @param variables additional (loop) variables
+     * @param out output of template
+     * @param dependencies names of used template variables are added to
+     */
+    @SneakyThrows(IOException.class)
+    void render(ConfigurationEntry configurationEntry, Optional<String> engine, Map<String, Object> variables, Writer out,
+                Set<String> dependencies) {
+        final String name = configurationEntry.getTemplate().toString();
+        final Function<String, Object> resolver = variables(variables);
+        final TemplateEngine.CompiledTemplate template = getTemplate(configurationEntry, engine);
+        renderBudget.render(name, out, limited -> template.render(key -> {
+            if (!variables.containsKey(key)) {
+                dependencies.add(key);
+            }
+            return resolver.apply(key);
+        }, limited));
+    }
+
+    /**
+     * Parse template of configuration entry.
+     *
+     * @param configurationEntry configuration entry
+     * @param engine name of template engine, default engine is used if not present
+     * @throws IOException if template could not be read or it is invalid
+     */
+    void compile(ConfigurationEntry configurationEntry, Optional<String> engine) throws IOException {
+        getTemplate(configurationEntry, engine);
+    }
+
+    private TemplateEngine.CompiledTemplate getTemplate(ConfigurationEntry configurationEntry, Optional<String> engineName) throws IOException {
+        final TemplateEngine engine = getEngine(engineName.orElse(defaultEngine));
+        final BigInteger digest = configurationEntry.checkSum();
+        final CachedTemplate cached = templateCache.get(configurationEntry);
+        if (cached != null && cached.digest.equals(digest) && cached.engine == engine) {
+            return cached.template;
+        }
+        final String name = configurationEntry.getTemplate().toString();
+        final TemplateEngine.CompiledTemplate t = getShared(SHARED_TEMPLATES, new TemplateKey(engine, name, digest), () -> {
+            if (engine == FreeMarkerTemplateEngine.SHARED && !configurationEntry.getLibraryNames().isEmpty()) {
+                // template or any of its libraries is changed (or not compiled yet), cached libraries could be outdated
+                FreeMarkerTemplateEngine.SHARED.reloadLibraries(configurationEntry.getLibraryNames());
+            }
+            try (Reader reader = new InputStreamReader(configurationEntry.getTemplate().openStream(), UTF_8)) {
+                return engine.compile(name, reader);
+            }
+        });
+        templateCache.put(configurationEntry, new CachedTemplate(digest, engine, t));
+        return t;
+    }
+
+    private Template getExpression(String name, String source) throws IOException {
+        return getShared(SHARED_EXPRESSIONS, name + '\n' + source, () -> new Template(name, new StringReader(source), templateConfiguration));
+    }
+
+    private static <K, V> V getShared(Cache<K, V> cache, K key, Callable<V> loader) throws IOException {
+        try {
+            return cache.get(key, loader);
+        } catch (ExecutionException | UncheckedExecutionException ex) {
+            Throwables.throwIfInstanceOf(ex.getCause(), IOException.class);
+            Throwables.throwIfUnchecked(ex.getCause());
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    private TemplateEngine getEngine(String name) throws IOException {
+        TemplateEngine engine = BUILT_IN_ENGINES.get(name);
+        if (engine == null) {
+            engine = additionalEngines.apply(name);
+        }
+        if (engine == null) {
+            throw new IOException("Unknown template engine: " + name);
+        }
+        return engine;
+    }
+
+    private Function<String, Object> variables(Map<String, Object> variables) {
+        final Map<String, Object> properties = templateProperties;
+        if (variables.isEmpty()) {
+            return properties::get;
+        }
+        // loop variables hide template variables of the same name
+        return key -> variables.containsKey(key) ? variables.get(key) : properties.get(key);
+    }
+
+    private void process(Template t, Map<String, Object> variables, Writer out) throws IOException, TemplateException {
+        if (variables.isEmpty()) {
+            t.process(templateProperties, out);
+        } else {
+            Environment env = t.createProcessingEnvironment(templateProperties, out);
+            for (Map.Entry<String, Object> variable : variables.entrySet()) {
+                env.setGlobalVariable(variable.getKey(), env.getObjectWrapper().wrap(variable.getValue()));
+            }
+            env.process();
+        }
+    }
+
     /**
      * Process configuration parameters, ie. replace special (dot) character in keys.
      *
@@ -127,10 +406,12 @@ public class TemplateProcessor {
     }
 
     private void setTemplateProperties(Map<String, Object> props) {
+        osgiProperties = props;
+        final Map<String, String> env = environment != null ? environment : System.getenv();
+        final Map system = systemProperties != null ? systemProperties : Utils.fromDictionary(System.getProperties());
         final Map<String, Object> osgiConfigs = processingParameters(props);
-        final Map<String, Object> envConfigs = replacePrefixedKeys(processingParameters(System.getenv()));
-        final Map systemParameters = Utils.fromDictionary(System.getProperties());
-        final Map<String, Object> systemConfigs = processingParameters((Map<String, Object>) systemParameters);
+        final Map<String, Object> envConfigs = replacePrefixedKeys(processingParameters(env));
+        final Map<String, Object> systemConfigs = processingParameters((Map<String, Object>) system);
 
         final Map<String, Object> configEntries = new HashMap<>();
         for (final VariableScope scope : variableScopePrecedence) {
@@ -152,10 +433,11 @@ public class TemplateProcessor {
             }
         }
 
-        templateProperties = new HashMap(configEntries);
-        templateProperties.put("system", Utils.fromDictionary(System.getProperties()));
-        templateProperties.put("environment", System.getenv());
-        templateProperties = ImmutableMap.copyOf(templateProperties);
+        // variables are published at once, templates could be rendered concurrently
+        final Map<String, Object> properties = new HashMap(configEntries);
+        properties.put("system", system);
+        properties.put("environment", env);
+        templateProperties = ImmutableMap.copyOf(properties);
 
         printConfigurations(configTypeByKey, configEntries);
     }
@@ -177,7 +459,7 @@ public class TemplateProcessor {
         b.append("Properties used for configuration template: \n");
         for (String k : Ordering.natural().sortedCopy(properties.keySet())) {
             Object value = properties.get(k);
-            if (k.toLowerCase().contains("password") || k.toLowerCase().contains("secret")) {
+            if (Utils.isSecretKey(k)) {
                 value = "**************";
             }
             b.append(NEWLINE + "\t" +  k + " (" + configTypesByKey.get(k) + ") = " + value);
@@ -185,4 +467,18 @@ public class TemplateProcessor {
         LOGGER.info(b.toString());
     }
 
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    private static class TemplateKey {
+        private final TemplateEngine engine;
+        private final String name;
+        private final BigInteger digest;
+    }
+
+    @AllArgsConstructor
+    private static class CachedTemplate {
+        private final BigInteger digest;
+        private final TemplateEngine engine;
+        private final TemplateEngine.CompiledTemplate template;
+    }
 }
@@ -30,28 +30,63 @@ import org.osgi.framework.BundleEvent;
 import org.osgi.util.tracker.BundleTracker;
 import org.osgi.util.tracker.BundleTrackerCustomizer;
 
-import java.math.BigInteger;
+import java.io.IOException;
 import java.net.URL;
 import java.util.*;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static java.util.stream.Collectors.toList;
 
 @Slf4j
 public class TemplateResourceBundleTracker {
+    private static final String TEMPLATE_EXTENSION = ".template";
+    private static final String SPEC_EXTENSION = ".xml";
 
     BundleTracker tracker;
 
     private final Map<Bundle, List<ConfigurationEntry>> configEntries = Maps.newHashMap();
-    private final Map<Bundle, BigInteger> configEntriesChecksums = Maps.newHashMap();
     private final Set<Bundle> templatedBundles = Sets.newHashSet();
 
     private final String templatePath;
     private final Function<List<ConfigurationEntry>, Void> configurationEntriesChanged;
+    private final Supplier<ConfigurationJournal> journal;
+    private boolean suppressEvents;
 
     public TemplateResourceBundleTracker(BundleContext bundleContext, String templatePath, String prefix,
                                          Function<List<ConfigurationEntry>, Void> configurationEntriesChanged) {
+        this(bundleContext, templatePath, configurationEntriesChanged);
+        final List<ConfigurationEntry> initialEntries = getConfigEntries();
+        if (!initialEntries.isEmpty()) {
+            configurationEntriesChanged.apply(initialEntries);
+        }
+    }
+
+    /**
+     * Create tracker and scan all active bundles. Changes detected during initial scan (and on closing tracker) are not
+     * propagated one by one, use {@link #getConfigEntries()} to get the initial state.
+     *
+     * @param bundleContext bundle context used to track bundles
+     * @param templatePath template path inside bundles
+     * @param configurationEntriesChanged callback invoked with all entries on change
+     */
+    public TemplateResourceBundleTracker(BundleContext bundleContext, String templatePath,
+                                         Function<List<ConfigurationEntry>, Void> configurationEntriesChanged) {
+        this(bundleContext, templatePath, () -> null, configurationEntriesChanged);
+    }
+
+    /**
+     * Create tracker and scan all active bundles. Bundle events are recorded by the current journal (if any).
+     *
+     * @param bundleContext bundle context used to track bundles
+     * @param templatePath template path inside bundles
+     * @param journal returns the current journal, <code>null</code> if events are not recorded
+     * @param configurationEntriesChanged callback invoked with all entries on change
+     */
+    public TemplateResourceBundleTracker(BundleContext bundleContext, String templatePath, Supplier<ConfigurationJournal> journal,
+                                         Function<List<ConfigurationEntry>, Void> configurationEntriesChanged) {
         this.templatePath = templatePath;
+        this.journal = journal;
         this.configurationEntriesChanged = configurationEntriesChanged;
 
         tracker = new BundleTracker(bundleContext, Bundle.ACTIVE,
@@ -72,61 +107,154 @@ public class TemplateResourceBundleTracker {
                     }
                 });
 
-        tracker.open();
+        synchronized (this) {
+            suppressEvents = true;
+            try {
+                tracker.open();
+            } finally {
+                suppressEvents = false;
+            }
+        }
+    }
+
+    /**
+     * Get configuration entries of all tracked bundles.
+     *
+     * @return configuration entries
+     */
+    public synchronized List<ConfigurationEntry> getConfigEntries() {
+        return configEntries.values().stream().flatMap(v -> v.stream()).collect(toList());
     }
 
-    public void refreshAllBundles() {
+    public synchronized void refreshAllBundles() {
         templatedBundles.forEach( bundle -> {
             LOGGER.debug("refreshingBundle: " + bundle.getSymbolicName());
             modifiedBundle(bundle, true);
         });
     }
 
+    /**
+     * Record entries of all tracked bundles into the given journal (ie. when journal is started after bundles).
+     *
+     * @param target journal
+     */
+    public synchronized void record(ConfigurationJournal target) {
+        configEntries.forEach((bundle, entries) -> {
+            if (!entries.isEmpty()) {
+                target.bundleEvent(ConfigurationJournal.ADDING, templatePath, bundle.getBundleId(), bundle.getSymbolicName(), entries);
+            }
+        });
+    }
+
     public void destroy() {
+        synchronized (this) {
+            suppressEvents = true;
+        }
         tracker.close();
     }
 
-    private Object addingBundle(Bundle bundle) {
-        List<ConfigurationEntry> newEntries = collectConfigEntriesFromBundle(TemplateResourceBundleTracker.this.templatePath, bundle);
+    /**
+     * Calculate digests of entries again which are using libraries of other bundles that the given (started or stopped)
+     * bundle provides, so templates are rendered again if their libraries are changed. Nothing is done if the bundle
+     * provides none of the library paths. Entries of the bundle itself are tracked by bundle tracker.
+     *
+     * Bundle events are not tracked by the tracker itself, they are passed by the owner (a single bundle listener for all
+     * trackers), see {@link TemplateDiscoveryService}.
+     *
+     * @param bundle started or stopped bundle
+     */
+    synchronized void librariesChanged(Bundle bundle) {
+        // each library path is looked up once per event
+        final Map<String, Boolean> provided = new HashMap<>();
+        boolean changed = false;
+        for (Map.Entry<Bundle, List<ConfigurationEntry>> e : configEntries.entrySet()) {
+            if (e.getKey().equals(bundle)) {
+                continue;
+            }
+            final List<ConfigurationEntry> newEntries = e.getValue().stream()
+                    .map(entry -> provides(bundle, entry.getExternalLibraries(), provided) ? reload(entry) : entry)
+                    .collect(toList());
+            final ConfigurationEntryDelta delta = ConfigurationEntryDelta.diff(e.getValue(), newEntries);
+            if (!delta.isEmpty()) {
+                LOGGER.info("Libraries of bundle: " + e.getKey().getSymbolicName() + " changed by bundle: " + bundle.getSymbolicName()
+                        + ", configurations have to be reloaded");
+                LOGGER.trace("entry changes: {}", delta);
+                e.setValue(newEntries);
+                record(ConfigurationJournal.MODIFIED, e.getKey(), newEntries);
+                changed = true;
+            }
+        }
+        if (changed) {
+            fireConfigurationEntriesChanged();
+        }
+    }
+
+    private static ConfigurationEntry reload(ConfigurationEntry entry) {
+        // only libraries of the affected template are evicted, they are loaded again by the next render
+        FreeMarkerTemplateEngine.SHARED.reloadLibraries(entry.getLibraryNames());
+        return entry.reload();
+    }
+
+    private static boolean provides(Bundle bundle, Set<String> paths, Map<String, Boolean> provided) {
+        return paths.stream().anyMatch(path -> provided.computeIfAbsent(path, p -> {
+            try {
+                return bundle.getEntry(p) != null;
+            } catch (IllegalStateException ex) {
+                // uninstalled bundle
+                return false;
+            }
+        }));
+    }
+
+    private synchronized Object addingBundle(Bundle bundle) {
+        List<ConfigurationEntry> newEntries = collectConfigEntriesFromBundle(templatePath, bundle);
         configEntries.put(bundle, newEntries);
         LOGGER.trace("new entries: {}", newEntries);
-        configEntriesChecksums.put(bundle, calculateChecksum(newEntries));
+        // digests are calculated while bundle content is available to detect changes later
+        newEntries.forEach(ConfigurationEntry::checkSum);
         if (newEntries.size() > 0) {
+            record(ConfigurationJournal.ADDING, bundle, newEntries);
             templatedBundles.add(bundle);
             LOGGER.info("Bundle: " + bundle.getSymbolicName() + " entries adding");
-            configurationEntriesChanged.apply(configEntries.values().stream().flatMap(v -> v.stream()).collect(toList()));
+            fireConfigurationEntriesChanged();
             return bundle;
         }
         return null;
     }
 
-    private void modifiedBundle(Bundle bundle, boolean skipChecksum) {
+    private synchronized void modifiedBundle(Bundle bundle, boolean skipChecksum) {
         List<ConfigurationEntry> newEntries = collectConfigEntriesFromBundle(templatePath, bundle);
-        BigInteger newChecksum = calculateChecksum(newEntries);
-        if (skipChecksum || !configEntriesChecksums.get(bundle).equals(newChecksum)) {
+        ConfigurationEntryDelta delta = ConfigurationEntryDelta.diff(configEntries.get(bundle), newEntries);
+        if (skipChecksum || !delta.isEmpty()) {
             LOGGER.info("Bundle: " + bundle.getSymbolicName() + " checksum differs (or ignored), configurations have to be reloaded");
             configEntries.put(bundle, newEntries);
-            LOGGER.trace("new entries: {}", newEntries);
-            configEntriesChecksums.put(bundle, newChecksum);
-            configurationEntriesChanged.apply(configEntries.values().stream().flatMap(v -> v.stream()).collect(toList()));
+            record(ConfigurationJournal.MODIFIED, bundle, newEntries);
+            LOGGER.trace("entry changes: {}", delta);
+            fireConfigurationEntriesChanged();
         }
     }
 
-    private void removedBundle(Bundle bundle) {
+    private synchronized void removedBundle(Bundle bundle) {
         boolean haveToRefresh = false;
         if (configEntries.get(bundle).size() > 0) {
             haveToRefresh = true;
         }
         configEntries.remove(bundle);
-        configEntriesChecksums.remove(bundle);
         if (haveToRefresh) {
+            record(ConfigurationJournal.REMOVED, bundle, ImmutableList.of());
             LOGGER.info("Bundle: " + bundle.getSymbolicName() + " entries removing");
-            configurationEntriesChanged.apply(configEntries.values().stream().flatMap(v -> v.stream()).collect(toList()));
+            fireConfigurationEntriesChanged();
         }
         templatedBundles.remove(bundle);
     }
 
-    private List<ConfigurationEntry> collectConfigEntriesFromBundle(String templatePath, Bundle bundle) {
+    /**
+     * Normalize template path, it starts and ends with <code>/</code> character.
+     *
+     * @param templatePath template path
+     * @return normalized template path
+     */
+    public static String normalizeTemplatePath(String templatePath) {
         String templatedPathCorrected = templatePath;
         if (!templatePath.endsWith("/")) {
             templatedPathCorrected = templatedPathCorrected + "/";
@@ -134,37 +262,88 @@ public class TemplateResourceBundleTracker {
         if (!templatePath.startsWith("/")) {
             templatedPathCorrected =  "/" + templatedPathCorrected;
         }
+        return templatedPathCorrected;
+    }
 
-        Enumeration<String> paths = bundle.getEntryPaths(templatedPathCorrected);
-        if (paths == null) {
-            return ImmutableList.of();
+    private void record(String type, Bundle bundle, List<ConfigurationEntry> entries) {
+        final ConfigurationJournal target = journal.get();
+        if (target != null) {
+            target.bundleEvent(type, templatePath, bundle.getBundleId(), bundle.getSymbolicName(), entries);
         }
+    }
 
-        List<String> allCorespondingFiles = Collections.list(paths).stream()
-                .collect(toList());
-
-        return allCorespondingFiles.stream().filter(s -> s.endsWith(".template")).map(s ->
-                {
-                    URL templateUrl = bundle.getEntry(s);
-                    Optional<URL> specUrl = Optional.empty();
-                    Optional<String> instance = Optional.empty();
-                    String nameWithoutExtension = s.substring(0, s.lastIndexOf("."));
-                    String nameWithoutExtensionAndInstance = nameWithoutExtension.substring(0, nameWithoutExtension.lastIndexOf("-"));
-                    if (allCorespondingFiles.contains(nameWithoutExtension + ".xml")) {
-                        specUrl = Optional.of(bundle.getEntry(nameWithoutExtension + ".xml"));
-                    } else if (allCorespondingFiles.contains(nameWithoutExtensionAndInstance + ".xml")) {
-                        specUrl = Optional.of(bundle.getEntry(nameWithoutExtensionAndInstance + ".xml"));
-                        instance  = Optional.of(nameWithoutExtension.replace(nameWithoutExtensionAndInstance+"-", ""));
-                    }
-                    return ConfigurationEntry.builder().template(templateUrl).spec(specUrl).instance(instance).build();
+    private void fireConfigurationEntriesChanged() {
+        if (!suppressEvents) {
+            configurationEntriesChanged.apply(getConfigEntries());
+        }
+    }
+
+    /**
+     * Collect configuration entries of a bundle. Template index is used if it exists, template path is enumerated once
+     * (including subdirectories) otherwise.
+     *
+     * @param templatePath template path inside bundle
+     * @param bundle bundle
+     * @return configuration entries
+     */
+    static List<ConfigurationEntry> collectConfigEntriesFromBundle(String templatePath, Bundle bundle) {
+        final String templatedPathCorrected = normalizeTemplatePath(templatePath);
+
+        final URL index = bundle.getEntry(templatedPathCorrected + TemplateIndex.INDEX_FILE_NAME);
+        if (index != null) {
+            final String indexBase = templatedPathCorrected;
+            try {
+                return TemplateIndex.read(index, bundle.getBundleId(), name -> bundle.getEntry(indexBase + name));
+            } catch (IOException ex) {
+                LOGGER.warn("Unable to read template index of bundle " + bundle.getSymbolicName() + ", scanning template path", ex);
+            }
+        }
 
-                }
-        ).collect(toList());
+        final Enumeration<URL> urls = bundle.findEntries(templatedPathCorrected, "*", true);
+        if (urls == null) {
+            return ImmutableList.of();
+        }
+        final Map<String, URL> files = new LinkedHashMap<>();
+        while (urls.hasMoreElements()) {
+            final URL url = urls.nextElement();
+            if (!url.getPath().endsWith("/")) {
+                files.putIfAbsent(url.getPath(), url);
+            }
+        }
+        return collectConfigEntries(bundle.getBundleId(), files.keySet(), files::get);
     }
 
-    private BigInteger calculateChecksum(List<ConfigurationEntry> list) {
-        StringBuilder sb = new StringBuilder();
-        list.stream().forEach(c -> sb.append(c.checkSum().toString()));
-        return Utils.sha1(sb.toString());
+    /**
+     * Collect configuration entries from file names of template path. XML spec of a template is
+     * <code>&lt;name&gt;.xml</code> or <code>&lt;base&gt;.xml</code> if file name of template is
+     * <code>&lt;base&gt;-&lt;instance&gt;.template</code> (instance is separated by the last dash of the file name).
+     *
+     * @param bundleId ID of bundle containing the files
+     * @param allCorespondingFiles paths of files in template path (including subdirectories)
+     * @param resolver resolves paths to URLs
+     * @return configuration entries
+     */
+    static List<ConfigurationEntry> collectConfigEntries(long bundleId, Collection<String> allCorespondingFiles, Function<String, URL> resolver) {
+        // specs are looked up by hash instead of scanning all files for each template
+        final Set<String> files = allCorespondingFiles instanceof Set ? (Set<String>) allCorespondingFiles : new HashSet<>(allCorespondingFiles);
+        final ImmutableList.Builder<ConfigurationEntry> entries = ImmutableList.builder();
+        for (String file : allCorespondingFiles) {
+            if (!file.endsWith(TEMPLATE_EXTENSION)) {
+                continue;
+            }
+            final String nameWithoutExtension = file.substring(0, file.length() - TEMPLATE_EXTENSION.length());
+            final int instanceSeparator = nameWithoutExtension.lastIndexOf('-');
+            Optional<URL> specUrl = Optional.empty();
+            Optional<String> instance = Optional.empty();
+            if (files.contains(nameWithoutExtension + SPEC_EXTENSION)) {
+                specUrl = Optional.of(resolver.apply(nameWithoutExtension + SPEC_EXTENSION));
+            } else if (instanceSeparator > nameWithoutExtension.lastIndexOf('/') + 1 && instanceSeparator < nameWithoutExtension.length() - 1
+                    && files.contains(nameWithoutExtension.substring(0, instanceSeparator) + SPEC_EXTENSION)) {
+                specUrl = Optional.of(resolver.apply(nameWithoutExtension.substring(0, instanceSeparator) + SPEC_EXTENSION));
+                instance = Optional.of(nameWithoutExtension.substring(instanceSeparator + 1));
+            }
+            entries.add(ConfigurationEntry.builder().bundleId(bundleId).template(resolver.apply(file)).spec(specUrl).instance(instance).build());
+        }
+        return entries.build();
     }
 }
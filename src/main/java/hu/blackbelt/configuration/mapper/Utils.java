@@ -333,6 +333,34 @@ public final class Utils {
     }
 
 
+    /**
+     * Escape value of an LDAP filter (<code>\\</code>, <code>*</code>, <code>(</code> and <code>)</code> characters).
+     *
+     * @param value filter value
+     * @return escaped value
+     */
+    public static String escapeFilterValue(String value) {
+        final StringBuilder b = new StringBuilder(value.length());
+        for (char c : value.toCharArray()) {
+            if (c == '\\' || c == '*' || c == '(' || c == ')') {
+                b.append('\\');
+            }
+            b.append(c);
+        }
+        return b.toString();
+    }
+
+    /**
+     * Check if the given configuration key holds a secret (value must not be logged or recorded).
+     *
+     * @param key configuration key
+     * @return <code>true</code> if key contains <code>password</code> or <code>secret</code>
+     */
+    public static boolean isSecretKey(String key) {
+        final String lowerCaseKey = key.toLowerCase();
+        return lowerCaseKey.contains("password") || lowerCaseKey.contains("secret");
+    }
+
     /**
      * Generating sha1 of the given object.
      * @param obj Any Java object
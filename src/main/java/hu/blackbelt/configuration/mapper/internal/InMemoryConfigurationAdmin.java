@@ -0,0 +1,181 @@
+package hu.blackbelt.configuration.mapper.internal;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+import java.io.IOException;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Configuration admin keeping configurations in memory, used to replay journals without OSGi framework. Number of
+ * updates and deletes is counted, configuration events are not fired.
+ *
+ * Internal package is not exported by the bundle, configuration admin is used by offline tools only.
+ */
+public class InMemoryConfigurationAdmin implements ConfigurationAdmin {
+    private final Map<String, InMemoryConfiguration> configurations = new LinkedHashMap<>();
+    private final AtomicLong factoryCounter = new AtomicLong();
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong deletes = new AtomicLong();
+
+    @Override
+    public Configuration createFactoryConfiguration(String factoryPid) {
+        return createFactoryConfiguration(factoryPid, null);
+    }
+
+    @Override
+    public synchronized Configuration createFactoryConfiguration(String factoryPid, String location) {
+        final InMemoryConfiguration configuration = new InMemoryConfiguration(factoryPid + "." + factoryCounter.incrementAndGet(), factoryPid, location);
+        configurations.put(configuration.pid, configuration);
+        return configuration;
+    }
+
+    @Override
+    public Configuration getConfiguration(String pid) {
+        return getConfiguration(pid, null);
+    }
+
+    @Override
+    public synchronized Configuration getConfiguration(String pid, String location) {
+        return configurations.computeIfAbsent(pid, p -> new InMemoryConfiguration(p, null, location));
+    }
+
+    @Override
+    public synchronized Configuration[] listConfigurations(String filter) throws InvalidSyntaxException {
+        final Filter f = filter != null ? FrameworkUtil.createFilter(filter) : null;
+        final Configuration[] result = configurations.values().stream()
+                .filter(c -> c.properties != null && (f == null || f.match(c.properties)))
+                .toArray(Configuration[]::new);
+        return result.length > 0 ? result : null;
+    }
+
+    /**
+     * Get number of configurations with properties.
+     *
+     * @return number of configurations
+     */
+    public synchronized int size() {
+        return (int) configurations.values().stream().filter(c -> c.properties != null).count();
+    }
+
+    public long getUpdates() {
+        return updates.get();
+    }
+
+    public long getDeletes() {
+        return deletes.get();
+    }
+
+    private class InMemoryConfiguration implements Configuration {
+        private final String pid;
+        private final String factoryPid;
+        private String location;
+        private Hashtable<String, Object> properties;
+        private long changeCount;
+
+        InMemoryConfiguration(String pid, String factoryPid, String location) {
+            this.pid = pid;
+            this.factoryPid = factoryPid;
+            this.location = location;
+        }
+
+        @Override
+        public String getPid() {
+            return pid;
+        }
+
+        @Override
+        public String getFactoryPid() {
+            return factoryPid;
+        }
+
+        @Override
+        public Dictionary<String, Object> getProperties() {
+            synchronized (InMemoryConfigurationAdmin.this) {
+                return properties != null ? new Hashtable<>(properties) : null;
+            }
+        }
+
+        @Override
+        public void update(Dictionary<String, ?> newProperties) throws IOException {
+            synchronized (InMemoryConfigurationAdmin.this) {
+                final Hashtable<String, Object> copy = new Hashtable<>();
+                for (Enumeration<String> keys = newProperties.keys(); keys.hasMoreElements();) {
+                    final String key = keys.nextElement();
+                    copy.put(key, newProperties.get(key));
+                }
+                copy.put(Constants.SERVICE_PID, pid);
+                if (factoryPid != null) {
+                    copy.put(ConfigurationAdmin.SERVICE_FACTORYPID, factoryPid);
+                }
+                properties = copy;
+                changeCount++;
+                configurations.put(pid, this);
+                updates.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void update() {
+            // configurations are not persisted
+        }
+
+        @Override
+        public void delete() {
+            synchronized (InMemoryConfigurationAdmin.this) {
+                configurations.remove(pid);
+                properties = null;
+                deletes.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void setBundleLocation(String location) {
+            this.location = location;
+        }
+
+        @Override
+        public String getBundleLocation() {
+            return location;
+        }
+
+        @Override
+        public long getChangeCount() {
+            return changeCount;
+        }
+
+        @Override
+        public String toString() {
+            return "InMemoryConfiguration(" + pid + ")";
+        }
+    }
+}
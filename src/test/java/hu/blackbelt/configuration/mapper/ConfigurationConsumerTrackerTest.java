@@ -0,0 +1,178 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.component.runtime.ServiceComponentRuntime;
+import org.osgi.service.component.runtime.dto.ComponentDescriptionDTO;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ConfigurationConsumerTrackerTest {
+
+    private final ConfigurationConsumerTracker tracker = new ConfigurationConsumerTracker();
+    private final BundleContext context = mock(BundleContext.class);
+    private final List<Set<String>> added = new ArrayList<>();
+    private final List<Runnable> scheduled = new ArrayList<>();
+    private TemplateDiscoveryService.Subscription subscription;
+
+    @BeforeEach
+    public void setUp() {
+        tracker.scheduler = mock(ConfigurationMapperScheduler.class);
+        when(tracker.scheduler.schedule(anyString(), any(), anyLong())).thenAnswer(i -> {
+            scheduled.add(i.getArgument(1));
+            return null;
+        });
+        tracker.activate(context);
+        subscription = tracker.subscribe(added::add);
+    }
+
+    @Test
+    public void testManagedServices() {
+        final ServiceReference<?> first = reference("pid1");
+        final ServiceReference<?> second = reference(new String[] {"pid1", "pid2"});
+
+        final ServiceListener listener = serviceListener();
+        listener.serviceChanged(new ServiceEvent(ServiceEvent.REGISTERED, first));
+        listener.serviceChanged(new ServiceEvent(ServiceEvent.REGISTERED, second));
+        assertThat(tracker.hasConsumer("pid1"), is(true));
+        assertThat(tracker.hasConsumer("pid2"), is(true));
+        assertThat(tracker.hasConsumer("pid3"), is(false));
+        assertThat(added, contains(Collections.singleton("pid1"), Collections.singleton("pid2")));
+
+        listener.serviceChanged(new ServiceEvent(ServiceEvent.UNREGISTERING, first));
+        assertThat(tracker.hasConsumer("pid1"), is(true));
+        listener.serviceChanged(new ServiceEvent(ServiceEvent.UNREGISTERING, second));
+        assertThat(tracker.hasConsumer("pid1"), is(false));
+        assertThat(tracker.hasConsumer("pid2"), is(false));
+    }
+
+    @Test
+    public void testComponents() {
+        final ServiceComponentRuntime runtime = mock(ServiceComponentRuntime.class);
+        when(runtime.getComponentDescriptionDTOs()).thenReturn(Arrays.asList(
+                component("required", "require"), component("ignored", "ignore")));
+        when(runtime.isComponentEnabled(any())).thenReturn(true);
+
+        tracker.bindServiceComponentRuntime(runtime);
+        runScheduled();
+        assertThat(tracker.hasConsumer("required"), is(true));
+        assertThat(tracker.hasConsumer("ignored"), is(false));
+        assertThat(added, contains(Collections.singleton("required")));
+
+        tracker.unbindServiceComponentRuntime(runtime);
+        assertThat(tracker.hasConsumer("required"), is(false));
+    }
+
+    @Test
+    public void testBundleEventsAreMerged() {
+        final ServiceComponentRuntime runtime = mock(ServiceComponentRuntime.class);
+        when(runtime.getComponentDescriptionDTOs()).thenReturn(Collections.emptyList());
+        tracker.bindServiceComponentRuntime(runtime);
+        runScheduled();
+
+        final ArgumentCaptor<BundleListener> listener = ArgumentCaptor.forClass(BundleListener.class);
+        verify(context).addBundleListener(listener.capture());
+        for (int i = 0; i < 3; i++) {
+            listener.getValue().bundleChanged(new BundleEvent(BundleEvent.STARTED, mock(Bundle.class)));
+        }
+        listener.getValue().bundleChanged(new BundleEvent(BundleEvent.RESOLVED, mock(Bundle.class)));
+        // components are not refreshed by the framework thread, pending refresh is not scheduled again
+        verify(runtime, times(1)).getComponentDescriptionDTOs();
+        assertThat(scheduled, hasSize(1));
+
+        runScheduled();
+        verify(runtime, times(2)).getComponentDescriptionDTOs();
+    }
+
+    @Test
+    public void testTrackingWithoutSubscribers() {
+        final ServiceReference<?> reference = reference("pid1");
+        serviceListener().serviceChanged(new ServiceEvent(ServiceEvent.REGISTERED, reference));
+        assertThat(tracker.hasConsumer("pid1"), is(true));
+
+        // consumers are not tracked without subscribers (config sets in lazy mode)
+        subscription.close();
+        assertThat(tracker.hasConsumer("pid1"), is(false));
+        verify(context).removeBundleListener(any());
+
+        final ServiceComponentRuntime runtime = mock(ServiceComponentRuntime.class);
+        tracker.bindServiceComponentRuntime(runtime);
+        runScheduled();
+        verify(runtime, never()).getComponentDescriptionDTOs();
+    }
+
+    private ServiceListener serviceListener() {
+        final ArgumentCaptor<ServiceListener> listener = ArgumentCaptor.forClass(ServiceListener.class);
+        try {
+            verify(context).addServiceListener(listener.capture(), anyString());
+        } catch (InvalidSyntaxException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return listener.getValue();
+    }
+
+    private void runScheduled() {
+        final List<Runnable> tasks = new ArrayList<>(scheduled);
+        scheduled.clear();
+        tasks.forEach(Runnable::run);
+    }
+
+    private static ServiceReference<?> reference(Object pid) {
+        final ServiceReference<?> reference = mock(ServiceReference.class);
+        when(reference.getProperty(Constants.SERVICE_PID)).thenReturn(pid);
+        return reference;
+    }
+
+    private static ComponentDescriptionDTO component(String pid, String configurationPolicy) {
+        final ComponentDescriptionDTO description = new ComponentDescriptionDTO();
+        description.name = pid;
+        description.configurationPid = new String[] {pid};
+        description.configurationPolicy = configurationPolicy;
+        return description;
+    }
+}
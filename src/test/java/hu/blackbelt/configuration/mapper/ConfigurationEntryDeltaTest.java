@@ -0,0 +1,74 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ConfigurationEntryDeltaTest {
+
+    @Test
+    public void testValueBasedIdentity() throws MalformedURLException {
+        assertThat(entry(1, "test1.config", "tst", 1), equalTo(entry(1, "test1.config", "tst", 2)));
+        assertThat(entry(1, "test1.config", "tst", 1).hashCode(), equalTo(entry(1, "test1.config", "tst", 2).hashCode()));
+        assertThat(entry(1, "test1.config", "tst", 1), not(equalTo(entry(2, "test1.config", "tst", 1))));
+        assertThat(entry(1, "test1.config", "tst", 1), not(equalTo(entry(1, "test1.config", "other", 1))));
+        assertThat(entry(1, "test1.config", null, 1), not(equalTo(entry(1, "test1.config", "tst", 1))));
+    }
+
+    @Test
+    public void testDiff() throws MalformedURLException {
+        final ConfigurationEntryDelta delta = ConfigurationEntryDelta.diff(
+                Arrays.asList(entry(1, "test1.config", "tst", 1), entry(1, "test2.config", null, 1), entry(1, "test3.config", null, 1)),
+                Arrays.asList(entry(1, "test1.config", "tst", 1), entry(1, "test2.config", null, 2), entry(1, "test4.config", null, 1)));
+
+        assertThat(delta.isEmpty(), is(false));
+        assertThat(delta.getAdded(), contains(entry(1, "test4.config", null, 1)));
+        assertThat(delta.getRemoved(), contains(entry(1, "test3.config", null, 1)));
+        assertThat(delta.getChanged(), contains(entry(1, "test2.config", null, 1)));
+    }
+
+    @Test
+    public void testEmptyDiff() throws MalformedURLException {
+        assertThat(ConfigurationEntryDelta.diff(
+                Arrays.asList(entry(1, "test1.config", "tst", 1), entry(1, "test2.config", null, 1)),
+                Arrays.asList(entry(1, "test2.config", null, 1), entry(1, "test1.config", "tst", 1))).isEmpty(), is(true));
+    }
+
+    private static ConfigurationEntry entry(long bundleId, String pid, String instance, long digest) throws MalformedURLException {
+        final String name = "/config-templates/" + pid + (instance != null ? "-" + instance : "");
+        return ConfigurationEntry.builder()
+                .bundleId(bundleId)
+                .template(new URL("file:" + name + ".template"))
+                .spec(instance != null ? Optional.of(new URL("file:/config-templates/" + pid + ".xml")) : Optional.empty())
+                .instance(Optional.ofNullable(instance))
+                .digest(BigInteger.valueOf(digest))
+                .build();
+    }
+}
@@ -0,0 +1,154 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ConfigurationJournalTest {
+
+    @Test
+    public void testRecord() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ConfigurationJournal journal = new ConfigurationJournal();
+        journal.open(out);
+        journal.configSetEvent(ConfigurationJournal.ACTIVATED, "test", ImmutableMap.of("dbPassword", "secret", "tenants", "Alpha, Beta",
+                "writeRate", 2.5, "lazy", true, "pids", new String[] {"a,b", "c"}));
+        journal.bundleEvent(ConfigurationJournal.ADDING, "/config-templates/", 10, "test.bundle", entries());
+        journal.bundleEvent(ConfigurationJournal.MODIFIED, "/config-templates/", 10, "test.bundle", entries());
+        journal.bundleEvent(ConfigurationJournal.REMOVED, "/config-templates/", 10, "test.bundle", ImmutableList.of());
+        journal.deactivate();
+
+        final Map<String, byte[]> contents = new HashMap<>();
+        final List<ConfigurationJournal.Event> events = ConfigurationJournal.read(new ByteArrayInputStream(out.toByteArray()), contents);
+        assertThat(events.size(), equalTo(4));
+        // contents (and variables) are recorded once
+        assertThat(contents.size(), equalTo(5));
+
+        // secrets are redacted
+        assertThat(events.get(0).getName(), equalTo("test"));
+        assertThat(events.get(0).getProperties().get("dbPassword"), equalTo("**************"));
+        assertThat(events.get(0).getProperties().get("tenants"), equalTo("Alpha, Beta"));
+        // types are kept
+        assertThat(events.get(0).getProperties().get("writeRate"), equalTo(2.5));
+        assertThat(events.get(0).getProperties().get("lazy"), equalTo(true));
+        assertThat(events.get(0).getProperties().get("pids"), equalTo(new String[] {"a,b", "c"}));
+        // variables of JVM are recorded
+        assertThat(events.get(0).getSystemProperties().get("java.version"), equalTo(System.getProperty("java.version")));
+        assertThat(events.get(0).getEnvironment(), notNullValue());
+        assertThat(events.get(1).getSystemProperties(), nullValue());
+
+        final ConfigurationJournal.Event adding = events.get(1);
+        assertThat(adding.getType(), equalTo(ConfigurationJournal.ADDING));
+        assertThat(adding.getBundleId(), equalTo(10L));
+        assertThat(adding.getName(), equalTo("test.bundle"));
+        assertThat(adding.getEntries().size(), equalTo(2));
+        assertThat(adding.getEntries().get(1).getTemplate(), endsWith("/config-templates/test9.config.template"));
+        assertThat(adding.getEntries().get(1).getSpec().get(), endsWith("/config-templates/test9.config.xml"));
+        assertThat(adding.getFiles().size(), equalTo(3));
+        assertThat(events.get(3).getEntries(), empty());
+    }
+
+    @Test
+    public void testReplay(@TempDir Path directory) throws Exception {
+        final Path file = directory.resolve("journal.gz");
+        final ConfigurationJournal journal = new ConfigurationJournal();
+        journal.open(Files.newOutputStream(file));
+        journal.configSetEvent(ConfigurationJournal.ACTIVATED, "test", ImmutableMap.of("context9Tenants", "Alpha, Beta, Gamma",
+                "variableScopePrecedence", "osgi"));
+        journal.bundleEvent(ConfigurationJournal.ADDING, "/config-templates/", 10, "test.bundle", entries());
+        journal.bundleEvent(ConfigurationJournal.MODIFIED, "/config-templates/", 10, "test.bundle", entries().subList(0, 1));
+        journal.deactivate();
+
+        final ByteArrayOutputStream report = new ByteArrayOutputStream();
+        final long duration = ConfigurationJournalReplay.run(new String[] {file.toString(), "--repeat", "2"}, new PrintStream(report, true, "UTF-8"));
+
+        assertThat(duration, greaterThanOrEqualTo(0L));
+        final String output = new String(report.toByteArray(), UTF_8);
+        assertThat(output, containsString("Events found in " + file + ": 3"));
+        assertThat(output, containsString("[test: created=4, updated=0, deleted=0, failed=0, unchanged=0]"));
+        assertThat(output, containsString("[test: created=0, updated=0, deleted=3, failed=0, unchanged=0]"));
+        assertThat(output, containsString("Configurations: 1, updates: 4, deletes: 3"));
+        assertThat(output, containsString("Run 2 finished"));
+    }
+
+    @Test
+    public void testReplayRecordedVariables(@TempDir Path directory) throws Exception {
+        final Path templates = Files.createDirectories(directory.resolve("bundle").resolve("config-templates"));
+        Files.write(templates.resolve("replay.config.template"), "name=${replayJournalVariable}".getBytes(UTF_8));
+        final Path file = directory.resolve("journal.gz");
+        final ConfigurationJournal journal = new ConfigurationJournal();
+        journal.open(Files.newOutputStream(file));
+        System.setProperty("replayJournalVariable", "recorded");
+        try {
+            // failed configurations are not retried
+            journal.configSetEvent(ConfigurationJournal.ACTIVATED, "test", ImmutableMap.of(
+                    "variableScopePrecedence", "osgi,system", "retryLimit", 0, "lazy", true));
+        } finally {
+            System.clearProperty("replayJournalVariable");
+        }
+        journal.bundleEvent(ConfigurationJournal.ADDING, "/config-templates/", 10, "test.bundle", ImmutableList.of(
+                ConfigurationEntry.builder()
+                        .template(templates.resolve("replay.config.template").toUri().toURL())
+                        .spec(Optional.empty())
+                        .instance(Optional.empty())
+                        .build()));
+        journal.deactivate();
+
+        final ByteArrayOutputStream report = new ByteArrayOutputStream();
+        ConfigurationJournalReplay.run(new String[] {file.toString()}, new PrintStream(report, true, "UTF-8"));
+
+        // variable is rendered as it is recorded, it is missing from the replaying JVM
+        final String output = new String(report.toByteArray(), UTF_8);
+        assertThat(output, containsString("[test: created=1, updated=0, deleted=0, failed=0, unchanged=0]"));
+        assertThat(output, containsString("Configurations: 1, updates: 1, deletes: 0"));
+    }
+
+    private List<ConfigurationEntry> entries() {
+        return ImmutableList.of(
+                ConfigurationEntry.builder()
+                        .template(getClass().getResource("/config-templates/test2.config.template"))
+                        .spec(Optional.empty())
+                        .instance(Optional.empty())
+                        .build(),
+                ConfigurationEntry.builder()
+                        .template(getClass().getResource("/config-templates/test9.config.template"))
+                        .spec(Optional.of(getClass().getResource("/config-templates/test9.config.xml")))
+                        .instance(Optional.empty())
+                        .build());
+    }
+}
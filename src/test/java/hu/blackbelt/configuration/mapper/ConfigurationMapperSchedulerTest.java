@@ -0,0 +1,184 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ConfigurationMapperSchedulerTest {
+
+    private final ConfigurationMapperScheduler scheduler = new ConfigurationMapperScheduler();
+
+    @AfterEach
+    public void stop() {
+        scheduler.deactivate();
+    }
+
+    @Test
+    public void testSerialQueue() throws InterruptedException {
+        scheduler.activate(config(4));
+        final List<Integer> executed = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            final int n = i;
+            scheduler.execute("configset", () -> {
+                executed.add(n);
+                done.countDown();
+            });
+        }
+        assertThat(done.await(10, TimeUnit.SECONDS), is(true));
+        for (int i = 0; i < 100; i++) {
+            assertThat(executed.get(i), equalTo(i));
+        }
+    }
+
+    @Test
+    public void testConcurrencyLimit() throws InterruptedException {
+        scheduler.activate(config(2));
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            scheduler.execute("configset" + i, () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                sleep(5);
+                running.decrementAndGet();
+                done.countDown();
+            });
+        }
+        assertThat(done.await(10, TimeUnit.SECONDS), is(true));
+        assertThat(maxRunning.get(), lessThanOrEqualTo(2));
+    }
+
+    @Test
+    public void testFairness() throws InterruptedException {
+        scheduler.activate(config(1));
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final List<String> executed = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(12);
+        scheduler.execute("blocker", () -> await(blocked));
+        for (int i = 0; i < 10; i++) {
+            scheduler.execute("busy", () -> {
+                executed.add("busy");
+                done.countDown();
+            });
+        }
+        scheduler.execute("other", () -> {
+            executed.add("other");
+            done.countDown();
+        });
+        scheduler.execute("blocker", done::countDown);
+        blocked.countDown();
+
+        assertThat(done.await(10, TimeUnit.SECONDS), is(true));
+        // other queue is not starved by the busy one
+        assertThat(executed.indexOf("other"), lessThanOrEqualTo(1));
+    }
+
+    @Test
+    public void testSchedule() throws InterruptedException {
+        scheduler.activate(config(1));
+        final CountDownLatch done = new CountDownLatch(1);
+        final long started = System.currentTimeMillis();
+        scheduler.schedule("configset", done::countDown, 50);
+
+        assertThat(done.await(10, TimeUnit.SECONDS), is(true));
+        assertThat(System.currentTimeMillis() - started, greaterThanOrEqualTo(50L));
+
+        // cancelled task is not submitted
+        final AtomicInteger executed = new AtomicInteger();
+        scheduler.schedule("configset", executed::incrementAndGet, 50).cancel(false);
+        sleep(100);
+        assertThat(executed.get(), equalTo(0));
+    }
+
+    @Test
+    public void testCloseQueue() throws InterruptedException {
+        scheduler.activate(config(1));
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger executed = new AtomicInteger();
+        scheduler.execute("configset", () -> {
+            started.countDown();
+            await(release);
+            executed.incrementAndGet();
+        });
+        scheduler.execute("configset", executed::incrementAndGet);
+        assertThat(started.await(10, TimeUnit.SECONDS), is(true));
+        assertThat(scheduler.getPendingTaskCount(), equalTo(1));
+
+        new Thread(() -> {
+            sleep(50);
+            release.countDown();
+        }).start();
+        scheduler.closeQueue("configset");
+
+        // running task is finished, pending one is dropped
+        assertThat(executed.get(), equalTo(1));
+        assertThat(scheduler.getPendingTaskCount(), equalTo(0));
+    }
+
+    private static ConfigurationMapperSchedulerConfig config(int maxConcurrency) {
+        return new ConfigurationMapperSchedulerConfig() {
+            @Override
+            public int maxConcurrency() {
+                return maxConcurrency;
+            }
+
+            @Override
+            public boolean virtualThreads() {
+                return true;
+            }
+
+            @Override
+            public Class<? extends Annotation> annotationType() {
+                return ConfigurationMapperSchedulerConfig.class;
+            }
+        };
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.RateLimiter;
+import org.junit.jupiter.api.Test;
+import org.osgi.service.cm.Configuration;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+public class ConfigurationWriteStageTest {
+
+    @Test
+    public void testUnlimitedWritesImmediately() throws IOException {
+        final ConfigurationWriteStage stage = new ConfigurationWriteStage(null, 1);
+        final Configuration configuration = configuration("pid1");
+
+        stage.write(configuration, properties("value"));
+
+        verify(configuration).update(properties("value"));
+        assertThat(stage.getQueueDepth(), equalTo(0));
+    }
+
+    @Test
+    public void testCoalescedWrites() throws IOException {
+        final RateLimiter rateLimiter = mock(RateLimiter.class);
+        final ConfigurationWriteStage stage = new ConfigurationWriteStage(rateLimiter, 2);
+        final Configuration configuration1 = configuration("pid1");
+        final Configuration configuration2 = configuration("pid2");
+        final Configuration configuration3 = configuration("pid3");
+
+        stage.write(configuration1, properties("first"));
+        stage.write(configuration2, properties("value"));
+        stage.write(configuration1, properties("second"));
+        stage.write(configuration3, properties("value"));
+        verify(configuration1, never()).update(any());
+        assertThat(stage.getQueueDepth(), equalTo(3));
+
+        assertThat(stage.flush(() -> false, (pid, ex) -> { throw new AssertionError(pid); }), is(true));
+
+        verify(configuration1).update(properties("second"));
+        verify(configuration1, never()).update(properties("first"));
+        verify(configuration2).update(properties("value"));
+        verify(configuration3).update(properties("value"));
+        verify(rateLimiter).acquire(2);
+        verify(rateLimiter).acquire(1);
+        assertThat(stage.getQueueDepth(), equalTo(0));
+        assertThat(stage.getMaxQueueDepth(), equalTo(3));
+        assertThat(stage.getCoalesced(), equalTo(1));
+    }
+
+    @Test
+    public void testFailedWrite() throws IOException {
+        final ConfigurationWriteStage stage = new ConfigurationWriteStage(mock(RateLimiter.class), 10);
+        final Configuration configuration1 = configuration("pid1");
+        final Configuration configuration2 = configuration("pid2");
+        doThrow(new IOException("failed")).when(configuration1).update(any());
+
+        stage.write(configuration1, properties("value"));
+        stage.write(configuration2, properties("value"));
+        final Map<String, Exception> failed = new HashMap<>();
+        stage.flush(() -> false, failed::put);
+
+        assertThat(failed.keySet(), equalTo(Collections.singleton("pid1")));
+        verify(configuration2).update(properties("value"));
+    }
+
+    @Test
+    public void testWrittenPids() throws IOException {
+        final Multiset<String> writtenPids = HashMultiset.create();
+        final ConfigurationWriteStage stage = new ConfigurationWriteStage(mock(RateLimiter.class), 10, writtenPids);
+        final Configuration configuration1 = configuration("pid1");
+        final Configuration configuration2 = configuration("pid2");
+        doThrow(new IOException("failed")).when(configuration2).update(any());
+
+        stage.write(configuration1, properties("first"));
+        stage.write(configuration1, properties("second"));
+        stage.write(configuration2, properties("value"));
+        // queued updates are not written yet
+        assertThat(writtenPids.isEmpty(), is(true));
+
+        // coalesced updates are written once, failed updates fire no event
+        stage.flush(() -> false, (pid, ex) -> { });
+        assertThat(writtenPids.count("pid1"), equalTo(1));
+        assertThat(writtenPids.count("pid2"), equalTo(0));
+    }
+
+    @Test
+    public void testSupersededFlush() throws IOException {
+        final RateLimiter rateLimiter = mock(RateLimiter.class);
+        final ConfigurationWriteStage stage = new ConfigurationWriteStage(rateLimiter, 1);
+        final Configuration configuration1 = configuration("pid1");
+        final Configuration configuration2 = configuration("pid2");
+        final Configuration configuration3 = configuration("pid3");
+        final AtomicBoolean superseded = new AtomicBoolean();
+        doAnswer(i -> {
+            superseded.set(true);
+            return null;
+        }).when(configuration1).update(any());
+
+        stage.write(configuration1, properties("value"));
+        stage.write(configuration2, properties("value"));
+        stage.write(configuration3, properties("value"));
+
+        // remaining batches are not written (and not throttled) after pass is superseded
+        assertThat(stage.flush(superseded::get, (pid, ex) -> { throw new AssertionError(pid); }), is(false));
+        verify(configuration2, never()).update(any());
+        verify(rateLimiter, times(1)).acquire(1);
+        assertThat(stage.discard(), equalTo(ImmutableSet.of("pid2", "pid3")));
+    }
+
+    private static Configuration configuration(String pid) {
+        final Configuration configuration = mock(Configuration.class);
+        when(configuration.getPid()).thenReturn(pid);
+        return configuration;
+    }
+
+    private static Dictionary<String, Object> properties(String value) {
+        final Dictionary<String, Object> properties = new Hashtable<>();
+        properties.put("key", value);
+        return properties;
+    }
+}
@@ -0,0 +1,290 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import hu.blackbelt.configuration.mapper.internal.InMemoryConfigurationAdmin;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.component.ComponentConstants;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class DefaultTemplatedConfigSetLifecycleTest {
+
+    private static final String CONFIG_SET_ID = "test";
+
+    private final BlockingConfigurationAdmin configAdmin = new BlockingConfigurationAdmin();
+    // passes are executed by the calling thread by default
+    private Executor executor = Runnable::run;
+    private final BundleContext context = mock(BundleContext.class);
+    private List<ConfigurationEntry> entries = Arrays.asList(
+            ConfigurationEntry.builder()
+                    .template(getClass().getResource("/config-templates/test2.config.template"))
+                    .spec(Optional.empty())
+                    .instance(Optional.empty())
+                    .build(),
+            ConfigurationEntry.builder()
+                    .template(getClass().getResource("/config-templates/test9.config.template"))
+                    .spec(Optional.of(getClass().getResource("/config-templates/test9.config.xml")))
+                    .instance(Optional.empty())
+                    .build());
+
+    @Test
+    public void testRetainAndReconcile() {
+        final DefaultTemplatedConfigSet configSet = activate(true);
+        assertThat(configAdmin.size(), equalTo(3));
+
+        configSet.deactivate(ComponentConstants.DEACTIVATION_REASON_DISABLED);
+        assertThat(configAdmin.size(), equalTo(3));
+        assertThat(configAdmin.getDeletes(), equalTo(0L));
+
+        // retained configurations are reconciled by checksum, unchanged configurations are not written again
+        final long updates = configAdmin.getUpdates();
+        final DefaultTemplatedConfigSet activatedAgain = activate(true);
+        assertThat(configAdmin.size(), equalTo(3));
+        assertThat(configAdmin.getUpdates(), equalTo(updates));
+
+        // configuration of config set is deleted, it is not activated again
+        activatedAgain.deactivate(ComponentConstants.DEACTIVATION_REASON_CONFIGURATION_DELETED);
+        assertThat(configAdmin.size(), equalTo(0));
+    }
+
+    @Test
+    public void testRetainedConfigurationsOfDisposedConfigSet() {
+        activate(true).deactivate(ComponentConstants.DEACTIVATION_REASON_DISPOSED);
+        assertThat(configAdmin.size(), equalTo(0));
+    }
+
+    @Test
+    public void testDeleteConfigurations() {
+        activate(false).deactivate(ComponentConstants.DEACTIVATION_REASON_DISABLED);
+        assertThat(configAdmin.size(), equalTo(0));
+    }
+
+    @Test
+    public void testLiveOptionChanges(@TempDir Path directory) throws Exception {
+        Files.write(directory.resolve("variable.config.template"), "value=${variableValue ! \"default\"}".getBytes(UTF_8));
+        entries = Arrays.asList(entries.get(0), entries.get(1), ConfigurationEntry.builder()
+                .template(directory.resolve("variable.config.template").toUri().toURL())
+                .spec(Optional.empty())
+                .instance(Optional.empty())
+                .build());
+        System.setProperty("variableValue", "system");
+        try {
+            final Map<String, Object> properties = ImmutableMap.of(
+                    Constants.SERVICE_PID, CONFIG_SET_ID,
+                    "context9Tenants", "Alpha, Beta",
+                    "variableValue", "osgi");
+            final DefaultTemplatedConfigSet configSet = activate(config(false, Collections.emptyMap()), properties);
+            assertThat(configAdmin.listConfigurations("(value=system)"), arrayWithSize(1));
+            long updates = configAdmin.getUpdates();
+
+            // no variable is prefixed, output of configurations is unchanged
+            configSet.update(config(false, ImmutableMap.of("envPrefix", "OTHER_PREFIX_")), properties);
+            assertThat(configAdmin.getUpdates(), equalTo(updates));
+
+            // entries of the new template path are the same
+            configSet.update(config(false, ImmutableMap.of("envPrefix", "OTHER_PREFIX_", "templatePath", "/other-templates")), properties);
+            assertThat(configAdmin.getUpdates(), equalTo(updates));
+
+            // OSGi configuration overrides system properties, only configuration using the variable is written
+            configSet.update(config(false, ImmutableMap.of("envPrefix", "OTHER_PREFIX_", "templatePath", "/other-templates",
+                    "variableScopePrecedence", "system,osgi")), properties);
+            assertThat(configAdmin.getUpdates(), equalTo(updates + 1));
+            assertThat(configAdmin.listConfigurations("(value=osgi)"), arrayWithSize(1));
+            assertThat(configAdmin.size(), equalTo(4));
+        } finally {
+            System.clearProperty("variableValue");
+        }
+    }
+
+    @Test
+    public void testConfigurationChangeEvents(@TempDir Path directory) throws Exception {
+        Files.write(directory.resolve("variable.config.template"), "value=${variableValue}".getBytes(UTF_8));
+        Files.write(directory.resolve("invalid.config.template"), "value=${".getBytes(UTF_8));
+        entries = Arrays.asList(entries.get(0), entries.get(1),
+                ConfigurationEntry.builder()
+                        .template(directory.resolve("variable.config.template").toUri().toURL())
+                        .spec(Optional.empty())
+                        .instance(Optional.empty())
+                        .build(),
+                ConfigurationEntry.builder()
+                        .template(directory.resolve("invalid.config.template").toUri().toURL())
+                        .spec(Optional.empty())
+                        .instance(Optional.empty())
+                        .build());
+        final List<ConfigurationChangeEvent> events = new ArrayList<>();
+
+        final DefaultTemplatedConfigSet configSet = activate(config(false, Collections.emptyMap()), ImmutableMap.of(
+                Constants.SERVICE_PID, CONFIG_SET_ID,
+                "context9Tenants", "Alpha, Beta",
+                "variableValue", "first"), events::add);
+        assertThat(events, hasSize(1));
+        final Map<String, String> pids = Arrays.stream(configAdmin.listConfigurations(null))
+                .collect(Collectors.toMap(c -> String.valueOf(c.getProperties().get("name")), Configuration::getPid, (a, b) -> a));
+        final String test2 = configAdmin.getConfiguration("test2.config").getPid();
+        final String variable = configAdmin.getConfiguration("variable.config").getPid();
+        assertThat(events.get(0).getConfigSetId(), equalTo(CONFIG_SET_ID));
+        assertThat(events.get(0).getCreated().keySet(), equalTo(ImmutableSet.of(test2, variable, pids.get("TEST9-ALPHA"), pids.get("TEST9-BETA"))));
+        assertThat(events.get(0).getUpdated().keySet(), empty());
+        assertThat(events.get(0).getDeleted().keySet(), empty());
+        assertThat(events.get(0).getFailed().keySet(), equalTo(Collections.singleton("invalid.config")));
+
+        configSet.update(config(false, Collections.emptyMap()), ImmutableMap.of(
+                Constants.SERVICE_PID, CONFIG_SET_ID,
+                "context9Tenants", "Alpha, Gamma",
+                "variableValue", "second"));
+        assertThat(events, hasSize(2));
+        final String gamma = Arrays.stream(configAdmin.listConfigurations("(name=TEST9-GAMMA)")).findFirst().get().getPid();
+        assertThat(events.get(1).getPass(), greaterThan(events.get(0).getPass()));
+        assertThat(events.get(1).getCreated().keySet(), equalTo(Collections.singleton(gamma)));
+        assertThat(events.get(1).getUpdated().keySet(), equalTo(Collections.singleton(variable)));
+        assertThat(events.get(1).getDeleted().keySet(), equalTo(Collections.singleton(pids.get("TEST9-BETA"))));
+        assertThat(events.get(1).getFailed().keySet(), equalTo(Collections.singleton("invalid.config")));
+    }
+
+    @Test
+    public void testUpdateSupersedesBlockedPass() throws Exception {
+        final ExecutorService passes = Executors.newSingleThreadExecutor();
+        executor = passes;
+        try {
+            final List<ConfigurationChangeEvent> events = new CopyOnWriteArrayList<>();
+            final Map<String, Object> properties = ImmutableMap.of(
+                    Constants.SERVICE_PID, CONFIG_SET_ID,
+                    "context9Tenants", "Alpha, Beta");
+            configAdmin.block();
+            final DefaultTemplatedConfigSet configSet = activate(config(false, Collections.emptyMap()), properties, events::add);
+            assertThat(configAdmin.entered.await(10, TimeUnit.SECONDS), is(true));
+
+            // options are updated while the initial pass is blocked
+            CompletableFuture.runAsync(() -> configSet.update(config(false, ImmutableMap.of("writeRate", 1000.0)), properties))
+                    .get(10, TimeUnit.SECONDS);
+            configAdmin.release.countDown();
+            passes.submit(() -> { }).get(10, TimeUnit.SECONDS);
+
+            assertThat(events, hasSize(2));
+            assertThat(events.get(0).isCancelled(), is(true));
+            assertThat(events.get(1).isCancelled(), is(false));
+            assertThat(configAdmin.size(), equalTo(3));
+        } finally {
+            passes.shutdownNow();
+        }
+    }
+
+    private DefaultTemplatedConfigSet activate(boolean retainConfigurations) {
+        return activate(config(retainConfigurations, Collections.emptyMap()), ImmutableMap.of(
+                Constants.SERVICE_PID, CONFIG_SET_ID,
+                "context9Tenants", "Alpha, Beta"));
+    }
+
+    private DefaultTemplatedConfigSet activate(DefaultTemplatedConfigSetConfig config, Map<String, Object> properties) {
+        return activate(config, properties, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private DefaultTemplatedConfigSet activate(DefaultTemplatedConfigSetConfig config, Map<String, Object> properties,
+                                              ConfigurationChangeListener listener) {
+        final DefaultTemplatedConfigSet configSet = new DefaultTemplatedConfigSet();
+        configSet.configurationChangeListeners = listener != null ? Collections.singletonList(listener) : null;
+        configSet.configurationAdmin = configAdmin;
+        configSet.templateDiscoveryService = mock(TemplateDiscoveryService.class);
+        when(configSet.templateDiscoveryService.subscribe(anyString(), any())).thenAnswer(i -> {
+            i.<Function<List<ConfigurationEntry>, Void>>getArgument(1).apply(entries);
+            return mock(TemplateDiscoveryService.Subscription.class);
+        });
+        configSet.scheduler = mock(ConfigurationMapperScheduler.class);
+        when(configSet.scheduler.getExecutor(CONFIG_SET_ID)).thenReturn(executor);
+        configSet.consumerTracker = mock(ConfigurationConsumerTracker.class);
+        when(configSet.consumerTracker.subscribe(any())).thenReturn(mock(TemplateDiscoveryService.Subscription.class));
+        when(context.registerService(any(Class.class), any(Object.class), any())).thenReturn(mock(ServiceRegistration.class));
+
+        configSet.activate(config, context, properties);
+        return configSet;
+    }
+
+    private static DefaultTemplatedConfigSetConfig config(boolean retainConfigurations, Map<String, Object> options) {
+        // annotation defaults are used for options which are not given
+        final Map<String, Object> values = new HashMap<>();
+        values.put("envPrefix", "PREFIX_");
+        values.put("retainConfigurations", retainConfigurations);
+        values.putAll(options);
+        return mock(DefaultTemplatedConfigSetConfig.class, i -> values.getOrDefault(i.getMethod().getName(), i.getMethod().getDefaultValue()));
+    }
+
+
+    /**
+     * Blocks the first configuration lookup after {@link #block()} until released.
+     */
+    private static class BlockingConfigurationAdmin extends InMemoryConfigurationAdmin {
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private volatile boolean blocking;
+
+        void block() {
+            blocking = true;
+        }
+
+        @Override
+        public Configuration[] listConfigurations(String filter) throws InvalidSyntaxException {
+            if (blocking) {
+                blocking = false;
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.listConfigurations(filter);
+        }
+    }
+}
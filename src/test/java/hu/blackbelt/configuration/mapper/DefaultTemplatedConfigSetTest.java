@@ -62,11 +62,15 @@ public class DefaultTemplatedConfigSetTest {
     private static final String TEST_CONFIG7_FACTORY_PID = "test7.config";
     private static final String TEST_CONFIG7_INSTANCE_PID = "T7";
     private static final String TEST_CONFIG8_FACTORY_PID = "test8.config";
+    private static final String TEST_CONFIG9_FACTORY_PID = "test9.config";
     public static final String SYSTEM_VARIABLE = "systemVariable";
 
     @Inject
     private ConfigurationAdmin configAdmin;
 
+    @Inject
+    private ConfigurationSetReady configurationSetReady;
+
     @Configuration
     public Option[] config() {
         System.getProperties().put("KARAF_HOME", KARAF_HOME);
@@ -123,6 +127,7 @@ public class DefaultTemplatedConfigSetTest {
                         .put("contextVar3", VALUE3_VALUE)
                         .put("template7FactoryPid", TEST_CONFIG7_INSTANCE_PID)
                         .put("context7Bool", "true")
+                        .put("context9Tenants", "Alpha, Beta, disabled")
 
                         .asOption(),
 
@@ -142,7 +147,14 @@ public class DefaultTemplatedConfigSetTest {
 
     @Test
     public void testAllConfigSets() {
-        assertThat(configurations.size(), equalTo(12));
+        assertThat(configurations.size(), equalTo(14));
+    }
+
+    @Test
+    public void testConfigSetReady() {
+        assertThat(configurationSetReady.getConfigSetId(), notNullValue());
+        assertThat(configurationSetReady.getEntries(), greaterThan(0));
+        assertThat(configurationSetReady.getConfigurations(), greaterThan(0));
     }
 
     @Test
@@ -251,6 +263,21 @@ public class DefaultTemplatedConfigSetTest {
         assertThat((String)test7ExpressionConfig.getProperties().get("service.pid"), startsWith(TEST_CONFIG7_FACTORY_PID + "."));
     }
 
+    @Test
+    public void testTemplateExpandedOverList() {
+        final List<String> test9Names = configurations.stream()
+                .filter(cfg -> cfg.getPid().startsWith(TEST_CONFIG9_FACTORY_PID))
+                .map(cfg -> (String) cfg.getProperties().get("name"))
+                .collect(Collectors.toList());
+
+        assertThat(test9Names, containsInAnyOrder("TEST9-ALPHA", "TEST9-BETA"));
+
+        configurations.stream()
+                .filter(cfg -> cfg.getPid().startsWith(TEST_CONFIG9_FACTORY_PID))
+                .forEach(cfg -> assertThat(((String) cfg.getProperties().get("__osgi_templated_config_name")),
+                        endsWith(((String) cfg.getProperties().get("name")).substring("TEST9-".length()).toLowerCase())));
+    }
+
     public static <T> Collector<T, ?, T> singletonCollector() {
         return Collectors.collectingAndThen(
                 Collectors.toList(),
@@ -0,0 +1,135 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.util.tracker.BundleTrackerCustomizer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class ExtensibleBundleTrackerTest {
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final ExecutorService fanOutExecutor = Executors.newCachedThreadPool();
+    private final Bundle bundle = mock(Bundle.class);
+
+    @AfterEach
+    public void stop() {
+        executor.shutdownNow();
+        fanOutExecutor.shutdownNow();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRemovalQueuedBehindAdding() throws Exception {
+        final CountDownLatch adding = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final BundleTrackerCustomizer<String> primary = mock(BundleTrackerCustomizer.class);
+        when(primary.addingBundle(any(), any())).thenAnswer(i -> {
+            adding.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            return "tracked";
+        });
+        final ExtensibleBundleTracker<String> tracker = new ExtensibleBundleTracker<>(
+                mock(BundleContext.class), Bundle.ACTIVE, executor, fanOutExecutor, primary);
+
+        final Future<String> added = tracker.addingBundle(bundle, null);
+        assertThat(adding.await(10, TimeUnit.SECONDS), is(true));
+
+        // caller thread is not blocked by running adding event
+        tracker.removedBundle(bundle, null, added);
+        verify(primary, never()).removedBundle(any(), any(), any());
+
+        release.countDown();
+        verify(primary, timeout(10000)).removedBundle(eq(bundle), any(), eq("tracked"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPendingAddingWithdrawn() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        final BundleTrackerCustomizer<String> primary = mock(BundleTrackerCustomizer.class);
+        final ExtensibleBundleTracker<String> tracker = new ExtensibleBundleTracker<>(
+                mock(BundleContext.class), Bundle.ACTIVE, executor, fanOutExecutor, primary);
+
+        final Future<String> added = tracker.addingBundle(bundle, null);
+        tracker.removedBundle(bundle, null, added);
+        release.countDown();
+        executor.submit(() -> null).get(10, TimeUnit.SECONDS);
+
+        verify(primary, never()).addingBundle(any(), any());
+        verify(primary, never()).removedBundle(any(), any(), any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testAdditionalCustomizersInParallel() throws Exception {
+        final CountDownLatch bothStarted = new CountDownLatch(2);
+        final BundleTrackerCustomizer<Object> additional = mock(BundleTrackerCustomizer.class);
+        when(additional.addingBundle(any(), any())).thenAnswer(i -> {
+            bothStarted.countDown();
+            // finished only if the other customizer is running at the same time
+            assertThat(bothStarted.await(10, TimeUnit.SECONDS), is(true));
+            return null;
+        });
+        final ExtensibleBundleTracker<String> tracker = new ExtensibleBundleTracker<>(
+                mock(BundleContext.class), Bundle.ACTIVE, executor, fanOutExecutor,
+                mock(BundleTrackerCustomizer.class), additional, additional);
+
+        tracker.addingBundle(bundle, null).get(10, TimeUnit.SECONDS);
+
+        verify(additional, times(2)).addingBundle(bundle, null);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSaturatedFanOutExecutor() throws Exception {
+        final BundleTrackerCustomizer<Object> additional = mock(BundleTrackerCustomizer.class);
+        // fan-out executor never runs submitted tasks (ie. all threads of a shared pool are waiting for events)
+        final ExtensibleBundleTracker<String> tracker = new ExtensibleBundleTracker<>(
+                mock(BundleContext.class), Bundle.ACTIVE, executor, task -> { },
+                mock(BundleTrackerCustomizer.class), additional, additional, additional);
+
+        tracker.addingBundle(bundle, null).get(10, TimeUnit.SECONDS);
+
+        verify(additional, times(3)).addingBundle(bundle, null);
+    }
+}
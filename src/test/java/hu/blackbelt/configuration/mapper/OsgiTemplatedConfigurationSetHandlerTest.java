@@ -0,0 +1,385 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ConfigurationEvent;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.*;
+
+public class OsgiTemplatedConfigurationSetHandlerTest {
+
+    private static final String CONFIG_SET_ID = "test";
+
+    private final ConfigurationAdmin configAdmin = mock(ConfigurationAdmin.class);
+    private final AtomicInteger pidCounter = new AtomicInteger();
+    private OsgiTemplatedConfigurationSetHandler handler;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        when(configAdmin.createFactoryConfiguration(anyString(), any())).thenAnswer(i -> configuration(i.getArgument(0)));
+        when(configAdmin.getConfiguration(anyString(), any())).thenAnswer(i -> configuration(i.getArgument(0)));
+        handler = new OsgiTemplatedConfigurationSetHandler(CONFIG_SET_ID, configAdmin, "PREFIX_",
+                ImmutableMap.of("context9Tenants", "Alpha, Beta, Gamma"),
+                Arrays.asList(TemplateProcessor.VariableScope.osgi));
+    }
+
+    @Test
+    public void testCompletedPass() throws Exception {
+        final ConfigurationChangeEvent event = handler.processConfigs(entries(), () -> false);
+
+        assertThat(event.isCancelled(), is(false));
+        assertThat(event.getCreated().size(), equalTo(4));
+        verify(configAdmin).listConfigurations("(__osgi_templated_created_by=" + CONFIG_SET_ID + ")");
+    }
+
+    @Test
+    public void testSupersededPass() throws Exception {
+        final AtomicInteger checks = new AtomicInteger();
+        final ConfigurationChangeEvent event = handler.processConfigs(entries(), () -> checks.incrementAndGet() > 2);
+
+        assertThat(event.isCancelled(), is(true));
+        assertThat(event.getCreated().size(), equalTo(2));
+        // configurations of missing entries are not deleted by superseded pass
+        verify(configAdmin, never()).listConfigurations(startsWith("(__osgi_templated_created_by="));
+    }
+
+    @Test
+    public void testSupersededWhileWriting() throws Exception {
+        final AtomicInteger updates = new AtomicInteger();
+        when(configAdmin.createFactoryConfiguration(anyString(), any())).thenAnswer(i -> {
+            final Configuration configuration = configuration(i.getArgument(0));
+            doAnswer(u -> updates.incrementAndGet()).when(configuration).update(any());
+            return configuration;
+        });
+        when(configAdmin.getConfiguration(anyString(), any())).thenAnswer(i -> {
+            final Configuration configuration = configuration(i.getArgument(0));
+            doAnswer(u -> updates.incrementAndGet()).when(configuration).update(any());
+            return configuration;
+        });
+        handler.setWriteLimit(1000, 1);
+
+        // newer pass is requested while the first batch is written, remaining batches are discarded
+        final ConfigurationChangeEvent event = handler.processConfigs(entries(), () -> updates.get() > 0);
+        assertThat(event.isCancelled(), is(true));
+        assertThat(updates.get(), equalTo(1));
+        assertThat(event.getCreated().size(), equalTo(1));
+        verify(configAdmin, never()).listConfigurations(startsWith("(__osgi_templated_created_by="));
+    }
+
+    @Test
+    public void testPriorityTiers() throws Exception {
+        final List<String> events = new ArrayList<>();
+        when(configAdmin.getConfiguration(anyString(), any())).thenAnswer(i -> {
+            events.add("lookup " + i.getArgument(0));
+            final Configuration configuration = configuration(i.getArgument(0));
+            doAnswer(u -> events.add("update " + i.getArgument(0))).when(configuration).update(any());
+            return configuration;
+        });
+        handler.setWriteLimit(1000, 10);
+        handler.updateOsgiConfigs(ImmutableMap.of("context3Bool", "true"));
+
+        // test3 has higher priority, its tier is written before test2 is rendered (regardless of entry order)
+        final ConfigurationChangeEvent event = handler.processConfigs(Arrays.asList(
+                ConfigurationEntry.builder()
+                        .template(getClass().getResource("/config-templates/test2.config.template"))
+                        .spec(Optional.empty())
+                        .instance(Optional.empty())
+                        .build(),
+                ConfigurationEntry.builder()
+                        .template(getClass().getResource("/config-templates/test3.config.template"))
+                        .spec(Optional.of(getClass().getResource("/config-templates/test3.config.xml")))
+                        .instance(Optional.empty())
+                        .build()), () -> false);
+
+        assertThat(event.getCreated().size(), equalTo(2));
+        assertThat(events, hasItems("update test3.config", "lookup test2.config", "update test2.config"));
+        assertThat(events.indexOf("update test3.config"), lessThan(events.indexOf("lookup test2.config")));
+    }
+
+    @Test
+    public void testLazyPass() throws Exception {
+        handler.setConsumerFilter("test2.config"::equals);
+        final ConfigurationChangeEvent event = handler.processConfigs(entries(), () -> false);
+
+        assertThat(event.getCreated().size(), equalTo(1));
+        assertThat(event.getDeferred(), equalTo(3));
+        assertThat(handler.isDeferred("test9.config"), is(true));
+        assertThat(handler.isDeferred("test2.config"), is(false));
+
+        handler.setConsumerFilter(null);
+        assertThat(handler.processConfigs(entries(), () -> false).getDeferred(), equalTo(0));
+        assertThat(handler.isDeferred("test9.config"), is(false));
+    }
+
+    @Test
+    public void testDeferredBeforeConsumerCheck() throws Exception {
+        // consumer appearing while it is checked finds the PID deferred, so it triggers a new pass
+        final List<Boolean> deferredWhileChecked = new ArrayList<>();
+        handler.setConsumerFilter(pid -> {
+            deferredWhileChecked.add(handler.isDeferred(pid));
+            return "test2.config".equals(pid);
+        });
+        handler.processConfigs(entries(), () -> false);
+
+        assertThat(deferredWhileChecked, everyItem(is(true)));
+        assertThat(deferredWhileChecked, hasSize(4));
+        assertThat(handler.isDeferred("test2.config"), is(false));
+        assertThat(handler.isDeferred("test9.config"), is(true));
+    }
+
+    @Test
+    public void testIncrementalPass() throws Exception {
+        final List<ConfigurationEntry> entries = entries();
+        assertThat(handler.processConfigs(entries, ConfigurationEntryDelta.diff(Collections.emptyList(), entries), () -> false)
+                .getProcessed(), equalTo(4));
+
+        // only changed entry is rendered
+        final List<ConfigurationEntry> changed = Arrays.asList(ConfigurationEntry.builder()
+                .template(entries.get(0).getTemplate())
+                .spec(Optional.empty())
+                .instance(Optional.empty())
+                .digest(BigInteger.ONE)
+                .build(), entries.get(1));
+        final ConfigurationChangeEvent event = handler.processConfigs(changed, ConfigurationEntryDelta.diff(entries, changed), () -> false);
+        assertThat(event.getProcessed(), equalTo(1));
+        assertThat(event.getDeleted().size(), equalTo(0));
+
+        // configurations of removed entry are deleted
+        when(configAdmin.listConfigurations(startsWith("(__osgi_templated_config_name=test9.config-")))
+                .thenAnswer(i -> new Configuration[] {configuration("test9.config")});
+        final List<ConfigurationEntry> removed = changed.subList(0, 1);
+        final ConfigurationChangeEvent removal = handler.processConfigs(removed, ConfigurationEntryDelta.diff(changed, removed), () -> false);
+        assertThat(removal.getProcessed(), equalTo(0));
+        assertThat(removal.getDeleted().size(), equalTo(3));
+    }
+
+    @Test
+    public void testPlanFailure() throws Exception {
+        final String template = entries().get(1).getTemplate().toString();
+
+        // list variable is undefined, other entries are processed anyway
+        handler.updateOsgiConfigs(Collections.emptyMap());
+        final ConfigurationChangeEvent event = handler.processConfigs(entries(), () -> false);
+        assertThat(event.getCreated().size(), equalTo(1));
+        assertThat(event.getFailed().keySet(), equalTo(Collections.singleton(template)));
+        assertThat(event.getErrors(), hasKey(template));
+        // instances of failed entry are unknown, no configuration is deleted
+        verify(configAdmin, never()).listConfigurations(startsWith("(__osgi_templated_created_by="));
+    }
+
+    @Test
+    public void testPlanFailureKeepsPreviousConfigurations() throws Exception {
+        assertThat(handler.processConfigs(entries(), () -> false).getCreated().size(), equalTo(4));
+
+        final Configuration existing = configuration("test9.config");
+        when(configAdmin.listConfigurations(startsWith("(__osgi_templated_config_name=test9.config-"))).thenReturn(new Configuration[] {existing});
+        when(configAdmin.listConfigurations("(__osgi_templated_created_by=" + CONFIG_SET_ID + ")")).thenReturn(new Configuration[] {existing});
+        handler.updateOsgiConfigs(Collections.emptyMap());
+        final ConfigurationChangeEvent event = handler.processConfigs(entries(), () -> false);
+        assertThat(event.getFailed().keySet(), equalTo(Collections.singleton(entries().get(1).getTemplate().toString())));
+        assertThat(event.getDeleted().size(), equalTo(0));
+        verify(existing, never()).delete();
+    }
+
+    @Test
+    public void testUnchangedOutput() throws Exception {
+        final ConfigurationChangeEvent first = handler.processConfigs(entries(), () -> false);
+        assertThat(first.getUnchangedOutputs(), equalTo(0));
+        final String pid = first.getCreated().keySet().stream().filter(p -> p.startsWith("test2.config")).findFirst().get();
+        // events of updates written by the pass are delivered by configuration admin
+        first.getCreated().keySet().forEach(p -> handler.configurationEvent(event(ConfigurationEvent.CM_UPDATED, p)));
+        handler.configurationEvent(event(ConfigurationEvent.CM_UPDATED, "other.config"));
+
+        // configurations are not looked up again
+        clearInvocations(configAdmin);
+        final ConfigurationChangeEvent second = handler.processConfigs(entries(), () -> false);
+        assertThat(second.getUnchangedOutputs(), equalTo(4));
+        assertThat(second.getProcessed(), equalTo(4));
+        assertThat(second.isEmpty(), is(true));
+        verify(configAdmin, never()).listConfigurations(startsWith("(__osgi_templated_config_name="));
+
+        // configuration updated by others is reconciled without looking it up
+        handler.configurationEvent(event(ConfigurationEvent.CM_UPDATED, pid));
+        verify(configAdmin, never()).listConfigurations(startsWith("(service.pid="));
+
+        final ConfigurationChangeEvent third = handler.processConfigs(entries(), () -> false);
+        assertThat(third.getUnchangedOutputs(), equalTo(3));
+        assertThat(third.getCreated().size(), equalTo(1));
+    }
+
+    @Test
+    public void testFilterValuesAreEscaped() throws Exception {
+        final OsgiTemplatedConfigurationSetHandler escaped = new OsgiTemplatedConfigurationSetHandler("test(*)", configAdmin, "PREFIX_",
+                Collections.emptyMap(), Arrays.asList(TemplateProcessor.VariableScope.osgi));
+        escaped.getConfigurationCount();
+        verify(configAdmin).listConfigurations("(__osgi_templated_created_by=test\\(\\*\\))");
+    }
+
+    @Test
+    public void testRetryFailed() throws Exception {
+        final AtomicInteger failures = new AtomicInteger(1);
+        failingConfiguration("test2.config", failures);
+        handler.setRetryPolicy(0, 0, 2);
+
+        final ConfigurationChangeEvent event = handler.processConfigs(entries(), () -> false);
+        assertThat(event.getFailed().keySet(), equalTo(Collections.singleton("test2.config")));
+        assertThat(event.getErrors(), hasEntry("test2.config", "unavailable"));
+        assertThat(handler.getFailures().keySet(), equalTo(Collections.singleton("test2.config")));
+        assertThat(handler.getRetryDelay(), equalTo(0L));
+
+        // only the failed instance is rendered again
+        final ConfigurationChangeEvent retry = handler.retryFailed(() -> false);
+        assertThat(retry.getProcessed(), equalTo(1));
+        assertThat(retry.getCreated().size(), equalTo(1));
+        assertThat(retry.getFailed().size(), equalTo(0));
+        assertThat(handler.getFailures().size(), equalTo(0));
+        assertThat(handler.getRetryDelay(), equalTo(-1L));
+    }
+
+    @Test
+    public void testRetryAfterLazyModeChanged() throws Exception {
+        failingConfiguration("test2.config", new AtomicInteger(1));
+        handler.setRetryPolicy(0, 0, 2);
+        handler.processConfigs(entries(), () -> false);
+        assertThat(handler.getFailures().keySet(), equalTo(Collections.singleton("test2.config")));
+
+        // lazy mode is turned on before the retry, instance without consumer is deferred instead of rendered
+        handler.setConsumerFilter(pid -> false);
+        final ConfigurationChangeEvent retry = handler.retryFailed(() -> false);
+        assertThat(retry.getDeferred(), equalTo(1));
+        assertThat(retry.getCreated().size(), equalTo(0));
+        assertThat(handler.isDeferred("test2.config"), is(true));
+
+        handler.setConsumerFilter(null);
+        assertThat(handler.isDeferred("test2.config"), is(false));
+    }
+
+    @Test
+    public void testRetryLimit() throws Exception {
+        failingConfiguration("test2.config", new AtomicInteger(Integer.MAX_VALUE));
+        handler.setRetryPolicy(0, 0, 1);
+
+        handler.processConfigs(entries(), () -> false);
+        assertThat(handler.retryFailed(() -> false).getFailed().keySet(), equalTo(Collections.singleton("test2.config")));
+
+        // failure is kept, but it is not retried any more
+        assertThat(handler.getFailures().keySet(), equalTo(Collections.singleton("test2.config")));
+        assertThat(handler.getRetryDelay(), equalTo(-1L));
+        assertThat(handler.retryFailed(() -> false).getProcessed(), equalTo(0));
+    }
+
+    @Test
+    public void testRetryPlanFailure() throws Exception {
+        final String template = entries().get(1).getTemplate().toString();
+        handler.setRetryPolicy(0, 0, 2);
+        handler.updateOsgiConfigs(Collections.emptyMap());
+        handler.processConfigs(entries(), () -> false);
+        assertThat(handler.getFailures().keySet(), equalTo(Collections.singleton(template)));
+        assertThat(handler.getRetryDelay(), equalTo(0L));
+
+        // only instances of the failed entry are planned and rendered again
+        handler.updateOsgiConfigs(ImmutableMap.of("context9Tenants", "Alpha, Beta, Gamma"));
+        final ConfigurationChangeEvent retry = handler.retryFailed(() -> false);
+        assertThat(retry.getCreated().size(), equalTo(3));
+        assertThat(retry.getFailed().size(), equalTo(0));
+        assertThat(handler.getFailures().size(), equalTo(0));
+    }
+
+    @Test
+    public void testConditionFailure() throws Exception {
+        handler.setRetryPolicy(0, 0, 2);
+        final List<ConfigurationEntry> entries = Arrays.asList(ConfigurationEntry.builder()
+                .template(getClass().getResource("/config-templates/test5.config-a.template"))
+                .spec(Optional.of(getClass().getResource("/config-templates/test5.config.xml")))
+                .instance(Optional.of("a"))
+                .build());
+
+        // condition variable is undefined
+        final ConfigurationChangeEvent event = handler.processConfigs(entries, () -> false);
+        assertThat(event.getFailed().keySet(), equalTo(Collections.singleton("test5.config-a")));
+        assertThat(handler.getFailures().keySet(), equalTo(Collections.singleton("test5.config-a")));
+
+        handler.updateOsgiConfigs(ImmutableMap.of("context5aBool", "true"));
+        assertThat(handler.retryFailed(() -> false).getCreated().size(), equalTo(1));
+        assertThat(handler.getFailures().size(), equalTo(0));
+    }
+
+    private void failingConfiguration(String pid, AtomicInteger failures) throws IOException {
+        when(configAdmin.getConfiguration(eq(pid), any())).thenAnswer(i -> {
+            final Configuration configuration = configuration(pid);
+            doAnswer(u -> {
+                if (failures.getAndDecrement() > 0) {
+                    throw new IOException("unavailable");
+                }
+                return null;
+            }).when(configuration).update(any(Dictionary.class));
+            return configuration;
+        });
+    }
+
+    private List<ConfigurationEntry> entries() {
+        return Arrays.asList(
+                ConfigurationEntry.builder()
+                        .template(getClass().getResource("/config-templates/test2.config.template"))
+                        .spec(Optional.empty())
+                        .instance(Optional.empty())
+                        .build(),
+                ConfigurationEntry.builder()
+                        .template(getClass().getResource("/config-templates/test9.config.template"))
+                        .spec(Optional.of(getClass().getResource("/config-templates/test9.config.xml")))
+                        .instance(Optional.empty())
+                        .build());
+    }
+
+    private static ConfigurationEvent event(int type, String pid) {
+        final ConfigurationEvent event = mock(ConfigurationEvent.class);
+        when(event.getType()).thenReturn(type);
+        when(event.getPid()).thenReturn(pid);
+        return event;
+    }
+
+    private Configuration configuration(String pid) {
+        final Configuration configuration = mock(Configuration.class);
+        when(configuration.getPid()).thenReturn(pid + "." + pidCounter.incrementAndGet());
+        return configuration;
+    }
+}
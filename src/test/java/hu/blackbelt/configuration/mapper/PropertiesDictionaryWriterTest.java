@@ -0,0 +1,75 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+
+public class PropertiesDictionaryWriterTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "",
+            "key=value",
+            "# comment\n! other comment\n   \nkey = value \n",
+            "key1=value1\r\nkey2:value2\rkey3 value3\n\tkey4   =   value4",
+            "workDir=C:\\karaf\\test\npath=\\\\server\\share\\\ncontinuation=not continued",
+            "escaped=\\n\\t\\u0041\nkey\\=part=value",
+            "onlyKey\nonlyKeyWithSpace   \nempty=\n=emptyKey",
+            "duplicate=first\nduplicate=second",
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<!DOCTYPE properties SYSTEM \"http://java.sun.com/dtd/properties.dtd\">\n"
+                    + "<properties><entry key=\"key\">value</entry></properties>"
+    })
+    public void testSameAsLoadProperties(String text) throws IOException {
+        final PropertiesDictionaryWriter writer = new PropertiesDictionaryWriter();
+        for (int i = 0; i < text.length(); i += 7) {
+            writer.write(text, i, Math.min(7, text.length() - i));
+        }
+        writer.close();
+
+        assertThat(Utils.fromDictionary(writer.getDictionary()),
+                equalTo(Utils.fromDictionary(Utils.loadProperties(new ByteArrayInputStream(text.getBytes(UTF_8))))));
+    }
+
+    @Test
+    public void testOutputDigest() throws IOException {
+        assertThat(digest("key=value\n"), equalTo(digest("key=value\n")));
+        assertThat(digest("key=value\n"), not(equalTo(digest("key=value2\n"))));
+        // same dictionary, different output
+        assertThat(digest("key=value\n"), not(equalTo(digest("key = value\n"))));
+    }
+
+    private static Object digest(String text) throws IOException {
+        final PropertiesDictionaryWriter writer = new PropertiesDictionaryWriter();
+        writer.write(text);
+        writer.close();
+        return writer.getOutputDigest();
+    }
+}
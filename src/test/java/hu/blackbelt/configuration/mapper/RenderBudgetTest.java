@@ -0,0 +1,92 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collections;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class RenderBudgetTest {
+
+    @Test
+    public void testMaxOutputSize() throws IOException {
+        final RenderBudget budget = RenderBudget.builder().maxOutputSize(10).build();
+        final StringWriter out = new StringWriter();
+        budget.render("test", out, w -> w.write("0123456789"));
+        assertThat(out.toString(), equalTo("0123456789"));
+
+        final RenderBudgetExceededException ex = assertThrows(RenderBudgetExceededException.class,
+                () -> budget.render("test", new StringWriter(), w -> w.write("0123456789a")));
+        assertThat(ex.getMessage(), containsString("output size exceeds 10 characters"));
+    }
+
+    @Test
+    public void testMaxInstructions() throws IOException {
+        final RenderBudget budget = RenderBudget.builder().maxInstructions(3).build();
+        budget.render("test", new StringWriter(), w -> render("<#list 1..3 as i>${i}</#list>", w));
+
+        final RenderBudgetExceededException ex = assertThrows(RenderBudgetExceededException.class,
+                () -> budget.render("test", new StringWriter(), w -> render("<#list 1..4 as i>${i}</#list>", w)));
+        assertThat(ex.getMessage(), containsString("number of instructions exceeds 3"));
+    }
+
+    @Test
+    public void testMaxRenderTimeWithoutOutput() {
+        final RenderBudget budget = RenderBudget.builder().maxRenderTime(100).build();
+        final long started = System.currentTimeMillis();
+
+        // loop writes nothing, it is aborted by interrupting the thread
+        final RenderBudgetExceededException ex = assertThrows(RenderBudgetExceededException.class,
+                () -> budget.render("test", new StringWriter(), w -> render("<#list 1..2000000000 as i></#list>", w)));
+        assertThat(ex.getMessage(), containsString("render time exceeds 100 ms"));
+        assertThat(System.currentTimeMillis() - started, lessThan(10000L));
+        // interrupt is not left on the thread
+        assertThat(Thread.currentThread().isInterrupted(), is(false));
+    }
+
+    @Test
+    public void testMaxRenderTimeOfMacro() {
+        final RenderBudget budget = RenderBudget.builder().maxRenderTime(100).build();
+        assertThrows(RenderBudgetExceededException.class, () -> budget.render("test", new StringWriter(),
+                w -> render("<#macro spin n><#if n gt 0><@spin n - 1/><@spin n - 1/></#if></#macro><@spin 60/>", w)));
+    }
+
+    @Test
+    public void testWithinRenderTime() throws IOException {
+        final RenderBudget budget = RenderBudget.builder().maxRenderTime(10000).build();
+        final StringWriter out = new StringWriter();
+        budget.render("test", out, w -> render("<#list 1..3 as i>${i}</#list>", w));
+        assertThat(out.toString(), equalTo("123"));
+        assertThat(Thread.currentThread().isInterrupted(), is(false));
+    }
+
+    private static void render(String template, Writer out) throws IOException {
+        FreeMarkerTemplateEngine.SHARED.compile("test", new StringReader(template)).render(Collections.<String, Object>emptyMap()::get, out);
+    }
+}
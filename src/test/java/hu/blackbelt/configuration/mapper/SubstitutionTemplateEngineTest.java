@@ -0,0 +1,72 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class SubstitutionTemplateEngineTest {
+
+    private static final Map<String, Object> VARIABLES = ImmutableMap.of(
+            "name", "value",
+            "port", 8080,
+            "environment", ImmutableMap.of("HOME", "/home/test"));
+
+    private final SubstitutionTemplateEngine engine = new SubstitutionTemplateEngine();
+
+    @Test
+    public void testRender() throws IOException {
+        assertThat(render("key=${name}\nport=${port}\nhome=${environment.HOME}\n$ and } are {kept}"),
+                equalTo("key=value\nport=8080\nhome=/home/test\n$ and } are {kept}"));
+        assertThat(render("a=${missing!default}\nb=${missing ! \"quoted\"}\nc=${missing!}\nd=${name!default}\ne=${environment.USER!'user'}"),
+                equalTo("a=default\nb=quoted\nc=\nd=value\ne=user"));
+        assertThat(render(""), equalTo(""));
+    }
+
+    @Test
+    public void testUndefinedVariable() {
+        assertThrows(IOException.class, () -> render("key=${missing}"));
+        assertThrows(IOException.class, () -> render("key=${name.missing}"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"key=${name", "key=${name?upper_case}", "key=${}", "key=${a + b}"})
+    public void testInvalidTemplate(String template) {
+        assertThrows(IOException.class, () -> engine.compile("test", new StringReader(template)));
+    }
+
+    private String render(String template) throws IOException {
+        final StringWriter out = new StringWriter();
+        engine.compile("test", new StringReader(template)).render(VARIABLES::get, out);
+        return out.toString();
+    }
+}
@@ -0,0 +1,122 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class TemplateBuildToolTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path templateDirectory;
+    private final ByteArrayOutputStream report = new ByteArrayOutputStream();
+
+    @BeforeEach
+    public void copyTemplates() throws IOException, URISyntaxException {
+        templateDirectory = Files.createDirectory(tempDir.resolve("config-templates"));
+        try (Stream<Path> files = Files.list(Paths.get(getClass().getResource("/config-templates").toURI()))) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.copy(file, templateDirectory.resolve(file.getFileName()));
+            }
+        }
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+        assertThat(run(templateDirectory.toString(), "--index"), equalTo(0));
+
+        final List<ConfigurationEntry> entries = TemplateIndex.read(
+                templateDirectory.resolve(TemplateIndex.INDEX_FILE_NAME).toUri().toURL(), 0,
+                name -> {
+                    try {
+                        return templateDirectory.resolve(name).toUri().toURL();
+                    } catch (IOException ex) {
+                        return null;
+                    }
+                });
+        assertThat(entries.size(), equalTo(14));
+        assertThat(entries.stream().allMatch(e -> e.getDigest() != null), is(true));
+    }
+
+    @Test
+    public void testIndexOutput() throws Exception {
+        // library is not found next to template, it could be provided by another bundle at runtime
+        Files.write(templateDirectory.resolve("shared.config.template"), "<#include \"lib/shared.ftl\">".getBytes(UTF_8));
+        final Path indexDirectory = tempDir.resolve("index");
+
+        assertThat(run(templateDirectory.toString(), "--index-output", indexDirectory.toString()), equalTo(0));
+
+        assertThat(Files.exists(templateDirectory.resolve(TemplateIndex.INDEX_FILE_NAME)), is(false));
+        final List<String> lines = Files.readAllLines(indexDirectory.resolve(TemplateIndex.INDEX_FILE_NAME), UTF_8);
+        assertThat(lines, hasItem("shared.config.template;;;"));
+        assertThat(lines.stream().filter(l -> l.endsWith(";")).count(), equalTo(1L));
+    }
+
+    @Test
+    public void testRender() throws Exception {
+        final Path variables = tempDir.resolve("sample.properties");
+        Files.write(variables, Arrays.asList("env=testFromEnv", "contextBool=true", "context3Bool=true", "context4Bool=false",
+                "context5aBool=true", "context5bBool=false", "context5cBool=true", "context6Bool=true",
+                "context7Bool=true", "template7FactoryPid=T7", "context9Tenants=Alpha, Beta, disabled"), UTF_8);
+        final Path output = tempDir.resolve("rendered");
+        // OS environment variables are not available
+        Files.delete(templateDirectory.resolve("test1.config-tst.template"));
+
+        assertThat(run(templateDirectory.toString(), "--variables", variables.toString(), "--output", output.toString()), equalTo(0));
+
+        assertThat(new String(Files.readAllBytes(output.resolve("test9.config-alpha.cfg")), UTF_8).trim(), equalTo("name=TEST9-ALPHA"));
+        assertThat(Files.exists(output.resolve("test9.config-disabled.cfg")), is(false));
+        assertThat(Files.exists(output.resolve("test4.config.cfg")), is(false));
+        assertThat(Files.readAllLines(output.resolve(TemplateBuildTool.VARIABLES_FILE_NAME), UTF_8),
+                hasItems("test9.config-beta=", "test7.config=template7FactoryPid"));
+    }
+
+    @Test
+    public void testInvalidTemplate() throws Exception {
+        Files.write(templateDirectory.resolve("invalid.config.template"), "name=${unclosed".getBytes(UTF_8));
+
+        assertThat(run(templateDirectory.toString(), "--index"), equalTo(1));
+        assertThat(Files.exists(templateDirectory.resolve(TemplateIndex.INDEX_FILE_NAME)), is(false));
+        assertThat(report.toString(), containsString("invalid.config.template"));
+    }
+
+    private int run(String... args) throws Exception {
+        return TemplateBuildTool.run(args, new PrintStream(report, true));
+    }
+}
@@ -0,0 +1,102 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class TemplateDirectoryWatcherTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testWatchDirectory() throws Exception {
+        Files.write(directory.resolve("first.template"), "name=first".getBytes(UTF_8));
+        Files.write(directory.resolve("second-a.template"), "name=a".getBytes(UTF_8));
+        Files.write(directory.resolve("second.xml"), "<components/>".getBytes(UTF_8));
+
+        final BlockingQueue<List<ConfigurationEntry>> changes = new LinkedBlockingQueue<>();
+        final TemplateDirectoryWatcher watcher = new TemplateDirectoryWatcher(directory, 100, e -> { changes.add(e); return null; });
+        try {
+            final List<ConfigurationEntry> initial = watcher.getConfigEntries();
+            assertThat(initial, hasSize(2));
+            assertThat(initial.get(0).getBundleId(), equalTo(TemplateDirectoryWatcher.BUNDLE_ID));
+            assertThat(initial.get(1).getInstance().orElse(null), equalTo("a"));
+
+            // multiple changes are debounced
+            Files.write(directory.resolve("first.template"), "name=changed".getBytes(UTF_8));
+            Files.write(directory.resolve("third.template"), "name=third".getBytes(UTF_8));
+            final List<ConfigurationEntry> changed = changes.poll(10, TimeUnit.SECONDS);
+            assertThat(changed, hasSize(3));
+            final ConfigurationEntryDelta delta = ConfigurationEntryDelta.diff(initial, changed);
+            assertThat(delta.getChanged(), hasSize(1));
+            assertThat(delta.getAdded(), hasSize(1));
+            assertThat(delta.getRemoved(), empty());
+            assertThat(watcher.getConfigEntries(), equalTo(changed));
+
+            Files.delete(directory.resolve("third.template"));
+            assertThat(changes.poll(10, TimeUnit.SECONDS), hasSize(2));
+        } finally {
+            watcher.destroy();
+        }
+    }
+
+    @Test
+    public void testWatchSubdirectories() throws Exception {
+        Files.createDirectories(directory.resolve("sub-dir"));
+        Files.write(directory.resolve("sub-dir/nested-a.template"), "name=a".getBytes(UTF_8));
+        Files.write(directory.resolve("sub-dir/nested.xml"), "<components/>".getBytes(UTF_8));
+
+        final BlockingQueue<List<ConfigurationEntry>> changes = new LinkedBlockingQueue<>();
+        final TemplateDirectoryWatcher watcher = new TemplateDirectoryWatcher(directory, 100, e -> { changes.add(e); return null; });
+        try {
+            final List<ConfigurationEntry> initial = watcher.getConfigEntries();
+            assertThat(initial, hasSize(1));
+            assertThat(initial.get(0).getInstance().orElse(null), equalTo("a"));
+            assertThat(initial.get(0).getSpec().isPresent(), is(true));
+
+            // directories created after start are watched too
+            Files.createDirectories(directory.resolve("new-dir"));
+            assertThat(changes.poll(1, TimeUnit.SECONDS), nullValue());
+            Files.write(directory.resolve("new-dir/created.template"), "name=created".getBytes(UTF_8));
+            assertThat(changes.poll(10, TimeUnit.SECONDS), hasSize(2));
+
+            Files.write(directory.resolve("sub-dir/nested-a.template"), "name=changed".getBytes(UTF_8));
+            final List<ConfigurationEntry> changed = changes.poll(10, TimeUnit.SECONDS);
+            assertThat(changed, hasSize(2));
+            assertThat(ConfigurationEntryDelta.diff(initial, changed).getChanged(), hasSize(1));
+        } finally {
+            watcher.destroy();
+        }
+    }
+}
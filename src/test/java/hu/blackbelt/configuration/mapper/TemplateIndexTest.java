@@ -0,0 +1,144 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TemplateIndexTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        Files.write(directory.resolve("test.config.template"), "name=${name}".getBytes(UTF_8));
+        Files.write(directory.resolve("factory-a.template"), "name=a".getBytes(UTF_8));
+        Files.write(directory.resolve("factory.xml"), "<components/>".getBytes(UTF_8));
+        final List<ConfigurationEntry> entries = Arrays.asList(
+                ConfigurationEntry.builder()
+                        .bundleId(3)
+                        .template(url("test.config.template"))
+                        .spec(Optional.empty())
+                        .instance(Optional.empty())
+                        .build(),
+                ConfigurationEntry.builder()
+                        .bundleId(3)
+                        .template(url("factory-a.template"))
+                        .spec(Optional.of(url("factory.xml")))
+                        .instance(Optional.of("a"))
+                        .build());
+
+        final StringWriter writer = new StringWriter();
+        TemplateIndex.write(entries, u -> directory.toUri().relativize(toUri(u)).getPath(), writer);
+        assertThat(writer.toString(), startsWith("# template;spec;instance;digest"));
+        assertThat(writer.toString(), containsString("factory-a.template;factory.xml;a;" + entries.get(1).checkSum().toString(16)));
+        final Path index = directory.resolve(TemplateIndex.INDEX_FILE_NAME);
+        Files.write(index, writer.toString().getBytes(UTF_8));
+
+        final List<ConfigurationEntry> read = TemplateIndex.read(index.toUri().toURL(), 3, this::resolve);
+        assertThat(read, equalTo(entries));
+        assertThat(read.get(0).getSpec(), equalTo(Optional.empty()));
+        assertThat(read.get(1).getSpec(), equalTo(Optional.of(url("factory.xml"))));
+        assertThat(read.get(1).getInstance(), equalTo(Optional.of("a")));
+        // digests are precomputed, content is not read again
+        assertThat(read.get(0).getDigest(), equalTo(entries.get(0).checkSum()));
+        assertThat(read.get(1).getDigest(), equalTo(entries.get(1).checkSum()));
+    }
+
+    @Test
+    public void testReadWithoutDigest() throws Exception {
+        Files.write(directory.resolve("test.config.template"), "name=test".getBytes(UTF_8));
+        final Path index = directory.resolve(TemplateIndex.INDEX_FILE_NAME);
+        Files.write(index, Arrays.asList("# comment", "", "  test.config.template;;;  "), UTF_8);
+
+        final List<ConfigurationEntry> read = TemplateIndex.read(index.toUri().toURL(), 0, this::resolve);
+        assertThat(read, hasSize(1));
+        assertThat(read.get(0).getDigest(), nullValue());
+        assertThat(read.get(0).checkSum(), isA(BigInteger.class));
+    }
+
+    @Test
+    public void testInvalidIndex() throws Exception {
+        Files.write(directory.resolve("test.config.template"), "name=test".getBytes(UTF_8));
+        final Path index = directory.resolve(TemplateIndex.INDEX_FILE_NAME);
+
+        Files.write(index, Arrays.asList("test.config.template;;"), UTF_8);
+        assertThrows(IOException.class, () -> TemplateIndex.read(index.toUri().toURL(), 0, this::resolve));
+
+        Files.write(index, Arrays.asList(";;;"), UTF_8);
+        assertThrows(IOException.class, () -> TemplateIndex.read(index.toUri().toURL(), 0, this::resolve));
+
+        Files.write(index, Arrays.asList("test.config.template;;;xyz"), UTF_8);
+        assertThrows(IOException.class, () -> TemplateIndex.read(index.toUri().toURL(), 0, this::resolve));
+    }
+
+    @Test
+    public void testMissingFile() throws Exception {
+        Files.write(directory.resolve("test.config.template"), "name=test".getBytes(UTF_8));
+        final Path index = directory.resolve(TemplateIndex.INDEX_FILE_NAME);
+
+        Files.write(index, Arrays.asList("missing.template;;;"), UTF_8);
+        assertThat(assertThrows(IOException.class, () -> TemplateIndex.read(index.toUri().toURL(), 0, this::resolve)).getMessage(),
+                containsString("missing.template"));
+
+        Files.write(index, Arrays.asList("test.config.template;missing.xml;;"), UTF_8);
+        assertThrows(IOException.class, () -> TemplateIndex.read(index.toUri().toURL(), 0, this::resolve));
+    }
+
+    private URL resolve(String name) {
+        return Files.exists(directory.resolve(name)) ? url(name) : null;
+    }
+
+    private URL url(String name) {
+        try {
+            return directory.resolve(name).toUri().toURL();
+        } catch (MalformedURLException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+
+    private static URI toUri(URL url) {
+        try {
+            return url.toURI();
+        } catch (URISyntaxException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class TemplateLibraryLoaderTest {
+
+    @TempDir
+    Path directory;
+
+    private final TemplateProcessor templateProcessor = new TemplateProcessor(ImmutableMap.of("jdbcUrl", "jdbc:test"),
+            "PREFIX_", Arrays.asList(TemplateProcessor.VariableScope.osgi));
+
+    @Test
+    public void testIncludeAndImport() throws Exception {
+        Files.createDirectories(directory.resolve("lib"));
+        write("lib/jdbc.ftl", "url=${jdbcUrl}\n<#include \"pool.ftl\">");
+        write("lib/pool.ftl", "pool=10\n");
+        write("lib/macros.ftl", "<#macro property name value>${name}=${value}</#macro>");
+        write("test.config.template", "<#import \"lib/macros.ftl\" as m>\n<#include \"lib/jdbc.ftl\">\n<@m.property name=\"user\" value=\"sa\"/>");
+
+        final ConfigurationEntry entry = entry();
+        assertThat(TemplateLibraryLoader.collectLibraries(entry.getTemplate(), new String(Files.readAllBytes(directory.resolve("test.config.template")), UTF_8)).size(),
+                equalTo(3));
+        assertThat(render(entry), equalTo("url=jdbc:test\npool=10\nuser=sa"));
+
+        // change of a nested library changes digest of template and it is rendered with the new content
+        write("lib/pool.ftl", "pool=20\n");
+        Files.setLastModifiedTime(directory.resolve("lib/pool.ftl"), FileTime.fromMillis(System.currentTimeMillis() + 1000));
+        final ConfigurationEntry changed = entry();
+        assertThat(changed.checkSum(), not(equalTo(entry.checkSum())));
+        assertThat(render(changed), equalTo("url=jdbc:test\npool=20\nuser=sa"));
+    }
+
+    private ConfigurationEntry entry() throws Exception {
+        return ConfigurationEntry.builder()
+                .bundleId(TemplateDirectoryWatcher.BUNDLE_ID)
+                .template(directory.resolve("test.config.template").toUri().toURL())
+                .spec(Optional.empty())
+                .instance(Optional.empty())
+                .build();
+    }
+
+    private String render(ConfigurationEntry entry) {
+        final StringWriter out = new StringWriter();
+        templateProcessor.render(entry, out);
+        return out.toString();
+    }
+
+    private void write(String name, String content) throws Exception {
+        Files.write(directory.resolve(name), content.getBytes(UTF_8));
+    }
+}
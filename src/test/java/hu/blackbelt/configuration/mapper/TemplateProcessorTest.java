@@ -0,0 +1,124 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TemplateProcessorTest {
+
+    private final TemplateProcessor templateProcessor = new TemplateProcessor(
+            ImmutableMap.of("tenants", "Alpha, Beta,,Gamma", "queues", new String[] {"q1", "q2"}),
+            "PREFIX_", Arrays.asList(TemplateProcessor.VariableScope.osgi));
+
+    @Test
+    public void testEvaluateSplitString() {
+        assertThat(templateProcessor.evaluateList("test", "tenants", ","), contains("Alpha", "Beta", "Gamma"));
+        assertThat(templateProcessor.evaluateList("test", "tenants", ";"), contains("Alpha, Beta,,Gamma"));
+    }
+
+    @Test
+    public void testEvaluateSequence() {
+        assertThat(templateProcessor.evaluateList("test", "queues", ","), contains("q1", "q2"));
+        assertThat(templateProcessor.evaluateList("test", "[\"a\", \"b\"]", ","), contains("a", "b"));
+        assertThat(templateProcessor.evaluateList("test", "missing![]", ","), empty());
+    }
+
+    @Test
+    public void testLoopVariable() {
+        assertThat(templateProcessor.resolvePid("test", Optional.of("${tenant?lower_case}"), ImmutableMap.of("tenant", "Alpha")), equalTo("alpha"));
+        assertThat(templateProcessor.isProcess("test", Optional.of("tenant == \"Alpha\""), ImmutableMap.of("tenant", "Alpha")), is(true));
+        assertThat(templateProcessor.isProcess("test", Optional.of("tenant == \"Alpha\""), ImmutableMap.of("tenant", "Beta")), is(false));
+    }
+
+    @Test
+    public void testRenderWithLoopVariable() {
+        final ConfigurationEntry entry = ConfigurationEntry.builder()
+                .template(getClass().getResource("/config-templates/test9.config.template"))
+                .spec(Optional.of(getClass().getResource("/config-templates/test9.config.xml")))
+                .instance(Optional.empty())
+                .build();
+
+        final StringWriter alpha = new StringWriter();
+        templateProcessor.render(entry, ImmutableMap.of("tenant", "Alpha"), alpha);
+        final StringWriter beta = new StringWriter();
+        templateProcessor.render(entry, ImmutableMap.of("tenant", "Beta"), beta);
+
+        assertThat(alpha.toString().trim(), equalTo("name=TEST9-ALPHA"));
+        assertThat(beta.toString().trim(), equalTo("name=TEST9-BETA"));
+
+        templateProcessor.retainTemplates(Collections.emptyList());
+        final StringWriter gamma = new StringWriter();
+        templateProcessor.render(entry, ImmutableMap.of("tenant", "Gamma"), gamma);
+        assertThat(gamma.toString().trim(), equalTo("name=TEST9-GAMMA"));
+    }
+
+    @Test
+    public void testRenderWithEngine() {
+        final ConfigurationEntry entry = ConfigurationEntry.builder()
+                .template(getClass().getResource("/config-templates/test7.config.template"))
+                .spec(Optional.empty())
+                .instance(Optional.empty())
+                .build();
+
+        final StringWriter freemarker = new StringWriter();
+        templateProcessor.render(entry, Optional.of("freemarker"), Collections.emptyMap(), freemarker);
+        final StringWriter substitution = new StringWriter();
+        templateProcessor.render(entry, Optional.of("substitution"), Collections.emptyMap(), substitution);
+        assertThat(substitution.toString(), equalTo(freemarker.toString()));
+
+        assertThrows(IOException.class, () -> templateProcessor.render(entry, Optional.of("missing"), Collections.emptyMap(), new StringWriter()));
+        templateProcessor.setTemplateEngines("missing", name -> null);
+        assertThrows(IOException.class, () -> templateProcessor.render(entry, new StringWriter()));
+    }
+
+    @Test
+    public void testSharedTemplates() {
+        final ConfigurationEntry entry = ConfigurationEntry.builder()
+                .template(getClass().getResource("/config-templates/test7.config.template"))
+                .spec(Optional.empty())
+                .instance(Optional.empty())
+                .build();
+        final TemplateProcessor other = new TemplateProcessor(ImmutableMap.of("template7FactoryPid", "OTHER", "tenants", "Delta"),
+                "PREFIX_", Arrays.asList(TemplateProcessor.VariableScope.osgi));
+
+        // compiled templates and expressions are shared, variables are not
+        final StringWriter out = new StringWriter();
+        templateProcessor.render(entry, out);
+        final StringWriter otherOut = new StringWriter();
+        other.render(entry, otherOut);
+        assertThat(out.toString().trim(), endsWith("instance=DEFAULT"));
+        assertThat(otherOut.toString().trim(), endsWith("instance=OTHER"));
+
+        assertThat(templateProcessor.evaluateList("test", "tenants", ","), contains("Alpha", "Beta", "Gamma"));
+        assertThat(other.evaluateList("test", "tenants", ","), contains("Delta"));
+    }
+}
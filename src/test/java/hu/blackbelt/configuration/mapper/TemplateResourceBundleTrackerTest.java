@@ -0,0 +1,208 @@
+package hu.blackbelt.configuration.mapper;
+
+/*-
+ * #%L
+ * OSGi Configuration mapper
+ * %%
+ * Copyright (C) 2018 - 2023 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleListener;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TemplateResourceBundleTrackerTest {
+
+    @Test
+    public void testCollectConfigEntries() {
+        final List<ConfigurationEntry> entries = TemplateResourceBundleTracker.collectConfigEntries(1, Arrays.asList(
+                "/config-templates/single.template",
+                "/config-templates/single.xml",
+                "/config-templates/factory-a.template",
+                "/config-templates/factory-b-c.template",
+                "/config-templates/factory.xml",
+                "/config-templates/no-spec.template",
+                "/config-templates/sub-dir/plain.template",
+                "/config-templates/sub-dir/nested-x.template",
+                "/config-templates/sub-dir/nested.xml",
+                "/config-templates/sub-dir/-dash.template",
+                "/config-templates/sub-dir/trailing-.template",
+                "/config-templates/sub.xml"), TemplateResourceBundleTrackerTest::url);
+
+        assertThat(entries, hasSize(8));
+        assertEntry(entries.get(0), "single.template", "single.xml", null);
+        assertEntry(entries.get(1), "factory-a.template", "factory.xml", "a");
+        assertEntry(entries.get(2), "factory-b-c.template", null, null);
+        assertEntry(entries.get(3), "no-spec.template", null, null);
+        // names without dash and dashes of directory names are not instance separators
+        assertEntry(entries.get(4), "sub-dir/plain.template", null, null);
+        assertEntry(entries.get(5), "sub-dir/nested-x.template", "sub-dir/nested.xml", "x");
+        assertEntry(entries.get(6), "sub-dir/-dash.template", null, null);
+        assertEntry(entries.get(7), "sub-dir/trailing-.template", null, null);
+    }
+
+    @Test
+    public void testCollectConfigEntriesFromBundle() throws MalformedURLException {
+        final Bundle bundle = mock(Bundle.class);
+        when(bundle.getBundleId()).thenReturn(2L);
+        when(bundle.findEntries("/config-templates/", "*", true)).thenReturn(Collections.enumeration(Arrays.asList(
+                url("/config-templates/sub/"),
+                url("/config-templates/sub/test-a.template"),
+                url("/config-templates/sub/test.xml"))));
+
+        final List<ConfigurationEntry> entries = TemplateResourceBundleTracker.collectConfigEntriesFromBundle("config-templates", bundle);
+        assertThat(entries, hasSize(1));
+        assertThat(entries.get(0).getBundleId(), equalTo(2L));
+        assertEntry(entries.get(0), "sub/test-a.template", "sub/test.xml", "a");
+
+        assertThat(TemplateResourceBundleTracker.collectConfigEntriesFromBundle("missing", bundle), empty());
+    }
+
+    @Test
+    public void testCollectConfigEntriesFromIndex(@TempDir Path directory) throws Exception {
+        final Bundle bundle = indexedBundle(directory, "test-a.template;test.xml;a;" + BigInteger.TEN.toString(16));
+
+        final List<ConfigurationEntry> entries = TemplateResourceBundleTracker.collectConfigEntriesFromBundle("config-templates", bundle);
+        assertThat(entries, hasSize(1));
+        assertThat(entries.get(0).getBundleId(), equalTo(2L));
+        assertThat(entries.get(0).getTemplate(), equalTo(directory.resolve("test-a.template").toUri().toURL()));
+        assertThat(entries.get(0).getSpec(), equalTo(Optional.of(directory.resolve("test.xml").toUri().toURL())));
+        assertThat(entries.get(0).getInstance(), equalTo(Optional.of("a")));
+        assertThat(entries.get(0).getDigest(), equalTo(BigInteger.TEN));
+        // template path is not scanned
+        verify(bundle, never()).findEntries(anyString(), anyString(), anyBoolean());
+    }
+
+    @Test
+    public void testMalformedIndex(@TempDir Path directory) throws Exception {
+        final Bundle bundle = indexedBundle(directory, "test-a.template;test.xml");
+
+        final List<ConfigurationEntry> entries = TemplateResourceBundleTracker.collectConfigEntriesFromBundle("config-templates", bundle);
+        assertThat(entries, hasSize(1));
+        assertEntry(entries.get(0), "sub/test-a.template", "sub/test.xml", "a");
+        assertThat(entries.get(0).getDigest(), nullValue());
+    }
+
+    @Test
+    public void testIndexOfMissingFiles(@TempDir Path directory) throws Exception {
+        final Bundle bundle = indexedBundle(directory, "missing-a.template;test.xml;a;");
+
+        final List<ConfigurationEntry> entries = TemplateResourceBundleTracker.collectConfigEntriesFromBundle("config-templates", bundle);
+        assertThat(entries, hasSize(1));
+        assertEntry(entries.get(0), "sub/test-a.template", "sub/test.xml", "a");
+    }
+
+    @Test
+    public void testLibraryOfOtherBundleChanged(@TempDir Path directory) throws Exception {
+        Files.write(directory.resolve("test.template"), "<#include \"lib/shared.ftl\">".getBytes(UTF_8));
+        final URL template = directory.resolve("test.template").toUri().toURL();
+        final Bundle templated = mock(Bundle.class);
+        when(templated.getBundleId()).thenReturn(2L);
+        when(templated.getState()).thenReturn(Bundle.ACTIVE);
+        when(templated.findEntries("/config-templates/", "*", true)).thenAnswer(i -> Collections.enumeration(Collections.singletonList(template)));
+        final BundleContext context = mock(BundleContext.class);
+        when(context.getBundles()).thenReturn(new Bundle[] {templated});
+
+        final List<List<ConfigurationEntry>> changes = new ArrayList<>();
+        final TemplateResourceBundleTracker tracker = new TemplateResourceBundleTracker(context, "config-templates", entries -> {
+            changes.add(entries);
+            return null;
+        });
+        // only the bundle tracker itself listens, library events are passed by the discovery service
+        verify(context, times(1)).addBundleListener(any(BundleListener.class));
+
+        assertThat(tracker.getConfigEntries(), hasSize(1));
+        final ConfigurationEntry entry = tracker.getConfigEntries().get(0);
+        final String libraryPath = directory.resolve("lib").resolve("shared.ftl").toUri().toURL().getPath();
+        assertThat(entry.getExternalLibraries(), equalTo(Collections.singleton(libraryPath)));
+        assertThat(entry.getLibraryNames(), equalTo(Collections.singleton(directory.resolve("lib").resolve("shared.ftl").toUri().toURL().toString())));
+
+        // bundle not providing the library does not change entries, library path is looked up once
+        final Bundle other = mock(Bundle.class);
+        tracker.librariesChanged(other);
+        assertThat(changes, empty());
+        verify(other, times(1)).getEntry(libraryPath);
+
+        // library is provided by a started bundle, digest of entry is calculated again
+        Files.createDirectories(directory.resolve("lib"));
+        Files.write(directory.resolve("lib").resolve("shared.ftl"), "shared".getBytes(UTF_8));
+        final Bundle library = mock(Bundle.class);
+        when(library.getEntry(libraryPath)).thenReturn(directory.resolve("lib").resolve("shared.ftl").toUri().toURL());
+        tracker.librariesChanged(library);
+        assertThat(changes, hasSize(1));
+        assertThat(changes.get(0).get(0).checkSum(), not(equalTo(entry.checkSum())));
+        assertThat(tracker.getConfigEntries().get(0).getLibraries(), hasSize(1));
+
+        tracker.destroy();
+    }
+
+    private static Bundle indexedBundle(Path directory, String... lines) throws IOException {
+        Files.write(directory.resolve("test-a.template"), "name=a".getBytes(UTF_8));
+        Files.write(directory.resolve("test.xml"), "<components/>".getBytes(UTF_8));
+        Files.write(directory.resolve(TemplateIndex.INDEX_FILE_NAME), Arrays.asList(lines), UTF_8);
+        final Bundle bundle = mock(Bundle.class);
+        when(bundle.getBundleId()).thenReturn(2L);
+        when(bundle.getEntry(anyString())).thenAnswer(i -> {
+            final Path file = directory.resolve(i.<String>getArgument(0).substring("/config-templates/".length()));
+            return Files.exists(file) ? file.toUri().toURL() : null;
+        });
+        // files found by scanning template path
+        when(bundle.findEntries("/config-templates/", "*", true)).thenReturn(Collections.enumeration(Arrays.asList(
+                url("/config-templates/sub/test-a.template"),
+                url("/config-templates/sub/test.xml"))));
+        return bundle;
+    }
+
+    private static void assertEntry(ConfigurationEntry entry, String template, String spec, String instance) {
+        assertThat(entry.getTemplate().getPath(), equalTo("/config-templates/" + template));
+        assertThat(entry.getSpec().map(URL::getPath).orElse(null), equalTo(spec != null ? "/config-templates/" + spec : null));
+        assertThat(entry.getInstance().orElse(null), equalTo(instance));
+    }
+
+    private static URL url(String path) {
+        try {
+            return new URL("file:" + path);
+        } catch (MalformedURLException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+}